@@ -33,7 +33,9 @@ import ij.ImagePlus;
 
 public class AutoSearchThread extends SearchThread {
 
+	/* The tubeness, either in memory or (if tubeValues is null) from a VoxelSource: */
 	float[][] tubeValues;
+	VoxelSource tubes;
 	float tubenessThreshold;
 
 	SinglePathsGraph previousPathGraph;
@@ -60,9 +62,35 @@ public class AutoSearchThread extends SearchThread {
 				0, // timeoutSeconds
 				1000); // reportEveryMilliseconds
 
+		this.tubeValues = tubeValues;
+		setUp(startPoint, tubenessThreshold, previousPathGraph);
+	}
+
+	/*
+	 * A search of tubeness values that are read from a VoxelSource (e.g. a
+	 * ChunkedVoxelFile) as they're needed, rather than all held in memory.
+	 */
+
+	public AutoSearchThread(final VoxelSource tubes, final AutoPoint startPoint, final float tubenessThreshold,
+			final SinglePathsGraph previousPathGraph) {
+
+		super(tubes, -1, // stackMin (not used by the automatic tracer)
+				-1, // stackMax (not used by the automatic tracer)
+				false, // bidirectional
+				false, // definedGoal
+				false, // startPaused
+				0, // timeoutSeconds
+				1000); // reportEveryMilliseconds
+
+		this.tubes = tubes;
+		setUp(startPoint, tubenessThreshold, previousPathGraph);
+	}
+
+	private void setUp(final AutoPoint startPoint, final float tubenessThreshold,
+			final SinglePathsGraph previousPathGraph) {
+
 		this.verbose = false;
 
-		this.tubeValues = tubeValues;
 		this.tubenessThreshold = tubenessThreshold;
 
 		this.previousPathGraph = previousPathGraph;
@@ -77,26 +105,21 @@ public class AutoSearchThread extends SearchThread {
 	}
 
 	@Override
-	protected double costMovingTo(final int new_x, final int new_y, final int new_z) {
-
-		double cost;
-
-		// Then this saves a lot of time:
-		float measure = tubeValues[new_z][new_y * width + new_x];
-		if (measure == 0)
-			measure = 0.2f;
-		cost = 1 / measure;
+	protected CostFunction defaultCostFunction() {
+		return tubeValues != null ? new TubeValueCost(tubeValues, width) : new TubeValueCost(tubes);
+	}
 
-		return cost;
+	float tubeValueAt(final int x, final int y, final int z) {
+		return tubeValues != null ? tubeValues[z][y * width + x] : tubes.getValue(x, y, z);
 	}
 
 	@Override
-	protected void addingNode(final SearchNode n) {
-		if (tubeValues[n.z][n.y * width + n.x] > tubenessThreshold) {
-			final AutoPoint p = new AutoPoint(n.x, n.y, n.z);
+	protected void addingNode(final int x, final int y, final int z) {
+		if (tubeValueAt(x, y, z) > tubenessThreshold) {
+			final AutoPoint p = new AutoPoint(x, y, z);
 			destinations.add(p);
-		} else if (null != previousPathGraph.get(n.x, n.y, n.z)) {
-			final AutoPoint p = new AutoPoint(n.x, n.y, n.z);
+		} else if (null != previousPathGraph.get(x, y, z)) {
+			final AutoPoint p = new AutoPoint(x, y, z);
 			destinations.add(p);
 		}
 	}
@@ -113,7 +136,7 @@ public class AutoSearchThread extends SearchThread {
 	}
 
 	Path getPathBack(final int from_x, final int from_y, final int from_z) {
-		return nodes_as_image_from_start[from_z][from_y * width + from_x].asPath(x_spacing, y_spacing, z_spacing,
+		return search_from_start.asPath(SearchState.key(from_x, from_y, from_z), x_spacing, y_spacing, z_spacing,
 				spacing_units);
 	}
 
@@ -631,7 +631,7 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		final SearchThread sourceThread = (SearchThread) source;
 
 		// Just log how many nodes were explored in that time:
-		System.out.println("  " + (sourceThread.open_from_start.size() + sourceThread.closed_from_start.size())
+		System.out.println("  " + sourceThread.pointsConsideredInSearch()
 				+ " nodes in " + secondsSinceThreadStarted + " seconds");
 	}
 
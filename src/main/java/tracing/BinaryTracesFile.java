@@ -0,0 +1,368 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * A binary equivalent of the .traces XML format, which is much quicker to
+ * load when there are large fills.  The tables of paths and fills hold the
+ * same attributes as the XML elements (as strings, so nothing is lost
+ * either way), but the points and fill nodes are stored as columns of
+ * values which are memory-mapped as they're asked for.  The format is:
+ *
+ *   "SNTTRACE"
+ *   int version (VERSION)
+ *   int number of paths and number of fills
+ *   long offset of the tables
+ *   padding to HEADER_BYTES
+ *   the columns of each path: double xd, yd and zd of every point, then
+ *   tx, ty, tz and r if it has circles
+ *   the columns of each fill: double distance of every node, then int x,
+ *   y, z and previous, then a byte that's 1 if it's open, padded to a
+ *   multiple of 8 bytes
+ *   the tables:
+ *     the attributes of samplespacing and of imagesize
+ *     for each path, its attributes, int number of points, a byte that's
+ *     1 if it has circles and long offset of its columns
+ *     for each fill, its attributes, int number of nodes and long offset
+ *     of its columns
+ *
+ * Attributes are an int count and the name and value of each, and strings
+ * are an int length and the UTF-8 bytes.  Everything is big-endian.
+ */
+
+class BinaryTracesFile implements Closeable {
+
+	static final byte[] MAGIC = "SNTTRACE".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+
+	/* The columns of a path, in the order they're stored: */
+	static final int XD = 0, YD = 1, ZD = 2, TX = 3, TY = 4, TZ = 5, R = 6;
+
+	/* The int columns of a fill, in the order they're stored: */
+	static final int NODE_X = 0, NODE_Y = 1, NODE_Z = 2, NODE_PREVIOUS = 3;
+
+	final File file;
+	final RandomAccessFile raf;
+	final FileChannel channel;
+
+	/* The names and values of the attributes, in turn: */
+	final String[] sampleSpacing, imageSize;
+	final String[][] pathAttributes, fillAttributes;
+
+	final int[] pathPoints, fillNodes;
+	final boolean[] pathCircles;
+	final long[] pathOffsets, fillOffsets;
+
+	/* The whole file, if it's small enough to map at once: */
+	private MappedByteBuffer whole;
+
+	BinaryTracesFile(final File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		try {
+			final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(file + " isn't a binary traces file");
+			final int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException(file + " is version " + version + " of the binary traces format, not "
+						+ VERSION);
+			final int paths = header.getInt(), fills = header.getInt();
+			final long tablesOffset = header.getLong();
+
+			final ByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, tablesOffset,
+					channel.size() - tablesOffset);
+			sampleSpacing = getAttributes(tables);
+			imageSize = getAttributes(tables);
+			pathAttributes = new String[paths][];
+			pathPoints = new int[paths];
+			pathCircles = new boolean[paths];
+			pathOffsets = new long[paths];
+			for (int i = 0; i < paths; ++i) {
+				pathAttributes[i] = getAttributes(tables);
+				pathPoints[i] = tables.getInt();
+				pathCircles[i] = tables.get() != 0;
+				pathOffsets[i] = tables.getLong();
+			}
+			fillAttributes = new String[fills][];
+			fillNodes = new int[fills];
+			fillOffsets = new long[fills];
+			for (int i = 0; i < fills; ++i) {
+				fillAttributes[i] = getAttributes(tables);
+				fillNodes[i] = tables.getInt();
+				fillOffsets[i] = tables.getLong();
+			}
+		} catch (final IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	static boolean hasMagic(final byte[] start) {
+		return start.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(start, MAGIC.length), MAGIC);
+	}
+
+	private static String[] getAttributes(final ByteBuffer b) {
+		final String[] result = new String[2 * b.getInt()];
+		for (int i = 0; i < result.length; ++i) {
+			final byte[] bytes = new byte[b.getInt()];
+			b.get(bytes);
+			result[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return result;
+	}
+
+	int paths() {
+		return pathPoints.length;
+	}
+
+	int fills() {
+		return fillNodes.length;
+	}
+
+	/*
+	 * Map part of the file.  Mapping each column separately would be slow
+	 * with many small paths, so this is a view of the whole file unless
+	 * it's too big for one buffer:
+	 */
+
+	private ByteBuffer map(final long offset, final long bytes) throws IOException {
+		final long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+		synchronized (this) {
+			if (whole == null)
+				whole = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		final ByteBuffer b = whole.duplicate();
+		b.limit((int) (offset + bytes));
+		b.position((int) offset);
+		return b.slice();
+	}
+
+	/* One of the columns (XD to R) of a path, mapped from the file: */
+
+	DoubleBuffer pathColumn(final int path, final int column) throws IOException {
+		if (column > ZD && !pathCircles[path])
+			throw new IllegalArgumentException("Path " + path + " has no circles");
+		final long bytes = 8L * pathPoints[path];
+		return map(pathOffsets[path] + column * bytes, bytes).asDoubleBuffer();
+	}
+
+	DoubleBuffer fillDistances(final int fill) throws IOException {
+		final long nodes = fillNodes[fill];
+		return map(fillOffsets[fill], 8 * nodes).asDoubleBuffer();
+	}
+
+	/* One of the int columns (NODE_X to NODE_PREVIOUS) of a fill: */
+
+	IntBuffer fillColumn(final int fill, final int column) throws IOException {
+		final long nodes = fillNodes[fill];
+		return map(fillOffsets[fill] + 8 * nodes + column * 4 * nodes, 4 * nodes).asIntBuffer();
+	}
+
+	/* 1 for each open node of a fill, 0 for each closed one: */
+
+	ByteBuffer fillOpen(final int fill) throws IOException {
+		final long nodes = fillNodes[fill];
+		return map(fillOffsets[fill] + 24 * nodes, nodes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/* Buffers the values written to a channel, keeping track of the offset: */
+
+	static final class Output {
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		long offset;
+
+		Output(final FileChannel channel, final long offset) {
+			this.channel = channel;
+			this.offset = offset;
+		}
+
+		void make(final int bytes) throws IOException {
+			if (buffer.remaining() < bytes)
+				flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		void putInt(final int i) throws IOException {
+			make(4);
+			buffer.putInt(i);
+			offset += 4;
+		}
+
+		void putLong(final long l) throws IOException {
+			make(8);
+			buffer.putLong(l);
+			offset += 8;
+		}
+
+		void putByte(final byte b) throws IOException {
+			make(1);
+			buffer.put(b);
+			++offset;
+		}
+
+		void putDoubles(final double[] values) throws IOException {
+			for (final double v : values) {
+				make(8);
+				buffer.putDouble(v);
+			}
+			offset += 8L * values.length;
+		}
+
+		void putInts(final int[] values) throws IOException {
+			for (final int v : values) {
+				make(4);
+				buffer.putInt(v);
+			}
+			offset += 4L * values.length;
+		}
+
+		void putString(final String s) throws IOException {
+			final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			int done = 0;
+			while (done < bytes.length) {
+				make(1);
+				final int n = Math.min(buffer.remaining(), bytes.length - done);
+				buffer.put(bytes, done, n);
+				done += n;
+			}
+			offset += bytes.length;
+		}
+
+		void putAttributes(final String[] attributes) throws IOException {
+			putInt(attributes.length / 2);
+			for (final String s : attributes)
+				putString(s);
+		}
+
+		void align() throws IOException {
+			while (offset % 8 != 0)
+				putByte((byte) 0);
+		}
+	}
+
+	/* Write the paths and fills copied into snapshot to file: */
+
+	static void write(final TracesWriter snapshot, final File file) throws IOException {
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			channel.position(HEADER_BYTES);
+			final Output out = new Output(channel, HEADER_BYTES);
+
+			final long[] pathOffsets = new long[snapshot.paths.length];
+			for (int i = 0; i < snapshot.paths.length; ++i) {
+				final TracesWriter.PathCopy p = snapshot.paths[i];
+				pathOffsets[i] = out.offset;
+				out.putDoubles(p.xd);
+				out.putDoubles(p.yd);
+				out.putDoubles(p.zd);
+				if (p.r != null) {
+					out.putDoubles(p.tx);
+					out.putDoubles(p.ty);
+					out.putDoubles(p.tz);
+					out.putDoubles(p.r);
+				}
+			}
+
+			final long[] fillOffsets = new long[snapshot.fills.length];
+			for (int i = 0; i < snapshot.fills.length; ++i) {
+				final TracesWriter.FillCopy f = snapshot.fills[i];
+				fillOffsets[i] = out.offset;
+				out.putDoubles(f.distance);
+				out.putInts(f.x);
+				out.putInts(f.y);
+				out.putInts(f.z);
+				out.putInts(f.previous);
+				for (final boolean open : f.open)
+					out.putByte((byte) (open ? 1 : 0));
+				out.align();
+			}
+
+			final long tablesOffset = out.offset;
+			out.putAttributes(new String[] { "x", String.valueOf(snapshot.x_spacing), "y",
+					String.valueOf(snapshot.y_spacing), "z", String.valueOf(snapshot.z_spacing), "units",
+					String.valueOf(snapshot.spacing_units) });
+			out.putAttributes(new String[] { "width", String.valueOf(snapshot.width), "height",
+					String.valueOf(snapshot.height), "depth", String.valueOf(snapshot.depth) });
+			for (int i = 0; i < snapshot.paths.length; ++i) {
+				final TracesWriter.PathCopy p = snapshot.paths[i];
+				out.putAttributes(p.attributes);
+				out.putInt(p.xd.length);
+				out.putByte((byte) (p.r != null ? 1 : 0));
+				out.putLong(pathOffsets[i]);
+			}
+			for (int i = 0; i < snapshot.fills.length; ++i) {
+				final TracesWriter.FillCopy f = snapshot.fills[i];
+				out.putAttributes(f.attributes);
+				out.putInt(f.x.length);
+				out.putLong(fillOffsets[i]);
+			}
+			out.flush();
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(snapshot.paths.length);
+			header.putInt(snapshot.fills.length);
+			header.putLong(tablesOffset);
+			header.clear();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+		}
+	}
+}
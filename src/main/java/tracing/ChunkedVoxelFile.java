@@ -0,0 +1,404 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/*
+ * An image stored on disk in fixed-size chunks, so that a search can trace
+ * in an image that is too large for the heap: only the chunks that the
+ * search reaches are read, and they are kept in memory up to a budget,
+ * after which the least recently used are dropped (and read again if
+ * they're needed again).  Chunks are read with RandomAccessFile rather
+ * than a FileChannel: mapping each one would leave the mappings around
+ * until they're garbage collected, and a FileChannel is closed for good if
+ * the thread reading it is interrupted, which searches do to wake
+ * themselves up.
+ *
+ * Write one with write(), which reads the source image a few slices at a
+ * time, so it works with virtual stacks that are larger than the heap too.
+ *
+ * Every chunk is the same size (those at the edges are padded), so the
+ * offset of each one is fixed and no index is needed.  The format is:
+ *
+ *   "SNTVOXL1"
+ *   int width, height, depth, type (ImagePlus.GRAY8, GRAY16 or GRAY32)
+ *   int chunk width, height and depth (each a power of two)
+ *   double pixel width, height and depth
+ *   float minimum and maximum value
+ *   short length and the UTF-8 bytes of the calibration unit
+ *   padding to HEADER_BYTES
+ *   the chunks (z, then y, then x outermost), each as big-endian values
+ *   row by row and slice by slice
+ */
+
+public class ChunkedVoxelFile implements VoxelSource, Closeable {
+
+	static final boolean verbose = SimpleNeuriteTracer.verbose;
+
+	static final byte[] MAGIC = "SNTVOXL1".getBytes(StandardCharsets.US_ASCII);
+	static final int HEADER_BYTES = 256;
+
+	static final int DEFAULT_CHUNK_SIZE = 64;
+	static final int DEFAULT_CHUNK_DEPTH = 16;
+
+	final File file;
+	final int width, height, depth, type;
+	final int chunkBitsX, chunkBitsY, chunkBitsZ;
+	final int chunksX, chunksY, chunksZ;
+	final int bytesPerVoxel;
+	final int chunkBytes;
+	final float min, max;
+	final Calibration calibration;
+
+	/* Only read while synchronized, with buffer to read each chunk into: */
+	final RandomAccessFile raf;
+	final byte[] buffer;
+
+	static final class Chunk {
+		final int index;
+		final byte[] b;
+		final short[] s;
+		final float[] f;
+
+		/* Set when the chunk is used, and cleared as it comes round for eviction: */
+		volatile boolean used;
+
+		Chunk(final int index, final byte[] b, final short[] s, final float[] f) {
+			this.index = index;
+			this.b = b;
+			this.s = s;
+			this.f = f;
+		}
+	}
+
+	final AtomicReferenceArray<Chunk> chunks;
+
+	/* The chunks in memory, in the order they were read; only changed while synchronized: */
+	final ArrayDeque<Chunk> loaded = new ArrayDeque<>();
+	long memoryBudget;
+	long bytesLoaded;
+
+	public ChunkedVoxelFile(final File file, final long memoryBudget) throws IOException {
+		this.file = file;
+		this.memoryBudget = memoryBudget;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			final byte[] headerBytes = new byte[HEADER_BYTES];
+			raf.readFully(headerBytes);
+			final ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(file + " isn't a chunked voxel file");
+			width = header.getInt();
+			height = header.getInt();
+			depth = header.getInt();
+			type = header.getInt();
+			final int chunkWidth = header.getInt(), chunkHeight = header.getInt(), chunkDepth = header.getInt();
+			calibration = new Calibration();
+			calibration.pixelWidth = header.getDouble();
+			calibration.pixelHeight = header.getDouble();
+			calibration.pixelDepth = header.getDouble();
+			min = header.getFloat();
+			max = header.getFloat();
+			final byte[] unit = new byte[header.getShort()];
+			header.get(unit);
+			calibration.setUnit(new String(unit, StandardCharsets.UTF_8));
+
+			if (Integer.bitCount(chunkWidth) != 1 || Integer.bitCount(chunkHeight) != 1
+					|| Integer.bitCount(chunkDepth) != 1)
+				throw new IOException("The chunk size in " + file + " isn't a power of two");
+			chunkBitsX = Integer.numberOfTrailingZeros(chunkWidth);
+			chunkBitsY = Integer.numberOfTrailingZeros(chunkHeight);
+			chunkBitsZ = Integer.numberOfTrailingZeros(chunkDepth);
+			chunksX = (width + chunkWidth - 1) >> chunkBitsX;
+			chunksY = (height + chunkHeight - 1) >> chunkBitsY;
+			chunksZ = (depth + chunkDepth - 1) >> chunkBitsZ;
+			bytesPerVoxel = bytesPerVoxel(type);
+			chunkBytes = chunkWidth * chunkHeight * chunkDepth * bytesPerVoxel;
+			final long expected = HEADER_BYTES + (long) chunksX * chunksY * chunksZ * chunkBytes;
+			if (raf.length() < expected)
+				throw new IOException(file + " is too short: " + raf.length() + " bytes rather than " + expected);
+			chunks = new AtomicReferenceArray<>(chunksX * chunksY * chunksZ);
+			buffer = new byte[chunkBytes];
+		} catch (final IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+		if (verbose)
+			SNT.log("Opened " + file + ": " + width + "x" + height + "x" + depth + " in "
+					+ (chunksX * chunksY * chunksZ) + " chunks");
+	}
+
+	static int bytesPerVoxel(final int type) {
+		switch (type) {
+		case ImagePlus.GRAY8:
+			return 1;
+		case ImagePlus.GRAY16:
+			return 2;
+		case ImagePlus.GRAY32:
+			return 4;
+		default:
+			throw new IllegalArgumentException("Only 8, 16 and 32 bit images can be chunked (type " + type + ")");
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	@Override
+	public float getMin() {
+		return min;
+	}
+
+	@Override
+	public float getMax() {
+		return max;
+	}
+
+	@Override
+	public float getValue(final int x, final int y, final int z) {
+		final int index = ((z >> chunkBitsZ) * chunksY + (y >> chunkBitsY)) * chunksX + (x >> chunkBitsX);
+		Chunk chunk = chunks.get(index);
+		if (chunk == null)
+			chunk = load(index);
+		else if (!chunk.used)
+			chunk.used = true;
+		final int i = ((((z & ((1 << chunkBitsZ) - 1)) << chunkBitsY) | (y & ((1 << chunkBitsY) - 1))) << chunkBitsX)
+				| (x & ((1 << chunkBitsX) - 1));
+		if (chunk.b != null)
+			return chunk.b[i] & 0xFF;
+		if (chunk.s != null)
+			return chunk.s[i] & 0xFFFF;
+		return chunk.f[i];
+	}
+
+	private synchronized Chunk load(final int index) {
+		Chunk chunk = chunks.get(index);
+		if (chunk != null)
+			return chunk;
+		try {
+			raf.seek(HEADER_BYTES + (long) index * chunkBytes);
+			raf.readFully(buffer);
+			final ByteBuffer read = ByteBuffer.wrap(buffer);
+			final int voxels = chunkBytes / bytesPerVoxel;
+			switch (type) {
+			case ImagePlus.GRAY8: {
+				final byte[] b = new byte[voxels];
+				read.get(b);
+				chunk = new Chunk(index, b, null, null);
+				break;
+			}
+			case ImagePlus.GRAY16: {
+				final short[] s = new short[voxels];
+				read.asShortBuffer().get(s);
+				chunk = new Chunk(index, null, s, null);
+				break;
+			}
+			default: {
+				final float[] f = new float[voxels];
+				read.asFloatBuffer().get(f);
+				chunk = new Chunk(index, null, null, f);
+				break;
+			}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException("Couldn't read chunk " + index + " of " + file, e);
+		}
+		evict(memoryBudget - chunkBytes);
+		loaded.add(chunk);
+		bytesLoaded += chunkBytes;
+		chunks.set(index, chunk);
+		return chunk;
+	}
+
+	/*
+	 * Drop chunks until no more than budget bytes are loaded, giving any
+	 * that have been used since they last came round a second chance (an
+	 * approximation to dropping the least recently used).
+	 */
+
+	private void evict(final long budget) {
+		while (bytesLoaded > budget && !loaded.isEmpty()) {
+			final Chunk oldest = loaded.poll();
+			if (oldest.used) {
+				oldest.used = false;
+				loaded.add(oldest);
+				continue;
+			}
+			chunks.set(oldest.index, null);
+			bytesLoaded -= chunkBytes;
+		}
+	}
+
+	public synchronized void setMemoryBudget(final long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		evict(memoryBudget);
+	}
+
+	public synchronized long bytesInMemory() {
+		return bytesLoaded;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		raf.close();
+	}
+
+	/* Write image to file in chunks of the default size: */
+
+	public static void write(final ImagePlus image, final File file) throws IOException {
+		write(image, file, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_DEPTH);
+	}
+
+	public static void write(final ImagePlus image, final File file, final int chunkWidth, final int chunkHeight,
+			final int chunkDepth) throws IOException {
+
+		if (Integer.bitCount(chunkWidth) != 1 || Integer.bitCount(chunkHeight) != 1
+				|| Integer.bitCount(chunkDepth) != 1)
+			throw new IllegalArgumentException("The chunk size must be a power of two in each dimension");
+
+		final int type = image.getType() == ImagePlus.COLOR_256 ? ImagePlus.GRAY8 : image.getType();
+		final int bytesPerVoxel = bytesPerVoxel(type);
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int depth = image.getStackSize();
+		final int chunksX = (width + chunkWidth - 1) / chunkWidth;
+		final int chunksY = (height + chunkHeight - 1) / chunkHeight;
+		final int chunksZ = (depth + chunkDepth - 1) / chunkDepth;
+		final int chunkBytes = chunkWidth * chunkHeight * chunkDepth * bytesPerVoxel;
+		final ImageStack stack = image.getStack();
+
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			final ByteBuffer chunk = ByteBuffer.allocate(chunkBytes);
+			final Object[] slices = new Object[chunkDepth];
+
+			for (int cz = 0; cz < chunksZ; ++cz) {
+
+				// Only this many slices are needed at once:
+				Arrays.fill(slices, null);
+				for (int dz = 0; dz < chunkDepth && cz * chunkDepth + dz < depth; ++dz)
+					slices[dz] = stack.getPixels(cz * chunkDepth + dz + 1);
+
+				for (int cy = 0; cy < chunksY; ++cy)
+					for (int cx = 0; cx < chunksX; ++cx) {
+						chunk.clear();
+						for (int dz = 0; dz < chunkDepth; ++dz)
+							for (int dy = 0; dy < chunkHeight; ++dy)
+								for (int dx = 0; dx < chunkWidth; ++dx) {
+									final int x = cx * chunkWidth + dx, y = cy * chunkHeight + dy;
+									final Object pixels = slices[dz];
+									final boolean inside = pixels != null && x < width && y < height;
+									final int i = y * width + x;
+									final float v;
+									switch (type) {
+									case ImagePlus.GRAY8:
+										final byte b = inside ? ((byte[]) pixels)[i] : 0;
+										chunk.put(b);
+										v = b & 0xFF;
+										break;
+									case ImagePlus.GRAY16:
+										final short s = inside ? ((short[]) pixels)[i] : 0;
+										chunk.putShort(s);
+										v = s & 0xFFFF;
+										break;
+									default:
+										v = inside ? ((float[]) pixels)[i] : 0;
+										chunk.putFloat(v);
+										break;
+									}
+									if (inside) {
+										min = Math.min(min, v);
+										max = Math.max(max, v);
+									}
+								}
+						chunk.flip();
+						writeFully(channel, chunk,
+								HEADER_BYTES + (long) ((cz * chunksY + cy) * chunksX + cx) * chunkBytes);
+					}
+			}
+
+			// The header goes last, so that a file that wasn't finished
+			// can't be opened:
+			final Calibration calibration = image.getCalibration();
+			final byte[] unit = calibration.getUnit().getBytes(StandardCharsets.UTF_8);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.put(MAGIC).putInt(width).putInt(height).putInt(depth).putInt(type).putInt(chunkWidth)
+					.putInt(chunkHeight).putInt(chunkDepth).putDouble(calibration.pixelWidth)
+					.putDouble(calibration.pixelHeight).putDouble(calibration.pixelDepth).putFloat(min).putFloat(max)
+					.putShort((short) Math.min(unit.length, 128)).put(unit, 0, Math.min(unit.length, 128));
+			header.clear();
+			writeFully(channel, header, 0);
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+}
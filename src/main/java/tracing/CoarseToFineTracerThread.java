@@ -0,0 +1,164 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import features.ComputeCurvatures;
+
+/*
+ * A TracerThread that first finds a rough route at a coarse level of an
+ * ImagePyramid, and then only searches the full resolution image in a
+ * corridor around that route, so that the number of points searched grows
+ * with the length of the path rather than with the volume of the ellipsoid
+ * that an A* search between distant points fills.
+ *
+ * The level used is the coarsest at which the end points are still at
+ * least COARSE_STEPS voxels apart; if they're closer than that at level 1
+ * this is just a TracerThread.  If the search in the corridor runs out of
+ * points without finding the goal, the corridor is doubled in width and
+ * the search started again, until in the end the whole image is searched.
+ *
+ * The path found is the best one within the corridor, which isn't
+ * necessarily the best in the whole image.
+ */
+
+public class CoarseToFineTracerThread extends TracerThread {
+
+	static final int COARSE_STEPS = 32;
+
+	/* The initial radius of the corridor, in coarse voxels: */
+	static final int CORRIDOR_RADIUS = 2;
+
+	final ImagePyramid pyramid;
+
+	volatile TracerThread coarseSearch;
+
+	/* Set when the search in the corridor fails, rather than reporting that: */
+	boolean corridorExhausted;
+
+	public CoarseToFineTracerThread(final ImagePyramid pyramid, final float stackMin, final float stackMax,
+			final int timeoutSeconds, final long reportEveryMilliseconds, final int start_x, final int start_y,
+			final int start_z, final int goal_x, final int goal_y, final int goal_z, final boolean reciprocal,
+			final boolean singleSlice, final ComputeCurvatures hessian, final double multiplier,
+			final float[][] tubeness, final boolean useHessian) {
+
+		super(pyramid.image, stackMin, stackMax, timeoutSeconds, reportEveryMilliseconds, start_x, start_y, start_z,
+				goal_x, goal_y, goal_z, reciprocal, singleSlice, hessian, multiplier, tubeness, useHessian);
+
+		this.pyramid = pyramid;
+	}
+
+	@Override
+	public void run() {
+
+		// The timeout covers the coarse search and every round in the
+		// corridor, since each call to super.run() carries on from here:
+		starting();
+
+		corridor = coarseCorridor();
+
+		while (true) {
+
+			if (getThreadStatus() == STOPPING) {
+				setExitReason(CANCELLED);
+				reportFinished(false);
+				return;
+			}
+
+			corridorExhausted = false;
+			super.run();
+			if (!corridorExhausted)
+				return;
+
+			corridor = corridor.widened();
+			if (verbose)
+				SNT.log("No route in the corridor, widening it to "
+						+ (corridor == null ? "the whole image" : corridor.radius + " voxels"));
+
+			search_from_start = new SearchState(width, height, depth, OPEN_FROM_START, CLOSED_FROM_START);
+			if (bidirectional)
+				search_from_goal = new SearchState(width, height, depth, OPEN_FROM_GOAL, CLOSED_FROM_GOAL);
+			addEndPoints();
+		}
+	}
+
+	/*
+	 * Search at the coarse level, returning a corridor around the route
+	 * found there, or null if the whole image should be searched.
+	 */
+
+	Corridor coarseCorridor() {
+
+		final int level = pyramid.levelFor(goal_x - start_x, goal_y - start_y, goal_z - start_z, COARSE_STEPS);
+		if (level == 0)
+			return null;
+
+		final ImagePyramid.Level coarse = pyramid.level(level);
+
+		// Tubeness can only be used at the coarse level if it has all
+		// been computed; otherwise the intensities have to do.  (The
+		// pyramid keeps it once it has been downsampled.)
+		final TubenessGenerator generator = tubenessGenerator;
+		final float[][] coarseTubeness = useHessian && tubeness != null
+				&& (generator == null || generator.isFinished()) ? pyramid.tubeness(level, tubeness) : null;
+
+		final TracerThread search = new TracerThread(coarse.image, stackMin, stackMax, 0, // timeoutSeconds
+				0, // reportEveryMilliseconds
+				start_x >> coarse.shiftXY, start_y >> coarse.shiftXY, start_z >> coarse.shiftZ,
+				goal_x >> coarse.shiftXY, goal_y >> coarse.shiftXY, goal_z >> coarse.shiftZ, reciprocal, singleSlice,
+				null, multiplier, coarseTubeness, coarseTubeness != null);
+		coarseSearch = search;
+		if (getThreadStatus() == STOPPING)
+			search.requestStop();
+		search.run();
+		coarseSearch = null;
+
+		final Path route = search.getResult();
+		if (route == null)
+			return null;
+		if (verbose)
+			SNT.log("Found a route of " + route.size() + " points at level " + level + " after searching "
+					+ search.pointsConsideredInSearch() + " points");
+
+		return Corridor.around(route, coarse, width, height, depth, CORRIDOR_RADIUS << coarse.shiftXY);
+	}
+
+	@Override
+	public void requestStop() {
+		super.requestStop();
+		final TracerThread search = coarseSearch;
+		if (search != null)
+			search.requestStop();
+	}
+
+	@Override
+	public void reportFinished(final boolean success) {
+		if (!success && corridor != null && getExitReason() == POINTS_EXHAUSTED) {
+			corridorExhausted = true;
+			return;
+		}
+		super.reportFinished(success);
+	}
+}
@@ -0,0 +1,137 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * For every point of the paths in one PathAndFillManager, the corresponding
+ * point on the paths of another (as found by nearestPointOnAnyPath()) or
+ * null if there's none, with some statistics about how well they match.
+ * The points are looked up in several threads, all using the other
+ * manager's PathPointIndex, which is brought up to date first.
+ */
+
+public class Correspondences {
+
+	/* In the order of PathAndFillManager.allPointsIterator(): */
+	protected final ArrayList<NearPoint> nearPoints;
+
+	protected int matched;
+	protected double meanDistance;
+	protected double maxDistance;
+
+	public Correspondences(final PathAndFillManager from, final PathAndFillManager to, final double distanceLimit) {
+
+		final List<PointInImage> points = new ArrayList<>();
+		final PathAndFillManager.AllPointsIterator i = from.allPointsIterator();
+		while (i.hasNext())
+			points.add(i.next());
+
+		to.pointIndex.update();
+
+		final NearPoint[] found = new NearPoint[points.size()];
+		final int processors = Runtime.getRuntime().availableProcessors();
+		final int chunks = Math.max(1, Math.min(processors * 4, points.size() / 256));
+		final List<Callable<Void>> tasks = new ArrayList<>(chunks);
+		for (int c = 0; c < chunks; ++c) {
+			final int first = (int) ((long) points.size() * c / chunks);
+			final int last = (int) ((long) points.size() * (c + 1) / chunks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int j = first; j < last; ++j) {
+						final PointInImage p = points.get(j);
+						found[j] = to.pointIndex.search(p.x, p.y, p.z, distanceLimit);
+					}
+					return null;
+				}
+			});
+		}
+
+		final ExecutorService es = Executors.newFixedThreadPool(Math.min(processors, chunks));
+		try {
+			for (final Future<Void> future : es.invokeAll(tasks))
+				future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while finding correspondences", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Finding correspondences failed", e.getCause());
+		} finally {
+			es.shutdown();
+		}
+
+		nearPoints = new ArrayList<>(found.length);
+		double totalDistance = 0;
+		for (final NearPoint np : found) {
+			nearPoints.add(np);
+			if (np == null)
+				continue;
+			final double d = np.distanceToPathNearPoint();
+			++matched;
+			totalDistance += d;
+			maxDistance = Math.max(maxDistance, d);
+		}
+		meanDistance = matched == 0 ? 0 : totalDistance / matched;
+	}
+
+	public ArrayList<NearPoint> getNearPoints() {
+		return nearPoints;
+	}
+
+	/* The number of points that there was a corresponding point for: */
+
+	public int getMatched() {
+		return matched;
+	}
+
+	public int getUnmatched() {
+		return nearPoints.size() - matched;
+	}
+
+	/* The mean and maximum distances to the corresponding points: */
+
+	public double getMeanDistance() {
+		return meanDistance;
+	}
+
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	@Override
+	public String toString() {
+		return "" + matched + " of " + nearPoints.size() + " points matched, mean distance " + meanDistance
+				+ ", maximum distance " + maxDistance;
+	}
+}
@@ -0,0 +1,114 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/*
+ * The part of an image that a search is restricted to (see
+ * SearchThread.setCorridor()): every voxel within radius voxels of a route
+ * found at a coarser level of an ImagePyramid.  Each coarse voxel covers a
+ * block of (1 << shiftXY) x (1 << shiftXY) x (1 << shiftZ) voxels of the
+ * image, so checking whether a voxel is in the corridor is just a lookup in
+ * a mask of the coarse voxels.
+ */
+
+class Corridor {
+
+	final int shiftXY;
+	final int shiftZ;
+	final int radius;
+
+	/* The coarse voxels of the route: */
+	final int[] routeX;
+	final int[] routeY;
+	final int[] routeZ;
+
+	final int coarseWidth;
+	final int coarseHeight;
+	final int coarseDepth;
+
+	final boolean[] inside;
+
+	Corridor(final int[] routeX, final int[] routeY, final int[] routeZ, final int shiftXY, final int shiftZ,
+			final int width, final int height, final int depth, final int radius) {
+
+		this.routeX = routeX;
+		this.routeY = routeY;
+		this.routeZ = routeZ;
+		this.shiftXY = shiftXY;
+		this.shiftZ = shiftZ;
+		this.radius = radius;
+
+		coarseWidth = ((width - 1) >> shiftXY) + 1;
+		coarseHeight = ((height - 1) >> shiftXY) + 1;
+		coarseDepth = ((depth - 1) >> shiftZ) + 1;
+		inside = new boolean[coarseWidth * coarseHeight * coarseDepth];
+
+		// The radius is in voxels of the image, so round it up to coarse
+		// voxels (which are deeper than they are wide if shiftZ is less):
+		final int rXY = (radius + (1 << shiftXY) - 1) >> shiftXY;
+		final int rZ = (radius + (1 << shiftZ) - 1) >> shiftZ;
+
+		for (int i = 0; i < routeX.length; ++i) {
+			final int x0 = Math.max(0, routeX[i] - rXY), x1 = Math.min(coarseWidth - 1, routeX[i] + rXY);
+			final int y0 = Math.max(0, routeY[i] - rXY), y1 = Math.min(coarseHeight - 1, routeY[i] + rXY);
+			final int z0 = Math.max(0, routeZ[i] - rZ), z1 = Math.min(coarseDepth - 1, routeZ[i] + rZ);
+			for (int z = z0; z <= z1; ++z)
+				for (int y = y0; y <= y1; ++y) {
+					final int row = (z * coarseHeight + y) * coarseWidth;
+					for (int x = x0; x <= x1; ++x)
+						inside[row + x] = true;
+				}
+		}
+	}
+
+	/* A corridor from the route of a search at one level of an ImagePyramid: */
+
+	static Corridor around(final Path coarseRoute, final ImagePyramid.Level level, final int width,
+			final int height, final int depth, final int radius) {
+		final int n = coarseRoute.size();
+		final int[] x = new int[n], y = new int[n], z = new int[n];
+		for (int i = 0; i < n; ++i) {
+			x[i] = coarseRoute.getXUnscaled(i);
+			y[i] = coarseRoute.getYUnscaled(i);
+			z[i] = coarseRoute.getZUnscaled(i);
+		}
+		return new Corridor(x, y, z, level.shiftXY, level.shiftZ, width, height, depth, radius);
+	}
+
+	boolean contains(final int x, final int y, final int z) {
+		return inside[((z >> shiftZ) * coarseHeight + (y >> shiftXY)) * coarseWidth + (x >> shiftXY)];
+	}
+
+	/* The corridor twice as wide, or null if that would cover the whole image: */
+
+	Corridor widened() {
+		final int wider = radius * 2;
+		if ((wider >> shiftXY) >= Math.max(coarseWidth, coarseHeight) && (wider >> shiftZ) >= coarseDepth)
+			return null;
+		return new Corridor(routeX, routeY, routeZ, shiftXY, shiftZ, coarseWidth << shiftXY,
+				coarseHeight << shiftXY, coarseDepth << shiftZ, wider);
+	}
+}
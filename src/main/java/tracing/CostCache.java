@@ -0,0 +1,332 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.ImagePlus;
+
+/*
+ * A cache of the per-voxel cost of moving to each point (as given by a
+ * search's CostFunction) so that successive searches in the same image
+ * with the same cost function don't have to recompute them.  The costs are
+ * kept as doubles (exactly as the search would have worked them out) in
+ * one Volume per (image, metric, sigma, multiplier), and each Volume is
+ * filled lazily one TILE_SIZE x TILE_SIZE tile of a slice at a time, the
+ * first time that any search asks for a voxel in that tile.
+ *
+ * The total size of the tiles in all the volumes, and of the tables that
+ * point to them, is kept under a memory budget by discarding the least
+ * recently used tiles first; a discarded tile is simply recomputed if it's
+ * needed again.
+ *
+ * Searches in different threads may share a Volume.
+ */
+
+public class CostCache {
+
+	static final int TILE_BITS = SearchState.TILE_BITS;
+	static final int TILE_SIZE = 1 << TILE_BITS;
+	static final int TILE_MASK = TILE_SIZE - 1;
+	static final int TILE_BYTES = 8 * TILE_SIZE * TILE_SIZE + 64;
+
+	/*
+	 * What determines the costs in a volume.  The metric should describe
+	 * the cost function along with anything else that it depends on (such
+	 * as the range that 16 and 32 bit values are scaled from); sigma and
+	 * multiplier are only significant for Hessian-based costs.
+	 */
+
+	static class Key {
+
+		/* An ImagePlus or a VoxelSource: */
+		final Object image;
+		final String metric;
+		final double sigma;
+		final double multiplier;
+
+		Key(final Object image, final String metric, final double sigma, final double multiplier) {
+			this.image = image;
+			this.metric = metric;
+			this.sigma = sigma;
+			this.multiplier = multiplier;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key))
+				return false;
+			final Key k = (Key) o;
+			return image == k.image && metric.equals(k.metric) && Double.compare(sigma, k.sigma) == 0
+					&& Double.compare(multiplier, k.multiplier) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = System.identityHashCode(image);
+			h = 31 * h + metric.hashCode();
+			h = 31 * h + Double.valueOf(sigma).hashCode();
+			h = 31 * h + Double.valueOf(multiplier).hashCode();
+			return h;
+		}
+	}
+
+	/*
+	 * The costs of one tile.  lastUsed is the value of the cache's clock
+	 * when a search last looked in the tile; it's only a hint for
+	 * eviction, so it's read and written without locking.
+	 */
+
+	static class CachedTile {
+		final Volume volume;
+		final int z;
+		final int t;
+		final double[] costs;
+		int lastUsed;
+
+		CachedTile(final Volume volume, final int z, final int t, final double[] costs) {
+			this.volume = volume;
+			this.z = z;
+			this.t = t;
+			this.costs = costs;
+		}
+	}
+
+	public class Volume {
+
+		final Key key;
+		final int width;
+		final int height;
+		final int depth;
+		final int tilesX;
+		final int tilesY;
+
+		/*
+		 * The tiles of each slice, or null if none is cached; the tables
+		 * are only created and removed with the cache's lock held.
+		 */
+		final AtomicReferenceArray<AtomicReferenceArray<CachedTile>> slices;
+		final int[] tilesInSlice;
+		final long tableBytes;
+
+		Volume(final Key key, final int width, final int height, final int depth) {
+			this.key = key;
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			tilesX = (width + TILE_MASK) >> TILE_BITS;
+			tilesY = (height + TILE_MASK) >> TILE_BITS;
+			slices = new AtomicReferenceArray<>(depth);
+			tilesInSlice = new int[depth];
+			tableBytes = 16 + 4L * tilesX * tilesY;
+		}
+
+		/*
+		 * The cost at (x, y, z), using source's costs to fill in the
+		 * whole tile that it's in if that hasn't been done yet.
+		 */
+
+		public double cost(final int x, final int y, final int z, final SearchThread source) {
+			final AtomicReferenceArray<CachedTile> slice = slices.get(z);
+			final int t = (y >> TILE_BITS) * tilesX + (x >> TILE_BITS);
+			CachedTile tile = (slice == null) ? null : slice.get(t);
+			if (tile == null)
+				tile = fill(z, t, source);
+			else if (tile.lastUsed != clock)
+				tile.lastUsed = clock;
+			return tile.costs[((y & TILE_MASK) << TILE_BITS) | (x & TILE_MASK)];
+		}
+
+		private CachedTile fill(final int z, final int t, final SearchThread source) {
+			final double[] tile = new double[TILE_SIZE * TILE_SIZE];
+			final int x0 = (t % tilesX) << TILE_BITS;
+			final int y0 = (t / tilesX) << TILE_BITS;
+			final int x1 = Math.min(x0 + TILE_SIZE, width);
+			final int y1 = Math.min(y0 + TILE_SIZE, height);
+			final double[] costs = new double[(x1 - x0) * (y1 - y0)];
+			source.costsOf(x0, y0, z, x1 - x0, y1 - y0, costs);
+			for (int y = y0, k = 0; y < y1; ++y)
+				for (int x = x0; x < x1; ++x)
+					tile[((y - y0) << TILE_BITS) | (x - x0)] = costs[k++];
+			return added(this, z, t, tile);
+		}
+	}
+
+	long memoryBudget;
+	long bytesUsed;
+
+	/*
+	 * Incremented for each tile added, to record when tiles were last
+	 * used.  It's only changed with the lock held, but searches read it
+	 * without one; a stale value just makes a tile look a little older.
+	 */
+	int clock;
+
+	final Map<Key, Volume> volumes = new HashMap<>();
+
+	/* The tiles of all the volumes, in no particular order: */
+
+	List<CachedTile> tiles = new ArrayList<>();
+
+	/* The maximum number of bytes of costs to keep, over all volumes: */
+
+	public CostCache(final long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public synchronized void setMemoryBudget(final long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		evict();
+	}
+
+	public synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public synchronized long bytesUsed() {
+		return bytesUsed;
+	}
+
+	/*
+	 * Find the volume of costs for this image and cost function, creating an
+	 * empty one if there isn't one already.
+	 */
+
+	public Volume volume(final ImagePlus image, final String metric, final double sigma, final double multiplier) {
+		return volume(image, image.getWidth(), image.getHeight(), image.getStackSize(), metric, sigma, multiplier);
+	}
+
+	public Volume volume(final VoxelSource voxels, final String metric, final double sigma,
+			final double multiplier) {
+		return volume(voxels, voxels.getWidth(), voxels.getHeight(), voxels.getDepth(), metric, sigma, multiplier);
+	}
+
+	private synchronized Volume volume(final Object image, final int width, final int height, final int depth,
+			final String metric, final double sigma, final double multiplier) {
+		final Key key = new Key(image, metric, sigma, multiplier);
+		Volume v = volumes.get(key);
+		if (v == null) {
+			v = new Volume(key, width, height, depth);
+			volumes.put(key, v);
+		}
+		return v;
+	}
+
+	/* Forget all the costs for this image, e.g. if its pixels have changed: */
+
+	public synchronized void clear(final Object image) {
+		for (final Iterator<Key> i = volumes.keySet().iterator(); i.hasNext();)
+			if (i.next().image == image)
+				i.remove();
+		final List<CachedTile> kept = new ArrayList<>();
+		for (final CachedTile c : tiles) {
+			if (c.volume.key.image == image)
+				discard(c);
+			else
+				kept.add(c);
+		}
+		tiles = kept;
+	}
+
+	public synchronized void clear() {
+		volumes.clear();
+		for (final CachedTile c : tiles)
+			discard(c);
+		tiles = new ArrayList<>();
+	}
+
+	/*
+	 * Store a tile that has just been worked out, unless another thread got
+	 * there first, and return the one that's in the volume.
+	 */
+
+	synchronized CachedTile added(final Volume v, final int z, final int t, final double[] costs) {
+		AtomicReferenceArray<CachedTile> slice = v.slices.get(z);
+		if (slice == null) {
+			slice = new AtomicReferenceArray<>(v.tilesX * v.tilesY);
+			v.slices.set(z, slice);
+			bytesUsed += v.tableBytes;
+		}
+		CachedTile tile = slice.get(t);
+		if (tile == null) {
+			tile = new CachedTile(v, z, t, costs);
+			slice.set(t, tile);
+			++v.tilesInSlice[z];
+			tiles.add(tile);
+			bytesUsed += TILE_BYTES;
+		}
+		tile.lastUsed = ++clock;
+		evict();
+		return tile;
+	}
+
+	/* Remove a tile from its volume, and the slice's table if it's empty: */
+
+	private void discard(final CachedTile c) {
+		final Volume v = c.volume;
+		v.slices.get(c.z).set(c.t, null);
+		bytesUsed -= TILE_BYTES;
+		if (--v.tilesInSlice[c.z] == 0) {
+			v.slices.set(c.z, null);
+			bytesUsed -= v.tableBytes;
+		}
+	}
+
+	/*
+	 * If the budget has been exceeded, discard the least recently used
+	 * tiles until it's down to 7/8 of the budget, so that the tiles are only
+	 * sorted once for every few thousand added.
+	 */
+
+	private void evict() {
+		if (bytesUsed <= memoryBudget)
+			return;
+		final int n = tiles.size();
+		// Sort on a copy of the times, since searches may change them:
+		final long[] byAge = new long[n];
+		for (int i = 0; i < n; ++i)
+			byAge[i] = ((long) tiles.get(i).lastUsed << 32) | i;
+		Arrays.sort(byAge);
+		final long target = memoryBudget - memoryBudget / 8;
+		final boolean[] discarded = new boolean[n];
+		for (int i = 0; i < n && bytesUsed > target; ++i) {
+			final int index = (int) byAge[i];
+			discard(tiles.get(index));
+			discarded[index] = true;
+		}
+		final List<CachedTile> kept = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i)
+			if (!discarded[i])
+				kept.add(tiles.get(i));
+		tiles = kept;
+	}
+}
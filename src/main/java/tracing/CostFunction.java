@@ -0,0 +1,71 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/*
+ * The cost of moving to each voxel of an image, not taking into account
+ * the length of the step there (which the search multiplies it by).  A
+ * search asks for the costs of all the neighbours of a point that it's
+ * expanding in one call, and a CostCache asks for a whole tile at a time,
+ * so an implementation can work out where its data is once per call and
+ * then run a tight loop over the voxels.
+ *
+ * The intensity (IntensityCost) and Hessian (TubenessCost) costs used by
+ * TracerThread and the tubeness costs used by AutoSearchThread
+ * (TubeValueCost) are implementations of this; others can be given to a
+ * search with SearchThread.setCostFunction().  The costs should be > 0 and
+ * the methods may be called from several threads at once.
+ */
+
+public interface CostFunction {
+
+	/* The cost of moving to (x, y, z): */
+
+	public double cost(int x, int y, int z);
+
+	/*
+	 * Put the cost of moving to each of the n points (xs[i], ys[i], zs[i])
+	 * in costs[i].
+	 */
+
+	public void costs(int n, int[] xs, int[] ys, int[] zs, double[] costs);
+
+	/*
+	 * Put the costs of the width x height block of slice z from (x0, y0)
+	 * in costs, row by row.
+	 */
+
+	public void costs(int x0, int y0, int z, int width, int height, double[] costs);
+
+	/*
+	 * A description of the costs for looking them up in a CostCache: two
+	 * cost functions for the same image (and sigma and multiplier) with
+	 * the same metric must have the same costs.  This is null if the costs
+	 * shouldn't be cached, e.g. because they're already cheap.
+	 */
+
+	public String metric();
+}
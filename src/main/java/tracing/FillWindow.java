@@ -89,6 +89,7 @@ public class FillWindow extends JFrame
 	protected JButton view3D;
 	protected JCheckBox maskNotReal;
 	protected JCheckBox transparent;
+	protected JCheckBox boundFill;
 
 	protected boolean currentlyFilling = true;
 	protected JButton pauseOrRestartFilling;
@@ -263,6 +264,11 @@ public class FillWindow extends JFrame
 			cf.gridy++;
 			fillingOptionsPanel.add(transparent, cf);
 
+			boundFill = new JCheckBox("Only explore up to the threshold (faster)");
+			boundFill.addItemListener(this);
+			cf.gridy++;
+			fillingOptionsPanel.add(boundFill, cf);
+
 			view3D = new JButton("Create Image Stack from Fill");
 			view3D.addActionListener(this);
 			cf.insets = new Insets(12, 0, 0, 0);
@@ -432,8 +438,16 @@ public class FillWindow extends JFrame
 		assert SwingUtilities.isEventDispatchThread();
 		if (ie.getSource() == transparent)
 			plugin.setFillTransparent(transparent.isSelected());
+		else if (ie.getSource() == boundFill)
+			plugin.setFillBoundMargin(boundFill.isSelected() ? BOUND_MARGIN : 0);
 	}
 
+	/*
+	 * With boundFill selected, fills stop a little beyond the threshold so
+	 * that small increases to it don't have to wait for more exploration.
+	 */
+	static final double BOUND_MARGIN = 1.5;
+
 	protected DecimalFormat df4 = new DecimalFormat("#.0000");
 
 	public void thresholdChanged(final double f) {
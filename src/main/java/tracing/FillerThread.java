@@ -29,15 +29,18 @@ package tracing;
 
 import java.awt.Graphics;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Set;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.measure.Calibration;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ShortProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
 
 public class FillerThread extends SearchThread {
 
@@ -59,24 +62,22 @@ public class FillerThread extends SearchThread {
 		final int y = (int) Math.round(yd);
 		final int z = (int) Math.round(zd);
 
-		final SearchNode[] slice = nodes_as_image_from_start[z];
-		if (slice == null)
-			return -1.0f;
-
-		final SearchNode n = slice[y * width + x];
-		if (n == null)
+		if (!search_from_start.reached(x, y, z))
 			return -1.0f;
 		else
-			return n.g;
+			return search_from_start.getG(x, y, z);
 	}
 
 	// FIXME: may be buggy, synchronization issues
 
 	Fill getFill() {
 
-		final Hashtable<SearchNode, Integer> h = new Hashtable<>();
+		final long[] closed = search_from_start.closedKeys();
+		final long[] open = search_from_start.openKeys();
+
+		final HashMap<Long, Integer> h = new HashMap<>(2 * (closed.length + open.length));
 
-		final ArrayList<SearchNode> a = new ArrayList<>();
+		final long[] a = new long[closed.length + open.length];
 
 		// The tricky bit here is that we want to create a
 		// Fill object with index
@@ -85,10 +86,10 @@ public class FillerThread extends SearchThread {
 
 		int i = 0;
 
-		for (final SearchNode current : closed_from_start) {
+		for (final long current : closed) {
 			/* if( current.g <= threshold ) { */
-			h.put(current, new Integer(i));
-			a.add(current);
+			h.put(current, i);
+			a[i] = current;
 			++i;
 			/* } */
 		}
@@ -98,10 +99,10 @@ public class FillerThread extends SearchThread {
 		if (verbose)
 			SNT.log("openAtOrAbove is: " + openAtOrAbove);
 
-		for (final SearchNode current : open_from_start) {
+		for (final long current : open) {
 			/* if( current.g <= threshold ) { */
-			h.put(current, new Integer(i));
-			a.add(current);
+			h.put(current, i);
+			a[i] = current;
 			++i;
 			/* } */
 		}
@@ -117,19 +118,21 @@ public class FillerThread extends SearchThread {
 		fill.setSpacing(x_spacing, y_spacing, z_spacing, spacing_units);
 
 		if (verbose)
-			SNT.log("... out of a.size() " + a.size() + " entries");
+			SNT.log("... out of a.length " + a.length + " entries");
 
-		for (i = 0; i < a.size(); ++i) {
-			final SearchNode f = a.get(i);
+		for (i = 0; i < a.length; ++i) {
+			final int x = SearchState.keyX(a[i]);
+			final int y = SearchState.keyY(a[i]);
+			final int z = SearchState.keyZ(a[i]);
 			int previousIndex = -1;
-			final SearchNode previous = f.getPredecessor();
-			if (previous != null) {
+			final long previous = search_from_start.getPredecessor(a[i]);
+			if (previous >= 0) {
 				final Integer p = h.get(previous);
 				if (p != null) {
 					previousIndex = p.intValue();
 				}
 			}
-			fill.add(f.x, f.y, f.z, f.g, previousIndex, i >= openAtOrAbove);
+			fill.add(x, y, z, search_from_start.getG(x, y, z), previousIndex, i >= openAtOrAbove);
 		}
 
 		if (sourcePaths != null) {
@@ -188,16 +191,41 @@ public class FillerThread extends SearchThread {
 		return result;
 	}
 
-	float threshold;
+	volatile float threshold;
 
 	public void setThreshold(final double threshold) {
+		final boolean raised = threshold > this.threshold;
 		this.threshold = (float) threshold;
+		if (raised)
+			costLimitRaised();
 	}
 
 	public float getThreshold() {
 		return threshold;
 	}
 
+	/*
+	 * If boundMargin is positive, the fill stops expanding once the
+	 * distance to every open point is more than threshold * boundMargin,
+	 * since nothing beyond the threshold is kept.  (A margin of more than 1
+	 * means that the threshold can be raised a little without waiting.)
+	 * Raising the threshold above that carries on the fill from the open
+	 * points where it stopped.
+	 */
+
+	volatile double boundMargin;
+
+	public void setBoundMargin(final double boundMargin) {
+		this.boundMargin = boundMargin;
+		costLimitRaised();
+	}
+
+	@Override
+	protected float costLimit() {
+		final double margin = boundMargin;
+		return margin > 0 ? (float) (threshold * margin) : Float.POSITIVE_INFINITY;
+	}
+
 	/* If you specify 0 for timeoutSeconds then there is no timeout. */
 
 	public FillerThread(final ImagePlus imagePlus, final float stackMin, final float stackMax,
@@ -214,6 +242,41 @@ public class FillerThread extends SearchThread {
 		setPriority(MIN_PRIORITY);
 	}
 
+	/* A fill of an ImgLib2 image (see the SearchThread constructor): */
+
+	public <T extends RealType<T>> FillerThread(final RandomAccessibleInterval<T> image,
+			final Calibration calibration, final float stackMin, final float stackMax, final boolean startPaused,
+			final boolean reciprocal, final double initialThreshold, final long reportEveryMilliseconds) {
+
+		super(image, calibration, stackMin, stackMax, false, // bidirectional
+				false, // definedGoal
+				startPaused, 0, reportEveryMilliseconds);
+
+		this.reciprocal = reciprocal;
+		setThreshold(initialThreshold);
+
+		setPriority(MIN_PRIORITY);
+	}
+
+	/*
+	 * A fill of a VoxelSource, e.g. a ChunkedVoxelFile of an image that's
+	 * too big for memory.
+	 */
+
+	public FillerThread(final VoxelSource voxels, final float stackMin, final float stackMax,
+			final boolean startPaused, final boolean reciprocal, final double initialThreshold,
+			final long reportEveryMilliseconds) {
+
+		super(voxels, stackMin, stackMax, false, // bidirectional
+				false, // definedGoal
+				startPaused, 0, reportEveryMilliseconds);
+
+		this.reciprocal = reciprocal;
+		setThreshold(initialThreshold);
+
+		setPriority(MIN_PRIORITY);
+	}
+
 	public void setSourcePaths(final Set<Path> newSourcePaths) {
 		sourcePaths = new HashSet<>();
 		sourcePaths.addAll(newSourcePaths);
@@ -252,23 +315,29 @@ public class FillerThread extends SearchThread {
 		final ImageStack stack = new ImageStack(width, height);
 
 		for (int z = 0; z < depth; ++z) {
-			final SearchNode[] nodes_this_slice = nodes_as_image_from_start[z];
-			if (nodes_this_slice != null)
+			if (search_from_start.sliceTouched(z))
 				for (int y = 0; y < height; ++y) {
 					for (int x = 0; x < width; ++x) {
-						final SearchNode s = nodes_as_image_from_start[z][y * width + x];
-						if ((s != null) && (s.g <= threshold)) {
+						if (search_from_start.reached(x, y, z) && (search_from_start.getG(x, y, z) <= threshold)) {
 							switch (imageType) {
 							case ImagePlus.GRAY8:
 							case ImagePlus.COLOR_256:
-								new_slice_data_b[z][y * width + x] = realData ? slices_data_b[z][y * width + x]
+								new_slice_data_b[z][y * width + x] = realData
+										? (slices_data_b != null ? slices_data_b[z][y * width + x]
+												: (byte) voxels.getValue(x, y, z))
 										: (byte) 255;
 								break;
 							case ImagePlus.GRAY16:
-								new_slice_data_s[z][y * width + x] = realData ? slices_data_s[z][y * width + x] : 255;
+								new_slice_data_s[z][y * width + x] = realData
+										? (slices_data_s != null ? slices_data_s[z][y * width + x]
+												: (short) voxels.getValue(x, y, z))
+										: 255;
 								break;
 							case ImagePlus.GRAY32:
-								new_slice_data_f[z][y * width + x] = realData ? slices_data_f[z][y * width + x] : 255;
+								new_slice_data_f[z][y * width + x] = realData
+										? (slices_data_f != null ? slices_data_f[z][y * width + x]
+												: voxels.getValue(x, y, z))
+										: 255;
 								break;
 							default:
 								break;
@@ -302,7 +371,7 @@ public class FillerThread extends SearchThread {
 
 		final ImagePlus imp = new ImagePlus("filled neuron", stack);
 
-		imp.setCalibration(imagePlus.getCalibration());
+		imp.setCalibration(calibration);
 
 		return imp;
 	}
@@ -313,11 +382,12 @@ public class FillerThread extends SearchThread {
 		super.reportPointsInSearch();
 
 		// Find the minimum distance in the open list.
-		final SearchNode p = open_from_start.peek();
-		if (p == null)
+		final long p = search_from_start.peekOpen();
+		if (p < 0)
 			return;
 
-		final float minimumDistanceInOpen = p.g;
+		final float minimumDistanceInOpen = search_from_start.getG(SearchState.keyX(p), SearchState.keyY(p),
+				SearchState.keyZ(p));
 
 		for (final SearchProgressCallback progress : progressListeners) {
 			if (progress instanceof FillerProgressCallback) {
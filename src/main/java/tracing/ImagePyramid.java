@@ -0,0 +1,290 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/*
+ * Downsampled copies of an image, for finding a rough route on a coarse
+ * level before searching at full resolution (see CoarseToFineTracerThread).
+ * Level 0 is the image itself; each level after that halves the width and
+ * height of the one before, and also halves the depth unless the voxels
+ * would then be much deeper than they are wide.  A voxel at a coarse level
+ * is the maximum of the voxels it covers, so that thin bright structures
+ * don't disappear.
+ *
+ * The levels are only built when they're first asked for, and then kept,
+ * so build one of these per image and reuse it.  Downsampled tubeness is
+ * kept in the same way for the last tubeness array it was asked about,
+ * once all of that has been computed.
+ */
+
+public class ImagePyramid {
+
+	static final int MAX_LEVEL = 5;
+
+	static class Level {
+
+		final ImagePlus image;
+
+		/* A voxel (x, y, z) here covers (x << shiftXY, y << shiftXY, z << shiftZ): */
+		final int shiftXY;
+		final int shiftZ;
+
+		float[][] tubenessFrom;
+		float[][] tubeness;
+
+		Level(final ImagePlus image, final int shiftXY, final int shiftZ) {
+			this.image = image;
+			this.shiftXY = shiftXY;
+			this.shiftZ = shiftZ;
+		}
+	}
+
+	final ImagePlus image;
+	final ArrayList<Level> levels = new ArrayList<>();
+
+	public ImagePyramid(final ImagePlus image) {
+		this.image = image;
+		levels.add(new Level(image, 0, 0));
+	}
+
+	synchronized Level level(final int l) {
+		while (levels.size() <= l) {
+			final Level previous = levels.get(levels.size() - 1);
+			levels.add(downsample(previous));
+		}
+		return levels.get(l);
+	}
+
+	/*
+	 * The coarsest level at which the route from one point to another is
+	 * still at least minimumSteps voxels long, or 0 if there is none.  This
+	 * works out the size of the levels without building them.
+	 */
+
+	int levelFor(final int dx, final int dy, final int dz, final int minimumSteps) {
+		final Calibration calibration = image.getCalibration();
+		double pixelWidth = calibration.pixelWidth;
+		double pixelDepth = calibration.pixelDepth;
+		int depth = image.getStackSize();
+		int shiftZ = 0;
+		int result = 0;
+		for (int l = 1; l <= MAX_LEVEL; ++l) {
+			if (halvesDepth(depth, pixelWidth, pixelDepth)) {
+				depth = (depth + 1) / 2;
+				pixelDepth *= 2;
+				++shiftZ;
+			}
+			pixelWidth *= 2;
+			final int steps = Math.max(Math.max(Math.abs(dx) >> l, Math.abs(dy) >> l), Math.abs(dz) >> shiftZ);
+			if (steps < minimumSteps)
+				break;
+			result = l;
+		}
+		return result;
+	}
+
+	/*
+	 * Only halve the depth if the voxels stay no more than twice as deep as
+	 * they are wide:
+	 */
+
+	static boolean halvesDepth(final int depth, final double pixelWidth, final double pixelDepth) {
+		return depth > 1 && pixelDepth < 2 * pixelWidth;
+	}
+
+	/*
+	 * The tubeness at level l, downsampled from the full resolution
+	 * tubeness, or null if any of that hasn't been computed yet (NaN).
+	 */
+
+	synchronized float[][] tubeness(final int l, final float[][] tubeness) {
+		if (l == 0)
+			return tubeness;
+		final Level level = level(l);
+		if (level.tubenessFrom != tubeness) {
+			// Check before pooling anything, which stops at the
+			// first point that hasn't been computed:
+			if (l == 1 && !complete(tubeness))
+				return null;
+			final float[][] finer = tubeness(l - 1, tubeness);
+			if (finer == null)
+				return null;
+			final Level previous = level(l - 1);
+			final ImagePlus from = previous.image;
+			final float[][] result = maxPool(finer, from.getWidth(), from.getHeight(), level.image.getWidth(),
+					level.image.getHeight(), level.image.getStackSize(), level.shiftZ - previous.shiftZ);
+			level.tubenessFrom = tubeness;
+			level.tubeness = result;
+		}
+		return level.tubeness;
+	}
+
+	static boolean complete(final float[][] tubeness) {
+		for (final float[] slice : tubeness)
+			for (final float v : slice)
+				if (Float.isNaN(v))
+					return false;
+		return true;
+	}
+
+	static Level downsample(final Level previous) {
+
+		final ImagePlus from = previous.image;
+		final Calibration calibration = from.getCalibration();
+		final int width = from.getWidth();
+		final int height = from.getHeight();
+		final int depth = from.getStackSize();
+
+		final boolean halveDepth = halvesDepth(depth, calibration.pixelWidth, calibration.pixelDepth);
+		final int newWidth = (width + 1) / 2;
+		final int newHeight = (height + 1) / 2;
+		final int newDepth = halveDepth ? (depth + 1) / 2 : depth;
+		final int zStep = halveDepth ? 1 : 0;
+
+		// The pixel arrays are pooled as they are, rather than copied
+		// into floats first:
+		final ImageStack stack = from.getStack();
+		final ImageStack result = new ImageStack(newWidth, newHeight);
+
+		switch (from.getType()) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256: {
+			final byte[][] values = new byte[depth][];
+			for (int z = 0; z < depth; ++z)
+				values[z] = (byte[]) stack.getPixels(z + 1);
+			for (final byte[] slice : maxPool(values, width, height, newWidth, newHeight, newDepth, zStep))
+				result.addSlice(null, slice);
+			break;
+		}
+		case ImagePlus.GRAY16: {
+			final short[][] values = new short[depth][];
+			for (int z = 0; z < depth; ++z)
+				values[z] = (short[]) stack.getPixels(z + 1);
+			for (final short[] slice : maxPool(values, width, height, newWidth, newHeight, newDepth, zStep))
+				result.addSlice(null, slice);
+			break;
+		}
+		case ImagePlus.GRAY32: {
+			final float[][] values = new float[depth][];
+			for (int z = 0; z < depth; ++z)
+				values[z] = (float[]) stack.getPixels(z + 1);
+			for (final float[] slice : maxPool(values, width, height, newWidth, newHeight, newDepth, zStep))
+				result.addSlice(null, slice);
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Can't downsample images of type " + from.getType());
+		}
+
+		final ImagePlus image = new ImagePlus(from.getTitle() + " (level " + (previous.shiftXY + 1) + ")", result);
+		final Calibration newCalibration = calibration.copy();
+		newCalibration.pixelWidth *= 2;
+		newCalibration.pixelHeight *= 2;
+		if (halveDepth)
+			newCalibration.pixelDepth *= 2;
+		image.setCalibration(newCalibration);
+
+		return new Level(image, previous.shiftXY + 1, previous.shiftZ + zStep);
+	}
+
+	/*
+	 * Halve the width and height of values (and the depth if zStep is 1),
+	 * taking the maximum of each block of voxels.  NaN is kept, since
+	 * Math.max() returns NaN if either argument is.
+	 */
+
+	static float[][] maxPool(final float[][] values, final int width, final int height, final int newWidth,
+			final int newHeight, final int newDepth, final int zStep) {
+		final int depth = values.length;
+		final float[][] result = new float[newDepth][newWidth * newHeight];
+		for (int z = 0; z < depth; ++z) {
+			final float[] to = result[z >> zStep];
+			final float[] from = values[z];
+			final boolean first = (z & zStep) == 0;
+			for (int y = 0; y < height; ++y) {
+				final int row = (y >> 1) * newWidth;
+				for (int x = 0; x < width; ++x) {
+					final int i = row + (x >> 1);
+					final float v = from[y * width + x];
+					to[i] = (first && (x & 1) == 0 && (y & 1) == 0) ? v : Math.max(to[i], v);
+				}
+			}
+		}
+		return result;
+	}
+
+	/* The same for unsigned 8-bit values: */
+
+	static byte[][] maxPool(final byte[][] values, final int width, final int height, final int newWidth,
+			final int newHeight, final int newDepth, final int zStep) {
+		final int depth = values.length;
+		final byte[][] result = new byte[newDepth][newWidth * newHeight];
+		for (int z = 0; z < depth; ++z) {
+			final byte[] to = result[z >> zStep];
+			final byte[] from = values[z];
+			final boolean first = (z & zStep) == 0;
+			for (int y = 0; y < height; ++y) {
+				final int row = (y >> 1) * newWidth;
+				for (int x = 0; x < width; ++x) {
+					final int i = row + (x >> 1);
+					final byte v = from[y * width + x];
+					if ((first && (x & 1) == 0 && (y & 1) == 0) || (v & 0xFF) > (to[i] & 0xFF))
+						to[i] = v;
+				}
+			}
+		}
+		return result;
+	}
+
+	/* ... and for unsigned 16-bit values: */
+
+	static short[][] maxPool(final short[][] values, final int width, final int height, final int newWidth,
+			final int newHeight, final int newDepth, final int zStep) {
+		final int depth = values.length;
+		final short[][] result = new short[newDepth][newWidth * newHeight];
+		for (int z = 0; z < depth; ++z) {
+			final short[] to = result[z >> zStep];
+			final short[] from = values[z];
+			final boolean first = (z & zStep) == 0;
+			for (int y = 0; y < height; ++y) {
+				final int row = (y >> 1) * newWidth;
+				for (int x = 0; x < width; ++x) {
+					final int i = row + (x >> 1);
+					final short v = from[y * width + x];
+					if ((first && (x & 1) == 0 && (y & 1) == 0) || (v & 0xFFFF) > (to[i] & 0xFFFF))
+						to[i] = v;
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,206 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/*
+ * A VoxelSource for an ImgLib2 image (2D or 3D) of any real type, e.g. a
+ * cached cell image, which is read through a RandomAccess per thread so
+ * that cells are loaded through the ImgLib2 cache as they're needed.
+ *
+ * Unsigned 8 and 16 bit and float images that hold their data in Java
+ * arrays don't need to go through a RandomAccess: slices() returns the
+ * arrays of each plane of a PlanarImg (or of a 2D ArrayImg), which a
+ * SearchThread uses just as it uses the pixels of an ImagePlus, and
+ * getValue() indexes the array of a 3D ArrayImg directly.  Images of other
+ * types are searched as if they were 32 bit.  However they're read, 16 bit
+ * values are unsigned, as UnsignedShortType's are.
+ */
+
+public class ImgLib2VoxelSource<T extends RealType<T>> implements VoxelSource {
+
+	final RandomAccessibleInterval<T> image;
+	final Calibration calibration;
+	final int width, height, depth, type;
+
+	/* The data of an ArrayImg of one of the types above (at most one is set): */
+	final byte[] b;
+	final short[] s;
+	final float[] f;
+
+	final ThreadLocal<RandomAccess<T>> access;
+
+	float min = Float.NaN, max = Float.NaN;
+
+	public ImgLib2VoxelSource(final RandomAccessibleInterval<T> image, final Calibration calibration) {
+		if (image.numDimensions() < 2 || image.numDimensions() > 3)
+			throw new IllegalArgumentException("Only 2D and 3D images can be traced");
+		this.image = Views.zeroMin(image);
+		this.calibration = calibration;
+		width = (int) image.dimension(0);
+		height = (int) image.dimension(1);
+		depth = image.numDimensions() > 2 ? (int) image.dimension(2) : 1;
+		type = typeOf(image);
+
+		final Object data = image instanceof ArrayImg ? storage(((ArrayImg<?, ?>) image).update(null)) : null;
+		b = type == ImagePlus.GRAY8 && data instanceof byte[] ? (byte[]) data : null;
+		s = type == ImagePlus.GRAY16 && data instanceof short[] ? (short[]) data : null;
+		f = type == ImagePlus.GRAY32 && data instanceof float[] ? (float[]) data : null;
+
+		access = new ThreadLocal<RandomAccess<T>>() {
+			@Override
+			protected RandomAccess<T> initialValue() {
+				return ImgLib2VoxelSource.this.image.randomAccess();
+			}
+		};
+	}
+
+	/* The ImagePlus type that values of this image are searched as: */
+
+	static int typeOf(final RandomAccessibleInterval<? extends RealType<?>> image) {
+		final Object t = Util.getTypeFromInterval(image);
+		if (t instanceof UnsignedByteType)
+			return ImagePlus.GRAY8;
+		if (t instanceof UnsignedShortType)
+			return ImagePlus.GRAY16;
+		return ImagePlus.GRAY32;
+	}
+
+	static Object storage(final Object access) {
+		return access instanceof ArrayDataAccess ? ((ArrayDataAccess<?>) access).getCurrentStorageArray() : null;
+	}
+
+	/*
+	 * The arrays of each slice of image, as byte[], short[] or float[] for
+	 * the types GRAY8, GRAY16 and GRAY32, or null if image doesn't keep its
+	 * data in one array per slice.
+	 */
+
+	static Object[] slices(final RandomAccessibleInterval<? extends RealType<?>> image) {
+		final int type = typeOf(image);
+		final Class<?> arrayClass = type == ImagePlus.GRAY8 ? byte[].class
+				: type == ImagePlus.GRAY16 ? short[].class : float[].class;
+		if (type == ImagePlus.GRAY32 && !(Util.getTypeFromInterval(image) instanceof FloatType))
+			return null;
+		final Object[] result;
+		if (image instanceof PlanarImg && image.numDimensions() <= 3) {
+			final PlanarImg<?, ?> planar = (PlanarImg<?, ?>) image;
+			result = new Object[planar.numSlices()];
+			for (int z = 0; z < result.length; ++z)
+				result[z] = storage(planar.getPlane(z));
+		} else if (image instanceof ArrayImg && image.numDimensions() == 2)
+			result = new Object[] { storage(((ArrayImg<?, ?>) image).update(null)) };
+		else
+			return null;
+		for (final Object slice : result)
+			if (slice == null || slice.getClass() != arrayClass)
+				return null;
+		return result;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	@Override
+	public float getValue(final int x, final int y, final int z) {
+		if (b != null)
+			return b[(z * height + y) * width + x] & 0xFF;
+		if (s != null)
+			return s[(z * height + y) * width + x] & 0xFFFF;
+		if (f != null)
+			return f[(z * height + y) * width + x];
+		final RandomAccess<T> a = access.get();
+		a.setPosition(x, 0);
+		a.setPosition(y, 1);
+		if (image.numDimensions() > 2)
+			a.setPosition(z, 2);
+		return a.get().getRealFloat();
+	}
+
+	/* This goes through the whole image the first time it's called: */
+
+	@Override
+	public synchronized float getMin() {
+		if (Float.isNaN(min))
+			findRange();
+		return min;
+	}
+
+	@Override
+	public synchronized float getMax() {
+		if (Float.isNaN(max))
+			findRange();
+		return max;
+	}
+
+	private void findRange() {
+		float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+		for (final T t : Views.iterable(image)) {
+			final float v = t.getRealFloat();
+			if (v < lo)
+				lo = v;
+			if (v > hi)
+				hi = v;
+		}
+		min = lo;
+		max = hi;
+	}
+}
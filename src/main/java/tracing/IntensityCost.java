@@ -0,0 +1,200 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.ImagePlus;
+
+/*
+ * The costs based on the value at each point, scaled from [stackMin,
+ * stackMax] to [0, 255] unless the image is 8 bit: either the reciprocal
+ * of the scaled value (with zero treated as RECIPROCAL_FUDGE) or 256 minus
+ * it.
+ *
+ * For 8 and 16 bit images whose pixels are in arrays, the cost of every
+ * possible pixel value is worked out when this is created, so that each
+ * cost is a single lookup rather than a scaling and a division.
+ */
+
+public class IntensityCost implements CostFunction {
+
+	/*
+	 * If we're taking the reciprocal of the value at the new point as our
+	 * cost, then values of zero cause a problem. This is the value that we
+	 * use instead of zero there.
+	 */
+
+	static final double RECIPROCAL_FUDGE = 0.5;
+
+	final boolean reciprocal;
+
+	final int imageType;
+	final int width;
+	final float stackMin, stackMax;
+
+	final byte[][] slices_data_b;
+	final short[][] slices_data_s;
+	final float[][] slices_data_f;
+	final VoxelSource voxels;
+
+	/* The cost of each 8 or 16 bit pixel value, or null: */
+	final double[] table;
+
+	/* The costs of the image that search is of: */
+
+	public IntensityCost(final SearchThread search, final boolean reciprocal) {
+		this.reciprocal = reciprocal;
+		imageType = search.imageType;
+		width = search.width;
+		stackMin = search.stackMin;
+		stackMax = search.stackMax;
+		slices_data_b = search.slices_data_b;
+		slices_data_s = search.slices_data_s;
+		slices_data_f = search.slices_data_f;
+		voxels = search.voxels;
+		table = costTable();
+	}
+
+	double[] costTable() {
+		if (slices_data_b != null && (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.COLOR_256)) {
+			final double[] result = new double[256];
+			for (int v = 0; v < result.length; ++v)
+				result[v] = costOfValue(v);
+			return result;
+		}
+		if (slices_data_s != null && imageType == ImagePlus.GRAY16) {
+			final double[] result = new double[65536];
+			for (int v = 0; v < result.length; ++v)
+				result[v] = costOfValue(scaled(v));
+			return result;
+		}
+		return null;
+	}
+
+	/* The cost of moving to a point whose scaled value is value: */
+
+	double costOfValue(final double value) {
+		if (reciprocal) {
+			if (value != 0)
+				return 1.0 / value;
+			return 1 / RECIPROCAL_FUDGE;
+		} else {
+			return 256 - value;
+		}
+	}
+
+	/*
+	 * The value at a point, scaled from [stackMin, stackMax] to [0, 255]
+	 * unless the image is 8 bit.  16 bit values are unsigned, as they are
+	 * in ImageJ and from a VoxelSource.
+	 */
+
+	double scaledValueAt(final int x, final int y, final int z) {
+		double value = -1;
+		switch (imageType) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			value = slices_data_b != null ? slices_data_b[z][y * width + x] & 0xFF : voxels.getValue(x, y, z);
+			break;
+		case ImagePlus.GRAY16:
+			value = scaled(slices_data_s != null ? slices_data_s[z][y * width + x] & 0xFFFF : voxels.getValue(x, y, z));
+			break;
+		case ImagePlus.GRAY32:
+			value = scaled(slices_data_f != null ? slices_data_f[z][y * width + x] : voxels.getValue(x, y, z));
+			break;
+		}
+		return value;
+	}
+
+	private double scaled(final double value) {
+		return 255.0 * (value - stackMin) / (stackMax - stackMin);
+	}
+
+	@Override
+	public double cost(final int x, final int y, final int z) {
+		if (table != null) {
+			final int i = y * width + x;
+			return table[slices_data_b != null ? slices_data_b[z][i] & 0xFF : slices_data_s[z][i] & 0xFFFF];
+		}
+		return costOfValue(scaledValueAt(x, y, z));
+	}
+
+	@Override
+	public void costs(final int n, final int[] xs, final int[] ys, final int[] zs, final double[] costs) {
+		if (table != null && slices_data_b != null) {
+			for (int i = 0; i < n; ++i)
+				costs[i] = table[slices_data_b[zs[i]][ys[i] * width + xs[i]] & 0xFF];
+		} else if (table != null) {
+			for (int i = 0; i < n; ++i)
+				costs[i] = table[slices_data_s[zs[i]][ys[i] * width + xs[i]] & 0xFFFF];
+		} else {
+			for (int i = 0; i < n; ++i)
+				costs[i] = costOfValue(scaledValueAt(xs[i], ys[i], zs[i]));
+		}
+	}
+
+	@Override
+	public void costs(final int x0, final int y0, final int z, final int w, final int h, final double[] costs) {
+		int k = 0;
+		for (int y = y0; y < y0 + h; ++y) {
+			if (table != null && slices_data_b != null) {
+				final byte[] slice = slices_data_b[z];
+				for (int x = x0, i = y * width + x0; x < x0 + w; ++x, ++i)
+					costs[k++] = table[slice[i] & 0xFF];
+			} else if (table != null) {
+				final short[] slice = slices_data_s[z];
+				for (int x = x0, i = y * width + x0; x < x0 + w; ++x, ++i)
+					costs[k++] = table[slice[i] & 0xFFFF];
+			} else {
+				for (int x = x0; x < x0 + w; ++x)
+					costs[k++] = costOfValue(scaledValueAt(x, y, z));
+			}
+		}
+	}
+
+	/*
+	 * Looking costs up in the table is cheaper than a CostCache, so only
+	 * 32 bit costs are described for caching:
+	 */
+
+	@Override
+	public String metric() {
+		if (table != null)
+			return null;
+		return (reciprocal ? "reciprocal" : "256-minus") + intensityScaling();
+	}
+
+	/* The part of the metric that depends on how values are scaled: */
+
+	String intensityScaling() {
+		switch (imageType) {
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
+			return " of values scaled from [" + stackMin + ", " + stackMax + "]";
+		default:
+			return "";
+		}
+	}
+}
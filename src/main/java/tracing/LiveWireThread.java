@@ -0,0 +1,171 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import features.ComputeCurvatures;
+import ij.ImagePlus;
+
+/*
+ * A "live-wire" search: a single Dijkstra search outwards from a start
+ * point, with the same costs as a TracerThread, that is kept for as long as
+ * the start point stays the same.  Once a point has been closed the
+ * predecessors give the best path to it from the start, so pathTo() can
+ * answer straight away for any point in the region explored so far.
+ *
+ * The thread explores up to backgroundPoints points in the background and
+ * then waits (see SearchThread.costLimit()).  If pathTo() is asked for a
+ * point that hasn't been closed, the search carries on from where it
+ * stopped until that point is closed, tells any LiveWireProgressCallback
+ * listeners the path, and then goes back to exploring in the background
+ * if it hasn't yet reached backgroundPoints points.
+ *
+ * The search only changes search_from_start while holding its lock (see
+ * SearchThread.run()), so the other methods here hold that lock to read
+ * it, and to change limit and target.
+ */
+
+public class LiveWireThread extends TracerThread {
+
+	/* About 10MB of search state: */
+	static final int DEFAULT_BACKGROUND_POINTS = 1 << 20;
+
+	final int backgroundPoints;
+
+	/*
+	 * The search waits once every open point costs more than limit.  This
+	 * is infinite until either the search has reached backgroundPoints
+	 * points or it reaches the target, when it's set to the cost of the
+	 * last point reached.  Once the target has been closed it goes back to
+	 * being infinite, unless there are already backgroundPoints points.
+	 */
+	volatile float limit = Float.POSITIVE_INFINITY;
+
+	/* The key of the point that pathTo() is waiting for, or -1: */
+	volatile long target = -1;
+
+	public LiveWireThread(final ImagePlus imagePlus, final float stackMin, final float stackMax,
+			final int start_x, final int start_y, final int start_z, final boolean reciprocal,
+			final boolean singleSlice, final ComputeCurvatures hessian, final double multiplier,
+			final float[][] tubeness, final boolean useHessian, final int backgroundPoints) {
+
+		super(imagePlus, stackMin, stackMax, 0, // timeoutSeconds
+				1000, // reportEveryMilliseconds
+				start_x, start_y, start_z, start_x, start_y, start_z, reciprocal, singleSlice, hessian, multiplier,
+				tubeness, useHessian, false);
+
+		this.backgroundPoints = backgroundPoints;
+
+		setPriority(MIN_PRIORITY);
+		// Nothing is lost if this is still waiting when everything else
+		// has finished:
+		setDaemon(true);
+	}
+
+	@Override
+	protected float costLimit() {
+		return limit;
+	}
+
+	/*
+	 * The path from the start to (x, y, z) if the search has closed that
+	 * point.  Otherwise this returns null, and the path is passed to the
+	 * listeners once the search gets there (unless another point is asked
+	 * for in the meantime, or cancelPathTo() is called).
+	 */
+
+	public Path pathTo(final int x, final int y, final int z) {
+		final boolean raised;
+		synchronized (search_from_start) {
+			if (search_from_start.isClosed(x, y, z)) {
+				target = -1;
+				return search_from_start.asPath(SearchState.key(x, y, z), x_spacing, y_spacing, z_spacing,
+						spacing_units);
+			}
+			target = SearchState.key(x, y, z);
+			// If the point has been reached, the search only needs to
+			// go as far as its current cost:
+			final float newLimit = search_from_start.reached(x, y, z) ? search_from_start.getG(x, y, z)
+					: Float.POSITIVE_INFINITY;
+			raised = newLimit > limit;
+			limit = newLimit;
+		}
+		if (raised)
+			costLimitRaised();
+		return null;
+	}
+
+	public void cancelPathTo() {
+		synchronized (search_from_start) {
+			target = -1;
+		}
+		resumeBackground();
+	}
+
+	/* Lower the limit when the target or the last background point is reached: */
+
+	@Override
+	protected void addingNode(final int x, final int y, final int z) {
+		if (limit != Float.POSITIVE_INFINITY)
+			return;
+		final long t = target;
+		if (t >= 0 ? SearchState.key(x, y, z) == t : search_from_start.size() >= backgroundPoints) {
+			synchronized (search_from_start) {
+				if (target == t)
+					limit = search_from_start.getG(x, y, z);
+			}
+		}
+	}
+
+	@Override
+	protected void reachedCostLimit() {
+		final Path path;
+		synchronized (search_from_start) {
+			final long t = target;
+			if (t >= 0 && !search_from_start.isClosed(SearchState.keyX(t), SearchState.keyY(t), SearchState.keyZ(t)))
+				return;
+			path = t < 0 ? null : search_from_start.asPath(t, x_spacing, y_spacing, z_spacing, spacing_units);
+			target = -1;
+		}
+		resumeBackground();
+		if (path == null)
+			return;
+		for (final SearchProgressCallback progress : progressListeners) {
+			if (progress instanceof LiveWireProgressCallback)
+				((LiveWireProgressCallback) progress).pathFound(this, path);
+		}
+	}
+
+	/* With no target, carry on exploring until there are backgroundPoints points: */
+
+	void resumeBackground() {
+		synchronized (search_from_start) {
+			if (target >= 0 || limit == Float.POSITIVE_INFINITY || search_from_start.size() >= backgroundPoints)
+				return;
+			limit = Float.POSITIVE_INFINITY;
+		}
+		costLimitRaised();
+	}
+}
@@ -114,6 +114,7 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 	protected JMenuItem loadMenuItem;
 	protected JMenuItem loadLabelsMenuItem;
 	protected JMenuItem saveMenuItem;
+	protected JMenuItem saveBinaryMenuItem;
 	protected JMenuItem exportCSVMenuItem;
 	protected JMenuItem exportAllSWCMenuItem;
 	protected JMenuItem quitMenuItem;
@@ -192,6 +193,8 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 			"As lines and discs" };
 
 	protected JCheckBox useTubularGeodesics;
+	protected JCheckBox useLiveWire;
+	protected JCheckBox useCoarseToFine;
 
 	protected JCheckBox preprocess;
 	protected JCheckBox usePreprocessed;
@@ -500,6 +503,8 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 		sigmaWizard.setEnabled(false);
 		preprocess.setEnabled(false);
 		useTubularGeodesics.setEnabled(false);
+		useLiveWire.setEnabled(false);
+		useCoarseToFine.setEnabled(false);
 		fw.setEnabledNone();
 		pw.fillOutSetEnabled(false);
 
@@ -523,6 +528,7 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 		sendToTrakEM2.setEnabled(false);
 		pathsToROIsMenuItem.setEnabled(false);
 		saveMenuItem.setEnabled(false);
+		saveBinaryMenuItem.setEnabled(false);
 		if (uploadButton != null) {
 			uploadButton.setEnabled(false);
 			fetchButton.setEnabled(false);
@@ -556,6 +562,8 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 					paths3DChoice.setEnabled(isThreeDViewerAvailable());
 					preprocess.setEnabled(true);
 					useTubularGeodesics.setEnabled(plugin.oofFileAvailable());
+					useLiveWire.setEnabled(true);
+					useCoarseToFine.setEnabled(true);
 
 					editSigma.setEnabled(!preprocess.isSelected());
 					sigmaWizard.setEnabled(!preprocess.isSelected());
@@ -565,6 +573,7 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 					loadLabelsMenuItem.setEnabled(true);
 
 					saveMenuItem.setEnabled(true);
+					saveBinaryMenuItem.setEnabled(true);
 					loadMenuItem.setEnabled(true);
 					exportCSVMenuItem.setEnabled(true);
 					exportAllSWCMenuItem.setEnabled(true);
@@ -598,6 +607,8 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 					paths3DChoice.setEnabled(isStackAvailable());
 					preprocess.setEnabled(true);
 					useTubularGeodesics.setEnabled(plugin.oofFileAvailable());
+					useLiveWire.setEnabled(true);
+					useCoarseToFine.setEnabled(true);
 
 					editSigma.setEnabled(!preprocess.isSelected());
 					sigmaWizard.setEnabled(!preprocess.isSelected());
@@ -799,6 +810,9 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 		saveMenuItem = new JMenuItem("Save Traces File...");
 		saveMenuItem.addActionListener(this);
 		fileMenu.add(saveMenuItem);
+		saveBinaryMenuItem = new JMenuItem("Save Traces File (Binary)...");
+		saveBinaryMenuItem.addActionListener(this);
+		fileMenu.add(saveBinaryMenuItem);
 		exportAllSWCMenuItem = new JMenuItem("Save All Paths as SWC...");
 		exportAllSWCMenuItem.addActionListener(this);
 		fileMenu.add(exportAllSWCMenuItem);
@@ -1053,6 +1067,17 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 			++oop_c.gridy;
 			otherOptionsPanel.add(useTubularGeodesics, oop_c);
 
+			useLiveWire = new JCheckBox("Live-wire: show the path to the mouse pointer");
+			useLiveWire.addItemListener(this);
+			++oop_c.gridy;
+			otherOptionsPanel.add(useLiveWire, oop_c);
+
+			useCoarseToFine = new JCheckBox("Coarse-to-fine: find a rough route first",
+					thisPlugin.coarseToFineEnabled);
+			useCoarseToFine.addItemListener(this);
+			++oop_c.gridy;
+			otherOptionsPanel.add(useCoarseToFine, oop_c);
+
 			preprocess = new JCheckBox("Hessian-based analysis");
 			preprocess.addItemListener(this);
 			++oop_c.gridy;
@@ -1213,7 +1238,7 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 		/*
 		 * if( source == uploadButton ) { plugin.uploadTracings(); } else if(
 		 * source == fetchButton ) { plugin.getTracings( true ); } else
-		 */ if (source == saveMenuItem && !noPathsError()) {
+		 */ if ((source == saveMenuItem || source == saveBinaryMenuItem) && !noPathsError()) {
 
 			final FileInfo info = plugin.file_info;
 			SaveDialog sd;
@@ -1251,18 +1276,46 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 
 			final int preSavingState = currentState;
 			changeState(SAVING);
-			try {
-				pathAndFillManager.writeXML(savePath, plugin.useCompressedXML);
-			} catch (final IOException ioe) {
-				IJ.showStatus("Saving failed.");
-				SNT.error("Writing traces to '" + savePath + "' failed: " + ioe);
-				changeState(preSavingState);
-				return;
-			}
-			changeState(preSavingState);
-			IJ.showStatus("Saving completed.");
-
-			plugin.unsavedPaths = false;
+			// Copy the paths and fills now, and write them without holding up
+			// the interface.  Count the changes first, so that any made while
+			// the copy is taken leave the paths unsaved:
+			final int changesWhenCopied = plugin.pathChanges();
+			final TracesWriter snapshot = pathAndFillManager.snapshotForWriting();
+			final String pathToSave = savePath;
+			final boolean compress = plugin.useCompressedXML;
+			// The binary format is much quicker to load with large fills,
+			// and is recognized by loading as the XML is:
+			final boolean binary = (source == saveBinaryMenuItem);
+			new Thread() {
+				@Override
+				public void run() {
+					Throwable failure = null;
+					try {
+						if (binary)
+							BinaryTracesFile.write(snapshot, new File(pathToSave));
+						else
+							snapshot.write(pathToSave, compress);
+					} catch (final Throwable t) {
+						// Anything else, such as running out of memory, has
+						// to restore the state too:
+						failure = t;
+					}
+					final Throwable finalFailure = failure;
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							changeState(preSavingState);
+							if (finalFailure != null) {
+								IJ.showStatus("Saving failed.");
+								SNT.error("Writing traces to '" + pathToSave + "' failed: " + finalFailure);
+								return;
+							}
+							IJ.showStatus("Saving completed.");
+							plugin.pathsSaved(changesWhenCopied);
+						}
+					});
+				}
+			}.start();
 
 		} else if (source == loadMenuItem) {
 
@@ -1764,6 +1817,14 @@ public class NeuriteTracerResultsDialog extends JDialog implements ActionListene
 
 			plugin.enableTubularGeodesicsTracing(useTubularGeodesics.isSelected());
 
+		} else if (source == useLiveWire) {
+
+			plugin.setLiveWireEnabled(useLiveWire.isSelected());
+
+		} else if (source == useCoarseToFine) {
+
+			plugin.setCoarseToFineEnabled(useCoarseToFine.isSelected());
+
 		} else if (source == useSnapWindow) {
 
 			plugin.enableSnapCursor(useSnapWindow.isSelected());
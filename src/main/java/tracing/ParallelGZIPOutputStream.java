@@ -0,0 +1,166 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Compresses what's written to it in blocks, each as a separate gzip
+ * member, in several threads.  The members are written out in order, and
+ * concatenated gzip members are a valid gzip file, which GZIPInputStream
+ * (and gunzip) read back as one stream.  Each member starts with an empty
+ * dictionary, so the output is a little bigger than from GZIPOutputStream.
+ *
+ * At most two blocks per thread are waiting to be written at once; beyond
+ * that, writing waits for the oldest one to be compressed.
+ */
+
+class ParallelGZIPOutputStream extends OutputStream {
+
+	static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	private final OutputStream out;
+	private final int blockSize;
+	private final int maximumPending;
+	private final ExecutorService es;
+
+	/* Blocks being compressed, in the order they were written: */
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+	private byte[] block;
+	private int used;
+	private boolean anyBlocks;
+
+	/* How many members have been started: */
+	int members;
+	private boolean closed;
+
+	ParallelGZIPOutputStream(final OutputStream out) {
+		this(out, DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	ParallelGZIPOutputStream(final OutputStream out, final int blockSize, final int threads) {
+		if (blockSize < 1 || threads < 1)
+			throw new IllegalArgumentException("blockSize and threads must be positive");
+		this.out = out;
+		this.blockSize = blockSize;
+		this.maximumPending = 2 * threads;
+		this.es = Executors.newFixedThreadPool(threads);
+		block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (used == blockSize)
+			compressBlock();
+		block[used++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (used == blockSize)
+				compressBlock();
+			final int n = Math.min(len, blockSize - used);
+			System.arraycopy(b, off, block, used, n);
+			used += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void compressBlock() throws IOException {
+		final byte[] data = block;
+		final int length = used;
+		pending.add(es.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+				final GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024);
+				gzip.write(data, 0, length);
+				gzip.close();
+				return compressed.toByteArray();
+			}
+		}));
+		anyBlocks = true;
+		++members;
+		block = new byte[blockSize];
+		used = 0;
+		while (pending.size() > maximumPending)
+			writeFirstPending();
+	}
+
+	private void writeFirstPending() throws IOException {
+		try {
+			out.write(pending.remove().get());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (final ExecutionException e) {
+			throw new IOException("Compressing a block failed", e.getCause());
+		}
+	}
+
+	/*
+	 * Compresses what has been written so far as a member of its own (so
+	 * flushing often makes the output bigger) and writes it all out:
+	 */
+
+	@Override
+	public void flush() throws IOException {
+		if (used > 0)
+			compressBlock();
+		while (!pending.isEmpty())
+			writeFirstPending();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			// Even an empty file needs one member to be valid:
+			if (used > 0 || !anyBlocks)
+				compressBlock();
+			while (!pending.isEmpty())
+				writeFirstPending();
+		} finally {
+			es.shutdownNow();
+			out.close();
+		}
+	}
+}
@@ -29,6 +29,7 @@ package tracing;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -510,6 +511,18 @@ public class Path implements Comparable<Path> {
 		maxPoints = newMaxPoints;
 	}
 
+	/* Replace the points with n from each buffer, as when loading a binary traces file: */
+
+	void setPoints(final int n, final DoubleBuffer x, final DoubleBuffer y, final DoubleBuffer z) {
+		if (n > maxPoints)
+			expandTo(n);
+		x.get(precise_x_positions, 0, n);
+		y.get(precise_y_positions, 0, n);
+		z.get(precise_z_positions, 0, n);
+		points = n;
+		pointsChanged();
+	}
+
 	void add(final Path other) {
 
 		if (other == null) {
@@ -570,6 +583,7 @@ public class Path implements Comparable<Path> {
 		}
 
 		points = points + (other.points - toSkip);
+		pointsChanged();
 
 		if (hasCircles()) {
 			setGuessedTangents(2);
@@ -605,6 +619,7 @@ public class Path implements Comparable<Path> {
 		precise_x_positions[points] = x;
 		precise_y_positions[points] = y;
 		precise_z_positions[points++] = z;
+		pointsChanged();
 	}
 
 	public void drawPathAsPoints(final TracerCanvas canvas, final Graphics g, final java.awt.Color c, final int plane,
@@ -1241,7 +1256,7 @@ public class Path implements Comparable<Path> {
 				final short[] shortPixels = (short[]) s.getPixels(z + 1);
 				final float[] fa = new float[arraySize];
 				for (int i = 0; i < arraySize; ++i)
-					fa[i] = shortPixels[i];
+					fa[i] = shortPixels[i] & 0xFFFF;
 				v[z] = fa;
 			}
 		} else if (imageType == ImagePlus.GRAY32) {
@@ -1789,6 +1804,46 @@ public class Path implements Comparable<Path> {
 	double[] precise_y_positions;
 	double[] precise_z_positions;
 
+	/*
+	 * The indexes this path is in (its manager's, and that of the manager's
+	 * selection) which are told when the points change.  This is replaced
+	 * rather than modified, so it can be read without a lock.  It's changed
+	 * holding pointIndexesLock rather than this path's lock, since methods
+	 * like downsample() hold that while telling the indexes:
+	 */
+	volatile PathPointIndex[] pointIndexes = new PathPointIndex[0];
+
+	private static final Object pointIndexesLock = new Object();
+
+	void addPointIndex(final PathPointIndex index) {
+		synchronized (pointIndexesLock) {
+			for (final PathPointIndex existing : pointIndexes)
+				if (existing == index)
+					return;
+			final PathPointIndex[] result = Arrays.copyOf(pointIndexes, pointIndexes.length + 1);
+			result[result.length - 1] = index;
+			pointIndexes = result;
+		}
+	}
+
+	void removePointIndex(final PathPointIndex index) {
+		synchronized (pointIndexesLock) {
+			for (int i = 0; i < pointIndexes.length; ++i)
+				if (pointIndexes[i] == index) {
+					final PathPointIndex[] result = new PathPointIndex[pointIndexes.length - 1];
+					System.arraycopy(pointIndexes, 0, result, 0, i);
+					System.arraycopy(pointIndexes, i + 1, result, i, result.length - i);
+					pointIndexes = result;
+					return;
+				}
+		}
+	}
+
+	void pointsChanged() {
+		for (final PathPointIndex index : pointIndexes)
+			index.pointsChanged(this);
+	}
+
 	// http://www.neuronland.org/NLMorphologyConverter/MorphologyFormats/SWC/Spec.html
 	public static final int SWC_UNDEFINED = 0;
 	public static final int SWC_SOMA = 1;
@@ -2038,6 +2093,7 @@ public class Path implements Comparable<Path> {
 		this.precise_x_positions = optimized_x.clone();
 		this.precise_y_positions = optimized_y.clone();
 		this.precise_z_positions = optimized_z.clone();
+		pointsChanged();
 	}
 
 	public String realToString() {
@@ -2734,6 +2790,7 @@ public class Path implements Comparable<Path> {
 			}
 			lastIndex = fpi;
 		}
+		pointsChanged();
 		invalidate3DView();
 	}
 
@@ -40,6 +40,9 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.text.DecimalFormat;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -58,7 +61,6 @@ import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -68,6 +70,7 @@ import org.scijava.vecmath.Color3f;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
 import ij.IJ;
@@ -76,7 +79,6 @@ import ij.measure.Calibration;
 import ij3d.Content;
 import ij3d.UniverseListener;
 import util.Bresenham3D;
-import util.XMLFunctions;
 
 @SuppressWarnings("serial")
 class TracesFileFormatException extends SAXException {
@@ -174,6 +176,12 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	ArrayList<Path> allPaths;
 	ArrayList<Fill> allFills;
 
+	/* The points of allPaths, for nearestPointOnAnyPath(): */
+	final PathPointIndex pointIndex = new PathPointIndex();
+
+	/* Just the selected paths, for snapping to them: */
+	final PathPointIndex selectedPointIndex = new PathPointIndex();
+
 	ArrayList<PathAndFillListener> listeners;
 
 	HashSet<Path> selectedPathsSet;
@@ -244,6 +252,11 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		selectedPathsSet.clear();
 		for (int i = 0; i < selectedPaths.length; ++i)
 			selectedPathsSet.add(selectedPaths[i]);
+		selectedPointIndex.clear();
+		for (final Path p : allPaths)
+			if (selectedPathsSet.contains(p))
+				selectedPointIndex.add(p);
+		selectedPointIndex.update();
 		for (final PathAndFillListener pafl : listeners) {
 			if (pafl != sourceOfMessage)
 				// The source of the message already knows the states:
@@ -691,6 +704,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			p.addTo3DViewer(plugin.univ, plugin.deselectedColor3f, plugin.colorImage);
 		}
 		allPaths.add(p);
+		pointIndex.add(p);
 		resetListeners(p);
 	}
 
@@ -741,8 +755,11 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 
 		allPaths.remove(unfittedPathToDelete);
-		if (fittedPathToDelete != null)
+		pointIndex.remove(unfittedPathToDelete);
+		if (fittedPathToDelete != null) {
 			allPaths.remove(fittedPathToDelete);
+			pointIndex.remove(fittedPathToDelete);
+		}
 
 		// We don't just delete; have to fix up the references
 		// in other paths (for start and end joins):
@@ -760,6 +777,9 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		selectedPathsSet.remove(fittedPathToDelete);
 		selectedPathsSet.remove(unfittedPathToDelete);
+		if (fittedPathToDelete != null)
+			selectedPointIndex.remove(fittedPathToDelete);
+		selectedPointIndex.remove(unfittedPathToDelete);
 
 		if (plugin != null && plugin.use3DViewer) {
 			if (fittedPathToDelete != null && fittedPathToDelete.content3D != null)
@@ -821,167 +841,22 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	}
 
-	// FIXME: should probably use XMLStreamWriter instead of this ad-hoc
-	// approach:
-	synchronized public void writeXML(final String fileName, final boolean compress) throws IOException {
+	/*
+	 * This only holds the manager's lock while copying the paths and fills,
+	 * not while writing them:
+	 */
+	public void writeXML(final String fileName, final boolean compress) throws IOException {
+		snapshotForWriting().write(fileName, compress);
+	}
 
-		PrintWriter pw = null;
+	/* A copy of the paths and fills that can be written in another thread: */
+	synchronized TracesWriter snapshotForWriting() {
+		return new TracesWriter(this);
+	}
 
-		try {
-			if (compress)
-				pw = new PrintWriter(
-						new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fileName)), "UTF-8"));
-			else
-				pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8"));
-
-			pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-			pw.println("<!DOCTYPE tracings [");
-			pw.println("  <!ELEMENT tracings       (samplespacing,imagesize,path*,fill*)>");
-			pw.println("  <!ELEMENT imagesize      EMPTY>");
-			pw.println("  <!ELEMENT samplespacing  EMPTY>");
-			pw.println("  <!ELEMENT path           (point+)>");
-			pw.println("  <!ELEMENT point          EMPTY>");
-			pw.println("  <!ELEMENT fill           (node*)>");
-			pw.println("  <!ELEMENT node           EMPTY>");
-			pw.println("  <!ATTLIST samplespacing  x                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST samplespacing  y                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST samplespacing  z                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST samplespacing  units             CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST imagesize      width             CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST imagesize      height            CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST imagesize      depth             CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST path           id                CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST path           primary           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           name              CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startson          CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startsindex       CDATA           #IMPLIED>"); // deprecated
-			pw.println("  <!ATTLIST path           startsx           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startsy           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startsz           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endson            CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endsindex         CDATA           #IMPLIED>"); // deprecated
-			pw.println("  <!ATTLIST path           endsx             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endsy             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endsz             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           reallength        CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           usefitted         (true|false)    #IMPLIED>");
-			pw.println("  <!ATTLIST path           fitted            CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           fittedversionof   CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           swctype           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           color             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          x                 CDATA           #REQUIRED>"); // deprecated
-			pw.println("  <!ATTLIST point          y                 CDATA           #REQUIRED>"); // deprecated
-			pw.println("  <!ATTLIST point          z                 CDATA           #REQUIRED>"); // deprecated
-			pw.println("  <!ATTLIST point          xd                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          yd                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          zd                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          tx                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          ty                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          tz                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          r                 CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST fill           id                CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST fill           frompaths         CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST fill           metric            CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST fill           threshold         CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST fill           volume            CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST node           id                CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           x                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           y                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           z                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           previousid        CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST node           distance          CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           status            (open|closed)   #REQUIRED>");
-			pw.println("]>");
-			pw.println("");
-
-			pw.println("<tracings>");
-
-			pw.println("  <samplespacing x=\"" + x_spacing + "\" " + "y=\"" + y_spacing + "\" " + "z=\"" + z_spacing
-					+ "\" " + "units=\"" + spacing_units + "\"/>");
-
-			pw.println("  <imagesize width=\"" + width + "\" height=\"" + height + "\" depth=\"" + depth + "\"/>");
-
-			for (final Path p : allPaths) {
-				// This probably should be a String returning
-				// method of Path.
-				pw.print("  <path id=\"" + p.getID() + "\"");
-				pw.print(" swctype=\"" + p.getSWCType() + "\"");
-				pw.print(" color=\"" + SNT.getColorString(p.getColor()) + "\"");
-				String startsString = "";
-				String endsString = "";
-				if (p.startJoins != null) {
-					final int startPathID = p.startJoins.getID();
-					// Find the nearest index for backward compatability:
-					int nearestIndexOnStartPath = -1;
-					if (p.startJoins.size() > 0) {
-						nearestIndexOnStartPath = p.startJoins.indexNearestTo(p.startJoinsPoint.x, p.startJoinsPoint.y,
-								p.startJoinsPoint.z);
-					}
-					startsString = " startson=\"" + startPathID + "\"" + " startx=\"" + p.startJoinsPoint.x + "\""
-							+ " starty=\"" + p.startJoinsPoint.y + "\"" + " startz=\"" + p.startJoinsPoint.z + "\"";
-					if (nearestIndexOnStartPath >= 0)
-						startsString += " startsindex=\"" + nearestIndexOnStartPath + "\"";
-				}
-				if (p.endJoins != null) {
-					final int endPathID = p.endJoins.getID();
-					// Find the nearest index for backward compatability:
-					int nearestIndexOnEndPath = -1;
-					if (p.endJoins.size() > 0) {
-						nearestIndexOnEndPath = p.endJoins.indexNearestTo(p.endJoinsPoint.x, p.endJoinsPoint.y,
-								p.endJoinsPoint.z);
-					}
-					endsString = " endson=\"" + endPathID + "\"" + " endsx=\"" + p.endJoinsPoint.x + "\"" + " endsy=\""
-							+ p.endJoinsPoint.y + "\"" + " endsz=\"" + p.endJoinsPoint.z + "\"";
-					if (nearestIndexOnEndPath >= 0)
-						endsString += " endsindex=\"" + nearestIndexOnEndPath + "\"";
-				}
-				if (p.getPrimary())
-					pw.print(" primary=\"true\"");
-				pw.print(" usefitted=\"" + p.getUseFitted() + "\"");
-				if (p.fitted != null) {
-					pw.print(" fitted=\"" + p.fitted.getID() + "\"");
-				}
-				if (p.fittedVersionOf != null) {
-					pw.print(" fittedversionof=\"" + p.fittedVersionOf.getID() + "\"");
-				}
-				pw.print(startsString);
-				pw.print(endsString);
-				if (p.name != null) {
-					pw.print(" name=\"" + XMLFunctions.escapeForXMLAttributeValue(p.name) + "\"");
-				}
-				pw.print(" reallength=\"" + p.getRealLength() + "\"");
-				pw.println(">");
-
-				for (int i = 0; i < p.size(); ++i) {
-					final int px = p.getXUnscaled(i);
-					final int py = p.getYUnscaled(i);
-					final int pz = p.getZUnscaled(i);
-					final double pxd = p.precise_x_positions[i];
-					final double pyd = p.precise_y_positions[i];
-					final double pzd = p.precise_z_positions[i];
-					String attributes = "x=\"" + px + "\" " + "y=\"" + py + "\" z=\"" + pz + "\" " + "xd=\"" + pxd
-							+ "\" yd=\"" + pyd + "\" zd=\"" + pzd + "\"";
-					if (p.hasCircles()) {
-						attributes += " tx=\"" + p.tangents_x[i] + "\"";
-						attributes += " ty=\"" + p.tangents_y[i] + "\"";
-						attributes += " tz=\"" + p.tangents_z[i] + "\"";
-						attributes += " r=\"" + p.radiuses[i] + "\"";
-					}
-					pw.println("    <point " + attributes + "/>");
-				}
-				pw.println("  </path>");
-			}
-			// Now output the fills:
-			int fillIndex = 0;
-			for (final Fill f : allFills) {
-				f.writeXML(pw, fillIndex);
-				++fillIndex;
-			}
-			pw.println("</tracings>");
-		} finally {
-			if (pw != null)
-				pw.close();
-		}
+	/* Write the same as writeXML() would, in the binary format: */
+	public void writeBinary(final String fileName) throws IOException {
+		BinaryTracesFile.write(snapshotForWriting(), new File(fileName));
 	}
 
 	public double parsed_x_spacing;
@@ -1440,6 +1315,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		if (qName.equals("path")) {
 
 			allPaths.add(current_path);
+			pointIndex.add(current_path);
 
 		} else if (qName.equals("fill")) {
 
@@ -1611,6 +1487,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				p.removeFrom3DViewer(plugin.univ);
 		}
 		allPaths.clear();
+		pointIndex.clear();
+		selectedPointIndex.clear();
 		allFills.clear();
 		resetListeners(null);
 	}
@@ -1880,6 +1758,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	public static final int TRACES_FILE_TYPE_COMPRESSED_XML = 1;
 	public static final int TRACES_FILE_TYPE_UNCOMPRESSED_XML = 2;
 	public static final int TRACES_FILE_TYPE_SWC = 3;
+	public static final int TRACES_FILE_TYPE_BINARY = 4;
 
 	public static int guessTracesFileType(final String filename) {
 
@@ -1891,6 +1770,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		 *
 		 * If it begins "<?xml", assume it's an uncompressed traces file.
 		 *
+		 * If it begins "SNTTRACE", it's a binary traces file.
+		 *
 		 * Otherwise, assum it's an SWC file.
 		 */
 
@@ -1913,6 +1794,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			else if (((buf[0] == '<') && (buf[1] == '?') && (buf[2] == 'x') && (buf[3] == 'm') && (buf[4] == 'l')
 					&& (buf[5] == ' ')))
 				return TRACES_FILE_TYPE_UNCOMPRESSED_XML;
+			else if (BinaryTracesFile.hasMagic(buf))
+				return TRACES_FILE_TYPE_BINARY;
 
 		} catch (final IOException e) {
 			SNT.error("Couldn't read from file: " + filename);
@@ -1944,6 +1827,79 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 	}
 
+	/*
+	 * Load a binary traces file.  This goes through the same startElement()
+	 * and endElement() as loading XML, with the attributes from the file's
+	 * tables, but the points and fill nodes are copied straight from the
+	 * mapped columns rather than parsed from <point> and <node> elements.
+	 */
+
+	public boolean loadBinary(final String filename) {
+		if (verbose)
+			SNT.log("Loading binary file...");
+		BinaryTracesFile in = null;
+		try {
+			in = new BinaryTracesFile(new File(filename));
+			startElement(null, null, "tracings", new AttributesImpl());
+			startElement(null, null, "samplespacing", attributes(in.sampleSpacing));
+			startElement(null, null, "imagesize", attributes(in.imageSize));
+			for (int i = 0; i < in.paths(); ++i) {
+				startElement(null, null, "path", attributes(in.pathAttributes[i]));
+				final int n = in.pathPoints[i];
+				current_path.setPoints(n, in.pathColumn(i, BinaryTracesFile.XD),
+						in.pathColumn(i, BinaryTracesFile.YD), in.pathColumn(i, BinaryTracesFile.ZD));
+				if (in.pathCircles[i]) {
+					current_path.createCircles();
+					in.pathColumn(i, BinaryTracesFile.TX).get(current_path.tangents_x, 0, n);
+					in.pathColumn(i, BinaryTracesFile.TY).get(current_path.tangents_y, 0, n);
+					in.pathColumn(i, BinaryTracesFile.TZ).get(current_path.tangents_z, 0, n);
+					in.pathColumn(i, BinaryTracesFile.R).get(current_path.radiuses, 0, n);
+				}
+				endElement(null, null, "path");
+			}
+			for (int i = 0; i < in.fills(); ++i) {
+				startElement(null, null, "fill", attributes(in.fillAttributes[i]));
+				final DoubleBuffer distance = in.fillDistances(i);
+				final IntBuffer x = in.fillColumn(i, BinaryTracesFile.NODE_X);
+				final IntBuffer y = in.fillColumn(i, BinaryTracesFile.NODE_Y);
+				final IntBuffer z = in.fillColumn(i, BinaryTracesFile.NODE_Z);
+				final IntBuffer previous = in.fillColumn(i, BinaryTracesFile.NODE_PREVIOUS);
+				final ByteBuffer open = in.fillOpen(i);
+				current_fill.nodeList.ensureCapacity(in.fillNodes[i]);
+				for (int j = 0; j < in.fillNodes[i]; ++j)
+					current_fill.add(x.get(j), y.get(j), z.get(j), distance.get(j), previous.get(j),
+							open.get(j) != 0);
+				endElement(null, null, "fill");
+			}
+			endElement(null, null, "tracings");
+			needImageDataFromTracesFile = false;
+		} catch (final SAXException e) {
+			clearPathsAndFills();
+			SNT.error(e.toString());
+			return false;
+		} catch (final IOException | RuntimeException e) {
+			clearPathsAndFills();
+			SNT.error("Couldn't read the binary traces file '" + filename + "': " + e);
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+					// Everything has been read by now
+				}
+			}
+		}
+		return true;
+	}
+
+	private static Attributes attributes(final String[] namesAndValues) {
+		final AttributesImpl result = new AttributesImpl();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+			result.addAttribute("", namesAndValues[i], namesAndValues[i], "CDATA", namesAndValues[i + 1]);
+		return result;
+	}
+
 	public boolean loadGuessingType(final String filename) {
 
 		final int guessedType = guessTracesFileType(filename);
@@ -1955,6 +1911,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			return loadUncompressedXML(filename);
 		case TRACES_FILE_TYPE_SWC:
 			return importSWC(filename, false, 0, 0, 0, 1, 1, 1, true);
+		case TRACES_FILE_TYPE_BINARY:
+			return loadBinary(filename);
 		default:
 			SNT.error("guessTracesFileType() return an unknown type" + guessedType);
 			return false;
@@ -2043,37 +2001,13 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 	}
 
-	synchronized PointInImage nearestJoinPointOnSelectedPaths(final double x, final double y, final double z) {
-
-		PointInImage result = null;
-
-		double minimumDistanceSquared = Double.MAX_VALUE;
-
-		final int paths = allPaths.size();
-
-		for (int s = 0; s < paths; ++s) {
-
-			final Path p = allPaths.get(s);
-
-			if (!selectedPathsSet.contains(p))
-				continue;
-
-			if (0 == p.size())
-				continue;
-
-			final int i = p.indexNearestTo(x * x_spacing, y * y_spacing, z * z_spacing);
-
-			final PointInImage nearestOnPath = p.getPointInImage(i);
-
-			final double distanceSquared = nearestOnPath.distanceSquaredTo(x * x_spacing, y * y_spacing, z * z_spacing);
-
-			if (distanceSquared < minimumDistanceSquared) {
-				result = nearestOnPath;
-				minimumDistanceSquared = distanceSquared;
-			}
-		}
+	/*
+	 * This doesn't take the manager's lock, since it's called as the mouse
+	 * moves; selectedPointIndex is only rebuilt when the selection changes:
+	 */
 
-		return result;
+	PointInImage nearestJoinPointOnSelectedPaths(final double x, final double y, final double z) {
+		return selectedPointIndex.nearestPathPoint(x * x_spacing, y * y_spacing, z * z_spacing);
 	}
 
 	@Deprecated
@@ -2130,38 +2064,13 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	public NearPoint nearestPointOnAnyPath(final double x, final double y, final double z, final double distanceLimit) {
 
 		/*
-		 * Order all points in all paths by their euclidean distance to (x,y,z):
+		 * Look at the points in all paths in the order of their euclidean
+		 * distance to (x,y,z), returning the first that has a segment next
+		 * to it that (x,y,z) is beside; pointIndex only looks at the points
+		 * near (x,y,z):
 		 */
 
-		final PriorityQueue<NearPoint> pq = new PriorityQueue<>();
-
-		for (final Path path : allPaths) {
-			if (!path.versionInUse())
-				continue;
-			for (int j = 0; j < path.size(); ++j) {
-				pq.add(new NearPoint(x, y, z, path, j));
-			}
-		}
-
-		while (true) {
-
-			final NearPoint np = pq.poll();
-			if (np == null)
-				return null;
-
-			/*
-			 * Don't bother looking at points that are more than distanceLimit
-			 * away. Since we get them in the order closest to furthest away, if
-			 * we exceed this limit returned:
-			 */
-
-			if (np.distanceToPathPointSquared() > (distanceLimit * distanceLimit))
-				return null;
-
-			final double distanceToPath = np.distanceToPathNearPoint();
-			if (distanceToPath >= 0)
-				return np;
-		}
+		return pointIndex.nearestPoint(x, y, z, distanceLimit);
 	}
 
 	public AllPointsIterator allPointsIterator() {
@@ -2253,16 +2162,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	 */
 
 	public ArrayList<NearPoint> getCorrespondences(final PathAndFillManager other, final double maxDistance) {
-
-		final ArrayList<NearPoint> result = new ArrayList<>();
-
-		final AllPointsIterator i = allPointsIterator();
-		while (i.hasNext()) {
-			final PointInImage p = i.next();
-			final NearPoint np = other.nearestPointOnAnyPath(p.x, p.y, p.z, maxDistance);
-			result.add(np);
-		}
-		return result;
+		return new Correspondences(this, other, maxDistance).getNearPoints();
 	}
 
 	public static String stringForCSV(final String s) {
@@ -0,0 +1,347 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/*
+ * A uniform grid over the points of all the paths in a PathAndFillManager
+ * (or of those selected), so that the nearest point on any path can be
+ * found by only looking at the cells around a position, rather than at
+ * every point of every path.
+ *
+ * Each point stands for the segments on either side of it, as in
+ * NearPoint, so the nearest segment is found from the nearest points: the
+ * cells are visited in rings of increasing distance, and a point is only
+ * considered once no unvisited cell could hold a nearer one.
+ *
+ * The manager adds and removes paths as they come and go (or are selected
+ * and deselected).  A path in the index tells it when its points change
+ * (see Path.pointsChanged()), and it's indexed again before the next query.
+ */
+
+class PathPointIndex {
+
+	/* The cells are this many times the smallest spacing of the first path: */
+	static final int CELL_SEPARATIONS = 8;
+
+	static final int KEY_BITS = 21;
+	static final int KEY_OFFSET = 1 << (KEY_BITS - 1);
+	static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+	static final class Cell {
+		Path[] paths = new Path[8];
+		int[] indices = new int[8];
+		int size;
+
+		void add(final Path path, final int index) {
+			if (size == paths.length) {
+				paths = Arrays.copyOf(paths, size * 2);
+				indices = Arrays.copyOf(indices, size * 2);
+			}
+			paths[size] = path;
+			indices[size++] = index;
+		}
+
+		void remove(final Path path) {
+			int kept = 0;
+			for (int i = 0; i < size; ++i) {
+				if (paths[i] == path)
+					continue;
+				paths[kept] = paths[i];
+				indices[kept++] = indices[i];
+			}
+			for (int i = kept; i < size; ++i)
+				paths[i] = null;
+			size = kept;
+		}
+	}
+
+	double cellSize;
+
+	final HashMap<Long, Cell> cells = new HashMap<>();
+
+	/* The cells that each path has points in: */
+	final Map<Path, long[]> cellsOfPath = new IdentityHashMap<>();
+
+	/* Paths whose points have changed since they were indexed: */
+	final Set<Path> changed = Collections.newSetFromMap(new IdentityHashMap<Path, Boolean>());
+
+	/* The range of cells that have ever had points in: */
+	int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+	int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+	static long key(final int x, final int y, final int z) {
+		return ((long) (x + KEY_OFFSET) << (2 * KEY_BITS)) | ((long) (y + KEY_OFFSET) << KEY_BITS)
+				| (z + KEY_OFFSET);
+	}
+
+	int cellOf(final double position) {
+		return (int) Math.floor(position / cellSize);
+	}
+
+	synchronized void add(final Path path) {
+		path.addPointIndex(this);
+		changed.add(path);
+	}
+
+	synchronized void remove(final Path path) {
+		path.removePointIndex(this);
+		changed.remove(path);
+		unindex(path);
+	}
+
+	synchronized void clear() {
+		for (final Path path : cellsOfPath.keySet())
+			path.removePointIndex(this);
+		for (final Path path : changed)
+			path.removePointIndex(this);
+		cells.clear();
+		cellsOfPath.clear();
+		changed.clear();
+		cellSize = 0;
+		minX = minY = minZ = Integer.MAX_VALUE;
+		maxX = maxY = maxZ = Integer.MIN_VALUE;
+	}
+
+	synchronized void pointsChanged(final Path path) {
+		changed.add(path);
+	}
+
+	private void unindex(final Path path) {
+		final long[] keys = cellsOfPath.remove(path);
+		if (keys == null)
+			return;
+		for (final long key : keys) {
+			final Cell cell = cells.get(key);
+			cell.remove(path);
+			if (cell.size == 0)
+				cells.remove(key);
+		}
+	}
+
+	private void index(final Path path) {
+		unindex(path);
+		final int n = path.size();
+		if (n == 0)
+			return;
+		if (cellSize == 0) {
+			cellSize = CELL_SEPARATIONS * path.getMinimumSeparation();
+			if (!(cellSize > 0) || Double.isInfinite(cellSize))
+				cellSize = CELL_SEPARATIONS;
+		}
+		final HashSet<Long> keys = new HashSet<>();
+		long lastKey = -1;
+		for (int i = 0; i < n; ++i) {
+			final int x = cellOf(path.precise_x_positions[i]);
+			final int y = cellOf(path.precise_y_positions[i]);
+			final int z = cellOf(path.precise_z_positions[i]);
+			final long key = key(x, y, z);
+			Cell cell = cells.get(key);
+			if (cell == null) {
+				cell = new Cell();
+				cells.put(key, cell);
+			}
+			cell.add(path, i);
+			// Consecutive points are usually in the same cell:
+			if (key != lastKey)
+				keys.add(key);
+			lastKey = key;
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			minZ = Math.min(minZ, z);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			maxZ = Math.max(maxZ, z);
+		}
+		final long[] result = new long[keys.size()];
+		int i = 0;
+		for (final long key : keys)
+			result[i++] = key;
+		cellsOfPath.put(path, result);
+	}
+
+	/*
+	 * Returns the same as PathAndFillManager.nearestPointOnAnyPath(): the
+	 * nearest point on a path in use (in the order of the distance to the
+	 * points themselves) that has a segment next to it that (x, y, z) can
+	 * be dropped onto, or null if there's none within distanceLimit.
+	 */
+
+	synchronized NearPoint nearestPoint(final double x, final double y, final double z, final double distanceLimit) {
+		update();
+		return search(x, y, z, distanceLimit);
+	}
+
+	/* Index the paths that have changed: */
+
+	synchronized void update() {
+		for (final Path path : changed)
+			index(path);
+		changed.clear();
+	}
+
+	/*
+	 * The same as nearestPoint(), without bringing the index up to date
+	 * first or taking its lock.  This is for many searches at once from
+	 * several threads, after update(), while none of the paths change.
+	 */
+
+	NearPoint search(final double x, final double y, final double z, final double distanceLimit) {
+
+		if (cells.isEmpty())
+			return null;
+
+		final int cx = cellOf(x), cy = cellOf(y), cz = cellOf(z);
+		final double limitSquared = distanceLimit * distanceLimit;
+
+		// No cell further away than this (in the number of cells in
+		// any direction) has ever had points in:
+		final int lastRing = Math.max(Math.max(Math.max(cx - minX, maxX - cx), Math.max(cy - minY, maxY - cy)),
+				Math.max(cz - minZ, maxZ - cz));
+		final int firstRing = Math.max(0, Math.max(Math.max(Math.max(minX - cx, cx - maxX), Math.max(minY - cy,
+				cy - maxY)), Math.max(minZ - cz, cz - maxZ)));
+
+		final PriorityQueue<NearPoint> pq = new PriorityQueue<>();
+
+		for (int ring = firstRing;; ++ring) {
+
+			if (ring <= lastRing)
+				addRing(pq, x, y, z, cx, cy, cz, ring);
+
+			// Any point in a cell further out than this ring is at
+			// least this far away:
+			final double reached = ring < lastRing ? ring * cellSize : Double.POSITIVE_INFINITY;
+			final double reachedSquared = reached * reached;
+
+			while (!pq.isEmpty() && pq.peek().distanceToPathPointSquared() <= reachedSquared) {
+				final NearPoint np = pq.poll();
+				if (np.distanceToPathPointSquared() > limitSquared)
+					return null;
+				if (np.distanceToPathNearPoint() >= 0)
+					return np;
+			}
+
+			if (ring >= lastRing || reachedSquared > limitSquared)
+				return null;
+		}
+	}
+
+	/*
+	 * The point nearest to (x, y, z) on any of the paths, whether it's the
+	 * version in use or not, or null if there are no points.  Unlike
+	 * nearestPoint(), this doesn't look at the segments beside the points.
+	 */
+
+	synchronized PointInImage nearestPathPoint(final double x, final double y, final double z) {
+
+		update();
+		if (cells.isEmpty())
+			return null;
+
+		final int cx = cellOf(x), cy = cellOf(y), cz = cellOf(z);
+		final int lastRing = Math.max(Math.max(Math.max(cx - minX, maxX - cx), Math.max(cy - minY, maxY - cy)),
+				Math.max(cz - minZ, maxZ - cz));
+		final int firstRing = Math.max(0, Math.max(Math.max(Math.max(minX - cx, cx - maxX), Math.max(minY - cy,
+				cy - maxY)), Math.max(minZ - cz, cz - maxZ)));
+
+		Path nearestPath = null;
+		int nearestIndex = -1;
+		double nearestDistanceSquared = Double.MAX_VALUE;
+
+		for (int ring = firstRing; ring <= lastRing; ++ring) {
+			final int z0 = Math.max(cz - ring, minZ), z1 = Math.min(cz + ring, maxZ);
+			final int y0 = Math.max(cy - ring, minY), y1 = Math.min(cy + ring, maxY);
+			final int x0 = Math.max(cx - ring, minX), x1 = Math.min(cx + ring, maxX);
+			for (int iz = z0; iz <= z1; ++iz)
+				for (int iy = y0; iy <= y1; ++iy) {
+					final boolean wholeRow = Math.abs(iz - cz) == ring || Math.abs(iy - cy) == ring;
+					final int step = wholeRow ? 1 : Math.max(1, 2 * ring);
+					for (int ix = wholeRow ? x0 : cx - ring; ix <= x1; ix += step) {
+						if (ix < x0)
+							continue;
+						final Cell cell = cells.get(key(ix, iy, iz));
+						if (cell == null)
+							continue;
+						for (int i = 0; i < cell.size; ++i) {
+							final Path path = cell.paths[i];
+							final int index = cell.indices[i];
+							final double dx = x - path.precise_x_positions[index];
+							final double dy = y - path.precise_y_positions[index];
+							final double dz = z - path.precise_z_positions[index];
+							final double distanceSquared = dx * dx + dy * dy + dz * dz;
+							if (distanceSquared < nearestDistanceSquared) {
+								nearestPath = path;
+								nearestIndex = index;
+								nearestDistanceSquared = distanceSquared;
+							}
+						}
+					}
+				}
+			// Every point in a cell further out is at least this far away:
+			final double reached = ring * cellSize;
+			if (nearestPath != null && nearestDistanceSquared <= reached * reached)
+				break;
+		}
+
+		return nearestPath.getPointInImage(nearestIndex);
+	}
+
+	/* Add the points in use in the cells ring cells away from (cx, cy, cz): */
+
+	private void addRing(final PriorityQueue<NearPoint> pq, final double x, final double y, final double z,
+			final int cx, final int cy, final int cz, final int ring) {
+		final int z0 = Math.max(cz - ring, minZ), z1 = Math.min(cz + ring, maxZ);
+		final int y0 = Math.max(cy - ring, minY), y1 = Math.min(cy + ring, maxY);
+		final int x0 = Math.max(cx - ring, minX), x1 = Math.min(cx + ring, maxX);
+		for (int iz = z0; iz <= z1; ++iz)
+			for (int iy = y0; iy <= y1; ++iy) {
+				// Only the first and last cells of a row are in the ring
+				// unless the row is on the ring's top, bottom or sides:
+				final boolean wholeRow = Math.abs(iz - cz) == ring || Math.abs(iy - cy) == ring;
+				final int step = wholeRow ? 1 : Math.max(1, 2 * ring);
+				for (int ix = wholeRow ? x0 : cx - ring; ix <= x1; ix += step) {
+					if (ix < x0)
+						continue;
+					final Cell cell = cells.get(key(ix, iy, iz));
+					if (cell == null)
+						continue;
+					for (int i = 0; i < cell.size; ++i) {
+						final Path path = cell.paths[i];
+						if (path.versionInUse())
+							pq.add(new NearPoint(x, y, z, path, cell.indices[i]));
+					}
+				}
+			}
+	}
+}
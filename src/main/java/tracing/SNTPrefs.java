@@ -2,6 +2,7 @@ package tracing;
 
 import java.awt.Font;
 import java.awt.Point;
+import java.io.File;
 
 import ij.Prefs;
 import ij.gui.GenericDialog;
@@ -29,12 +30,15 @@ public class SNTPrefs {
 	private static final int DEBUG = 4096;
 	private static final int LOOK_FOR_TRACES = 8192;
 	private static final int COMPRESSED_XML = 16384;
+	private static final int COARSE_TO_FINE = 32768;
 
 	private static final String BOOLEANS = "tracing.snt.booleans";
 	private static final String SNAP_XY = "tracing.snt.xysnap";
 	private static final String SNAP_Z = "tracing.snt.zsnap";
 	private static final String PATHWIN_LOC = "tracing.snt.pwloc";
 	private static final String FILLWIN_LOC = "tracing.snt.fwloc";
+	private static final String TUBES_CACHE_DIR = "tracing.snt.tubescachedir";
+	private static final String TUBES_CACHE_MB = "tracing.snt.tubescachemb";
 
 	//private static final String SNAP_Z = "tracing.snt.zsnap";
 
@@ -69,6 +73,7 @@ public class SNTPrefs {
 	protected void loadPluginPrefs() {
 		getBooleans();
 		snt.useCompressedXML = getPref(COMPRESSED_XML);
+		snt.setCoarseToFineEnabled(getPref(COARSE_TO_FINE));
 		snt.autoCanvasActivation = getPref(AUTO_CANVAS_ACTIVATION);
 		snt.snapCursor = getPref(SNAP_CURSOR);
 		snt.drawDiametersXY = getPref(DRAW_DIAMETERS_XY);
@@ -83,6 +88,9 @@ public class SNTPrefs {
 				SimpleNeuriteTracer.MAX_SNAP_CURSOR_WINDOW_Z);
 		if (snt.cursorSnapWindowZ > snt.depth)
 			snt.cursorSnapWindowZ = snt.depth;
+		final String cacheDir = Prefs.get(TUBES_CACHE_DIR, "");
+		snt.setTubenessCache(cacheDir.isEmpty() ? null : new File(cacheDir),
+				(long) Prefs.get(TUBES_CACHE_MB, 1024) * 1024 * 1024);
 	}
 
 	private int whithinBoundaries(final int value, final int min, final int max) {
@@ -119,6 +127,7 @@ public class SNTPrefs {
 
 	protected void savePluginPrefs() {
 		setPref(COMPRESSED_XML, snt.useCompressedXML);
+		setPref(COARSE_TO_FINE, snt.coarseToFineEnabled);
 		setPref(AUTO_CANVAS_ACTIVATION, snt.autoCanvasActivation);
 		setPref(SNAP_CURSOR, snt.snapCursor);
 		Prefs.set(SNAP_XY, snt.cursorSnapWindowXY);
@@ -168,6 +177,8 @@ public class SNTPrefs {
 		Prefs.set(SNAP_Z, null);
 		Prefs.set(FILLWIN_LOC, null);
 		Prefs.set(PATHWIN_LOC, null);
+		Prefs.set(TUBES_CACHE_DIR, null);
+		Prefs.set(TUBES_CACHE_MB, null);
 		currentBooleans = UNSET_PREFS;
 	}
 
@@ -178,7 +189,7 @@ public class SNTPrefs {
 	protected void promptForOptions() {
 
 		final int startupOptions = 7;
-		final int pluginOptions = 2;
+		final int pluginOptions = 3;
 
 		final String[] startupLabels = new String[startupOptions];
 		final int[] startupItems = new int[startupOptions];
@@ -222,6 +233,10 @@ public class SNTPrefs {
 		pluginLabels[idx] = "Use compression when saving traces";
 		pluginStates[idx++] = snt.useCompressedXML;
 
+		pluginItems[idx] = COARSE_TO_FINE;
+		pluginLabels[idx] = "Trace large images coarse-to-fine";
+		pluginStates[idx++] = snt.coarseToFineEnabled;
+
 		pluginItems[idx] = DEBUG;
 		pluginLabels[idx] = "Enable_debug mode";
 		pluginStates[idx++] = SimpleNeuriteTracer.verbose;
@@ -236,6 +251,8 @@ public class SNTPrefs {
 		gd.addMessage("Advanced Options:", font);
 		gd.setInsets(0, 0, 0);
 		gd.addCheckboxGroup(pluginOptions, 1, pluginLabels, pluginStates);
+		gd.addStringField("Tubeness_cache folder (empty: none)", Prefs.get(TUBES_CACHE_DIR, ""), 20);
+		gd.addNumericField("Tubeness_cache limit", Prefs.get(TUBES_CACHE_MB, 1024), 0, 6, "MB");
 
 		gd.enableYesNoCancel("OK", "Revert to Defaults");
 		gd.showDialog();
@@ -256,6 +273,8 @@ public class SNTPrefs {
 					currentBooleans &= ~pluginItems[i];
 			}
 			Prefs.set(BOOLEANS, currentBooleans);
+			Prefs.set(TUBES_CACHE_DIR, gd.getNextString().trim());
+			Prefs.set(TUBES_CACHE_MB, Math.max(1, (int) gd.getNextNumber()));
 
 		} else {
 			resetOptions();
@@ -0,0 +1,633 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.Arrays;
+
+/*
+ * The state of one direction of a search (i.e. everything that used to be
+ * held in open_from_start, closed_from_start and nodes_as_image_from_start)
+ * kept in primitive arrays rather than as one SearchNode object per voxel.
+ *
+ * For each voxel that the search has reached we store the cost g of the best
+ * route so far, the status (open or closed), the direction of the
+ * predecessor (one byte, as it's always one of the 26 neighbours) and, while
+ * the voxel is open, its slot in the open heap.  Those arrays are allocated
+ * in TILE_SIZE x TILE_SIZE tiles within a slice, only when the search first
+ * reaches a voxel in the tile.  The table of tiles only covers a box around
+ * the region explored so far (see TileTable), which grows as the search
+ * does, so the memory used is roughly proportional to the region explored
+ * even in a very large image.
+ *
+ * Voxels are identified by a "key" that packs x, y and z into a long; keys
+ * compare in the same order as SearchNode.compareTo broke ties (x, then y,
+ * then z), so the order in which nodes are expanded is unchanged.
+ *
+ * The open set is an indexed binary heap of keys with the f values alongside
+ * in a float array.  The closed set is just an append-only log of keys for
+ * counting and iteration; reopening a voxel leaves a stale entry that is
+ * skipped, and a voxel is never logged twice (IN_CLOSED_LOG).
+ *
+ * None of this is thread-safe.
+ */
+
+public class SearchState {
+
+	static final int TILE_BITS = 5;
+	static final int TILE_SIZE = 1 << TILE_BITS;
+	static final int TILE_MASK = TILE_SIZE - 1;
+	static final int TILE_VOXELS = TILE_SIZE * TILE_SIZE;
+
+	/* Each tile costs this many bytes per voxel (g, status, predecessor, heap slot): */
+	static final int BYTES_PER_VOXEL = 4 + 1 + 1 + 4;
+
+	static final byte STATUS_MASK = 0x0F;
+	static final byte IN_CLOSED_LOG = 0x40;
+
+	static final int COORDINATE_BITS = 21;
+	static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+	/*
+	 * The 26 neighbours in the order that SearchThread.run() has always
+	 * considered them (z outermost, then x, then y).  Predecessors are
+	 * recorded as 1 + the index of the offset from a voxel to its
+	 * predecessor, with 0 meaning that there's no predecessor.
+	 */
+	static final int[] NEIGHBOUR_DX = new int[26];
+	static final int[] NEIGHBOUR_DY = new int[26];
+	static final int[] NEIGHBOUR_DZ = new int[26];
+
+	/*
+	 * The 8 neighbours in the same slice are those from FIRST_IN_SLICE up to
+	 * (but not including) END_IN_SLICE, still in the same order, so a
+	 * search of a single slice only needs to consider those.
+	 */
+	static final int FIRST_IN_SLICE = 9;
+	static final int END_IN_SLICE = 17;
+
+	/* The predecessor code to store for a step to neighbour i: */
+	static final byte[] OPPOSITE_DIRECTION = new byte[26];
+
+	static {
+		int i = 0;
+		for (int zdiff = -1; zdiff <= 1; zdiff++)
+			for (int xdiff = -1; xdiff <= 1; xdiff++)
+				for (int ydiff = -1; ydiff <= 1; ydiff++) {
+					if ((xdiff == 0) && (ydiff == 0) && (zdiff == 0))
+						continue;
+					NEIGHBOUR_DX[i] = xdiff;
+					NEIGHBOUR_DY[i] = ydiff;
+					NEIGHBOUR_DZ[i] = zdiff;
+					++i;
+				}
+		for (i = 0; i < 26; ++i)
+			OPPOSITE_DIRECTION[i] = directionTo(-NEIGHBOUR_DX[i], -NEIGHBOUR_DY[i], -NEIGHBOUR_DZ[i]);
+	}
+
+	/* The direction code of the predecessor at offset (dx, dy, dz): */
+
+	static byte directionTo(final int dx, final int dy, final int dz) {
+		if (dx < -1 || dx > 1 || dy < -1 || dy > 1 || dz < -1 || dz > 1)
+			return 0;
+		final int i = (dz + 1) * 9 + (dx + 1) * 3 + (dy + 1);
+		if (i == 13)
+			return 0;
+		return (byte) (i < 13 ? i + 1 : i);
+	}
+
+	static long key(final int x, final int y, final int z) {
+		return ((long) x << (2 * COORDINATE_BITS)) | ((long) y << COORDINATE_BITS) | z;
+	}
+
+	static int keyX(final long key) {
+		return (int) (key >>> (2 * COORDINATE_BITS));
+	}
+
+	static int keyY(final long key) {
+		return (int) ((key >>> COORDINATE_BITS) & COORDINATE_MASK);
+	}
+
+	static int keyZ(final long key) {
+		return (int) (key & COORDINATE_MASK);
+	}
+
+	static int indexInTile(final int x, final int y) {
+		return ((y & TILE_MASK) << TILE_BITS) | (x & TILE_MASK);
+	}
+
+	static final class Tile {
+		final float[] g = new float[TILE_VOXELS];
+		final byte[] status = new byte[TILE_VOXELS];
+		final byte[] predecessor = new byte[TILE_VOXELS];
+		final int[] heapSlot = new int[TILE_VOXELS];
+	}
+
+	/*
+	 * The tiles in a box of the image, in tile coordinates (tile (tx, ty)
+	 * holds the voxels from x = tx * TILE_SIZE and y = ty * TILE_SIZE) and
+	 * slices.  When the search reaches a voxel outside the box, the table is
+	 * replaced with a larger copy; the box and the array are kept together
+	 * in one object so that a thread reading the state without locking (as
+	 * drawing the progress of a search does) always sees a consistent
+	 * table, even if it's out of date.
+	 */
+
+	static final class TileTable {
+		final int x, y, z;
+		final int width, height, depth;
+		final Tile[] tiles;
+
+		TileTable(final int x, final int y, final int z, final int width, final int height, final int depth) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			tiles = new Tile[width * height * depth];
+		}
+
+		/* The index of a tile in tiles, or -1 if it's outside the box: */
+
+		int index(final int tx, final int ty, final int z) {
+			final int bx = tx - x, by = ty - y, bz = z - this.z;
+			if (bx < 0 || bx >= width || by < 0 || by >= height || bz < 0 || bz >= depth)
+				return -1;
+			return (bz * height + by) * width + bx;
+		}
+	}
+
+	/* How many tiles (and slices) to allocate around the first voxel reached: */
+	static final int INITIAL_TABLE_MARGIN = 1;
+
+	final int width;
+	final int height;
+	final int depth;
+
+	final byte openStatus;
+	final byte closedStatus;
+
+	private final int tilesX;
+	private final int tilesY;
+	private TileTable table = new TileTable(0, 0, 0, 0, 0, 0);
+	private final boolean[] touched;
+	private int tilesAllocated;
+
+	private long[] heapKeys;
+	private float[] heapF;
+	private int openCount;
+
+	private long[] closedLog;
+	private int closedLogLength;
+	private int closedCount;
+
+	public SearchState(final int width, final int height, final int depth, final byte openStatus,
+			final byte closedStatus) {
+		if (width > COORDINATE_MASK || height > COORDINATE_MASK || depth > COORDINATE_MASK)
+			throw new IllegalArgumentException("Image too large to search: " + width + "x" + height + "x" + depth);
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.openStatus = openStatus;
+		this.closedStatus = closedStatus;
+		tilesX = (width + TILE_MASK) >> TILE_BITS;
+		tilesY = (height + TILE_MASK) >> TILE_BITS;
+		touched = new boolean[depth];
+		heapKeys = new long[1024];
+		heapF = new float[1024];
+		closedLog = new long[1024];
+	}
+
+	/* Returns null if nothing in that tile has been reached yet. */
+
+	Tile tileAt(final int x, final int y, final int z) {
+		final TileTable t = table;
+		final int index = t.index(x >> TILE_BITS, y >> TILE_BITS, z);
+		if (index < 0)
+			return null;
+		return t.tiles[index];
+	}
+
+	Tile tileFor(final int x, final int y, final int z) {
+		int index = table.index(x >> TILE_BITS, y >> TILE_BITS, z);
+		if (index < 0) {
+			growTable(x >> TILE_BITS, y >> TILE_BITS, z);
+			index = table.index(x >> TILE_BITS, y >> TILE_BITS, z);
+		}
+		final Tile[] tiles = table.tiles;
+		Tile tile = tiles[index];
+		if (tile == null) {
+			tile = tiles[index] = new Tile();
+			touched[z] = true;
+			++tilesAllocated;
+		}
+		return tile;
+	}
+
+	/*
+	 * Make the table cover tile (tx, ty) of slice z.  Each side of the box
+	 * that has to move is moved at least as far again as the box is wide
+	 * (or high, or deep), so that the table is only copied a few times
+	 * however far the search goes.
+	 */
+
+	private void growTable(final int tx, final int ty, final int z) {
+		final TileTable t = table;
+		if (t.tiles.length == 0) {
+			reserveTiles(tx - INITIAL_TABLE_MARGIN, ty - INITIAL_TABLE_MARGIN, z - INITIAL_TABLE_MARGIN,
+					tx + INITIAL_TABLE_MARGIN, ty + INITIAL_TABLE_MARGIN, z + INITIAL_TABLE_MARGIN);
+			return;
+		}
+		final int x0 = tx < t.x ? Math.min(tx, t.x - t.width) : t.x;
+		final int y0 = ty < t.y ? Math.min(ty, t.y - t.height) : t.y;
+		final int z0 = z < t.z ? Math.min(z, t.z - t.depth) : t.z;
+		final int x1 = tx >= t.x + t.width ? Math.max(tx, t.x + 2 * t.width - 1) : t.x + t.width - 1;
+		final int y1 = ty >= t.y + t.height ? Math.max(ty, t.y + 2 * t.height - 1) : t.y + t.height - 1;
+		final int z1 = z >= t.z + t.depth ? Math.max(z, t.z + 2 * t.depth - 1) : t.z + t.depth - 1;
+		reserveTiles(x0, y0, z0, x1, y1, z1);
+	}
+
+	/*
+	 * Make room in the table for the voxels from (x0, y0, z0) to (x1, y1,
+	 * z1) inclusive.  Searches that know roughly where they'll go (e.g.
+	 * around the start and goal of a trace) can call this first to avoid
+	 * growing the table a step at a time.
+	 */
+
+	public void reserve(final int x0, final int y0, final int z0, final int x1, final int y1, final int z1) {
+		final TileTable t = table;
+		if (t.tiles.length == 0)
+			reserveTiles(x0 >> TILE_BITS, y0 >> TILE_BITS, z0, x1 >> TILE_BITS, y1 >> TILE_BITS, z1);
+		else
+			reserveTiles(Math.min(x0 >> TILE_BITS, t.x), Math.min(y0 >> TILE_BITS, t.y), Math.min(z0, t.z),
+					Math.max(x1 >> TILE_BITS, t.x + t.width - 1), Math.max(y1 >> TILE_BITS, t.y + t.height - 1),
+					Math.max(z1, t.z + t.depth - 1));
+	}
+
+	/* Replace the table with one for the given tiles (clipped to the image): */
+
+	private void reserveTiles(int x0, int y0, int z0, int x1, int y1, int z1) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		z0 = Math.max(z0, 0);
+		x1 = Math.min(x1, tilesX - 1);
+		y1 = Math.min(y1, tilesY - 1);
+		z1 = Math.min(z1, depth - 1);
+		final TileTable old = table;
+		if (x0 == old.x && y0 == old.y && z0 == old.z && x1 - x0 + 1 == old.width && y1 - y0 + 1 == old.height
+				&& z1 - z0 + 1 == old.depth)
+			return;
+		final TileTable t = new TileTable(x0, y0, z0, x1 - x0 + 1, y1 - y0 + 1, z1 - z0 + 1);
+		for (int z = 0; z < old.depth; ++z)
+			for (int y = 0; y < old.height; ++y)
+				System.arraycopy(old.tiles, (z * old.height + y) * old.width, t.tiles,
+						t.index(old.x, old.y + y, old.z + z), old.width);
+		table = t;
+	}
+
+	public boolean sliceTouched(final int z) {
+		return touched[z];
+	}
+
+	/* One of openStatus, closedStatus or 0 if the voxel hasn't been reached: */
+
+	public byte getStatus(final int x, final int y, final int z) {
+		final Tile tile = tileAt(x, y, z);
+		if (tile == null)
+			return 0;
+		return (byte) (tile.status[indexInTile(x, y)] & STATUS_MASK);
+	}
+
+	public boolean reached(final int x, final int y, final int z) {
+		return getStatus(x, y, z) != 0;
+	}
+
+	public boolean isClosed(final int x, final int y, final int z) {
+		return getStatus(x, y, z) == closedStatus;
+	}
+
+	/* Only meaningful if the voxel has been reached: */
+
+	public float getG(final int x, final int y, final int z) {
+		final Tile tile = tileAt(x, y, z);
+		if (tile == null)
+			return Float.NaN;
+		return tile.g[indexInTile(x, y)];
+	}
+
+	/* Returns the key of the predecessor, or -1 if there isn't one. */
+
+	public long getPredecessor(final long key) {
+		final int x = keyX(key), y = keyY(key), z = keyZ(key);
+		final Tile tile = tileAt(x, y, z);
+		if (tile == null)
+			return -1;
+		final int d = tile.predecessor[indexInTile(x, y)];
+		if (d == 0)
+			return -1;
+		return key(x + NEIGHBOUR_DX[d - 1], y + NEIGHBOUR_DY[d - 1], z + NEIGHBOUR_DZ[d - 1]);
+	}
+
+	public int openSize() {
+		return openCount;
+	}
+
+	public int closedSize() {
+		return closedCount;
+	}
+
+	public int size() {
+		return openCount + closedCount;
+	}
+
+	public int tilesAllocated() {
+		return tilesAllocated;
+	}
+
+	/* An estimate of the memory used by this state, in bytes: */
+
+	public long bytesAllocated() {
+		return (long) tilesAllocated * TILE_VOXELS * BYTES_PER_VOXEL + table.tiles.length * 4L
+				+ heapKeys.length * 12L + closedLog.length * 8L;
+	}
+
+	/*
+	 * Adds a voxel that the search hasn't reached yet with the given status,
+	 * e.g. a start point or a node loaded from a Fill.  Returns false (and
+	 * does nothing) if the voxel has already been reached.  The predecessor
+	 * is given as a direction code (see directionTo).
+	 */
+
+	public boolean add(final int x, final int y, final int z, final float g, final float f, final byte predecessor,
+			final byte status) {
+		final Tile tile = tileFor(x, y, z);
+		final int i = indexInTile(x, y);
+		if ((tile.status[i] & STATUS_MASK) != 0)
+			return false;
+		tile.g[i] = g;
+		tile.predecessor[i] = predecessor;
+		if (status == openStatus) {
+			tile.status[i] = openStatus;
+			heapInsert(tile, i, key(x, y, z), f);
+		} else if (status == closedStatus) {
+			tile.status[i] = closedStatus;
+			log(tile, i, key(x, y, z));
+		} else
+			throw new IllegalArgumentException("BUG: unexpected status " + status);
+		return true;
+	}
+
+	/* The results of relax(): */
+
+	static final int UNCHANGED = 0;
+	static final int REACHED = 1;
+	static final int IMPROVED = 2;
+
+	/*
+	 * Records a route to (x, y, z) with cost g (and f = g + h) coming from
+	 * the neighbour in the given direction.  A voxel that hasn't been reached
+	 * yet becomes open (REACHED); if the voxel has been reached already this
+	 * only updates it if g is an improvement (IMPROVED), reopening it if it
+	 * was closed.  Otherwise nothing changes (UNCHANGED).
+	 */
+
+	public int relax(final int x, final int y, final int z, final float g, final float f, final byte predecessor) {
+		final Tile tile = tileFor(x, y, z);
+		final int i = indexInTile(x, y);
+		final int status = tile.status[i] & STATUS_MASK;
+		if (status == 0) {
+			tile.g[i] = g;
+			tile.predecessor[i] = predecessor;
+			tile.status[i] = openStatus;
+			heapInsert(tile, i, key(x, y, z), f);
+			return REACHED;
+		}
+		if (!(g < tile.g[i]))
+			return UNCHANGED;
+		tile.g[i] = g;
+		tile.predecessor[i] = predecessor;
+		if (status == openStatus) {
+			final int slot = tile.heapSlot[i];
+			heapF[slot] = f;
+			siftUp(slot);
+		} else {
+			// Reopen it, keeping the IN_CLOSED_LOG flag:
+			tile.status[i] = (byte) ((tile.status[i] & IN_CLOSED_LOG) | openStatus);
+			--closedCount;
+			heapInsert(tile, i, key(x, y, z), f);
+		}
+		return IMPROVED;
+	}
+
+	/*
+	 * True if relax() with this g would change anything, i.e. if (x, y, z)
+	 * hasn't been reached yet or g is cheaper than its current cost.  This
+	 * never allocates a tile, so the search can skip working out f for
+	 * routes that are no better.
+	 */
+
+	public boolean improves(final int x, final int y, final int z, final float g) {
+		final Tile tile = tileAt(x, y, z);
+		if (tile == null)
+			return true;
+		final int i = indexInTile(x, y);
+		return (tile.status[i] & STATUS_MASK) == 0 || g < tile.g[i];
+	}
+
+	/* The key of the open voxel with the lowest f, or -1 if there are none: */
+
+	public long peekOpen() {
+		return openCount == 0 ? -1 : heapKeys[0];
+	}
+
+	/* The lowest f of the open voxels, or +Infinity if there are none: */
+
+	public float peekOpenF() {
+		return openCount == 0 ? Float.POSITIVE_INFINITY : heapF[0];
+	}
+
+	/*
+	 * Removes the open voxel with the lowest f from the heap and returns its
+	 * key (or -1); its status is unchanged until close() is called.
+	 */
+
+	public long pollOpen() {
+		if (openCount == 0)
+			return -1;
+		final long result = heapKeys[0];
+		setSlot(result, -1);
+		final int last = --openCount;
+		if (last > 0) {
+			final long lastKey = heapKeys[last];
+			final float lastF = heapF[last];
+			siftDown(0, lastKey, lastF);
+		}
+		return result;
+	}
+
+	/* Marks a voxel that has been polled from the heap as closed: */
+
+	public void close(final long key) {
+		final int x = keyX(key), y = keyY(key);
+		final Tile tile = tileFor(x, y, keyZ(key));
+		final int i = indexInTile(x, y);
+		tile.status[i] = (byte) ((tile.status[i] & IN_CLOSED_LOG) | closedStatus);
+		log(tile, i, key);
+	}
+
+	/* The keys of the open voxels, in no particular order: */
+
+	public long[] openKeys() {
+		return Arrays.copyOf(heapKeys, openCount);
+	}
+
+	/* The keys of the closed voxels, in the order they were first closed: */
+
+	public long[] closedKeys() {
+		final long[] result = new long[closedCount];
+		int n = 0;
+		for (int j = 0; j < closedLogLength && n < result.length; ++j) {
+			final long key = closedLog[j];
+			if (isClosed(keyX(key), keyY(key), keyZ(key)))
+				result[n++] = key;
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	/*
+	 * The route from the search's starting point to the voxel, following
+	 * the predecessors back and then reversing:
+	 */
+
+	public Path asPath(final long key, final double x_spacing, final double y_spacing, final double z_spacing,
+			final String spacing_units) {
+		return asPathReversed(key, x_spacing, y_spacing, z_spacing, spacing_units).reversed();
+	}
+
+	/* The same route, but from the voxel back to the starting point: */
+
+	public Path asPathReversed(final long key, final double x_spacing, final double y_spacing,
+			final double z_spacing, final String spacing_units) {
+		final Path result = new Path(x_spacing, y_spacing, z_spacing, spacing_units);
+		long k = key;
+		do {
+			result.addPointDouble(keyX(k) * x_spacing, keyY(k) * y_spacing, keyZ(k) * z_spacing);
+			k = getPredecessor(k);
+		} while (k >= 0);
+		return result;
+	}
+
+	private void log(final Tile tile, final int i, final long key) {
+		++closedCount;
+		if ((tile.status[i] & IN_CLOSED_LOG) != 0)
+			return;
+		tile.status[i] |= IN_CLOSED_LOG;
+		if (closedLogLength == closedLog.length) {
+			if (closedLogLength > 2 * closedCount)
+				compactLog();
+			if (closedLogLength == closedLog.length)
+				closedLog = Arrays.copyOf(closedLog, closedLog.length + (closedLog.length >> 1));
+		}
+		closedLog[closedLogLength++] = key;
+	}
+
+	private void compactLog() {
+		int kept = 0;
+		for (int j = 0; j < closedLogLength; ++j) {
+			final long key = closedLog[j];
+			final int x = keyX(key), y = keyY(key);
+			final Tile tile = tileAt(x, y, keyZ(key));
+			final int i = indexInTile(x, y);
+			if ((tile.status[i] & STATUS_MASK) == closedStatus)
+				closedLog[kept++] = key;
+			else
+				tile.status[i] &= ~IN_CLOSED_LOG;
+		}
+		closedLogLength = kept;
+	}
+
+	/* Helpers for the heap: */
+
+	private void setSlot(final long key, final int slot) {
+		final int x = keyX(key), y = keyY(key);
+		tileAt(x, y, keyZ(key)).heapSlot[indexInTile(x, y)] = slot;
+	}
+
+	private void heapInsert(final Tile tile, final int i, final long key, final float f) {
+		if (openCount == heapKeys.length) {
+			final int newCapacity = heapKeys.length + (heapKeys.length >> 1);
+			heapKeys = Arrays.copyOf(heapKeys, newCapacity);
+			heapF = Arrays.copyOf(heapF, newCapacity);
+		}
+		final int slot = openCount++;
+		heapKeys[slot] = key;
+		heapF[slot] = f;
+		tile.heapSlot[i] = slot;
+		siftUp(slot);
+	}
+
+	private static boolean less(final float fa, final long ka, final float fb, final long kb) {
+		return fa < fb || (fa == fb && ka < kb);
+	}
+
+	private void siftUp(int slot) {
+		final long key = heapKeys[slot];
+		final float f = heapF[slot];
+		while (slot > 0) {
+			final int parent = (slot - 1) >>> 1;
+			if (!less(f, key, heapF[parent], heapKeys[parent]))
+				break;
+			heapKeys[slot] = heapKeys[parent];
+			heapF[slot] = heapF[parent];
+			setSlot(heapKeys[slot], slot);
+			slot = parent;
+		}
+		heapKeys[slot] = key;
+		heapF[slot] = f;
+		setSlot(key, slot);
+	}
+
+	/* Places (key, f) in the hole at slot, moving it down as necessary. */
+
+	private void siftDown(int slot, final long key, final float f) {
+		final int half = openCount >>> 1;
+		while (slot < half) {
+			int child = 2 * slot + 1;
+			final int right = child + 1;
+			if (right < openCount && less(heapF[right], heapKeys[right], heapF[child], heapKeys[child]))
+				child = right;
+			if (!less(heapF[child], heapKeys[child], f, key))
+				break;
+			heapKeys[slot] = heapKeys[child];
+			heapF[slot] = heapF[child];
+			setSlot(heapKeys[slot], slot);
+			slot = child;
+		}
+		heapKeys[slot] = key;
+		heapF[slot] = f;
+		setSlot(key, slot);
+	}
+}
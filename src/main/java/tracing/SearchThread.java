@@ -32,13 +32,14 @@ import java.awt.Graphics;
 import java.io.CharArrayWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.PriorityQueue;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.text.TextWindow;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
 import stacks.ThreePanes;
 
 /* This is the thread that explores the image using a variety of
@@ -58,38 +59,128 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	/*
 	 * This calculates the cost of moving to a new point in the image. This does
 	 * not take into account the distance to this new point, only the value at
-	 * it. This will be post-multiplied by the distance from the last point. So,
-	 * if you want to take into account the curvature of the image at that point
-	 * then you should do so in this method.
+	 * it. This will be post-multiplied by the distance from the last point.
+	 *
+	 * The costs come from the CostFunction (see costFunction()), which the
+	 * search asks for the costs of several points at a time.  Subclasses
+	 * that override this instead are still supported: the search then asks
+	 * this for the cost of each point in turn.
+	 */
+
+	protected double costMovingTo(final int new_x, final int new_y, final int new_z) {
+		return costFunction().cost(new_x, new_y, new_z);
+	}
+
+	CostFunction costFunction;
+
+	/* Use these costs rather than the default ones: */
+
+	public void setCostFunction(final CostFunction costFunction) {
+		this.costFunction = costFunction;
+	}
+
+	/*
+	 * The costs that are used, creating the default ones the first time
+	 * this is called (usually when the search starts, so that the cost
+	 * function can depend on anything set up after construction).
 	 */
 
+	public synchronized CostFunction costFunction() {
+		if (costFunction == null)
+			costFunction = defaultCostFunction();
+		return costFunction;
+	}
+
 	// The default implementation does a simple reciprocal of the
 	// image value scaled to 0 to 255 if it is not already an 8
 	// bit value:
 
-	protected double costMovingTo(final int new_x, final int new_y, final int new_z) {
+	protected CostFunction defaultCostFunction() {
+		return new IntensityCost(this, true);
+	}
 
-		double value_at_new_point = -1;
-		switch (imageType) {
-		case ImagePlus.GRAY8:
-		case ImagePlus.COLOR_256:
-			value_at_new_point = slices_data_b[new_z][new_y * width + new_x] & 0xFF;
-			break;
-		case ImagePlus.GRAY16:
-			value_at_new_point = slices_data_s[new_z][new_y * width + new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
-		case ImagePlus.GRAY32:
-			value_at_new_point = slices_data_f[new_z][new_y * width + new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
+	/*
+	 * Whether this is a subclass that overrides costMovingTo(), whose costs
+	 * have to be got one at a time from that:
+	 */
+
+	boolean costsPointByPoint;
+
+	static boolean overridesCostMovingTo(final Class<?> c) {
+		for (Class<?> k = c; k != SearchThread.class; k = k.getSuperclass()) {
+			try {
+				k.getDeclaredMethod("costMovingTo", int.class, int.class, int.class);
+				return true;
+			} catch (final NoSuchMethodException e) {
+				// Then look at its superclass
+			}
 		}
+		return false;
+	}
 
-		if (value_at_new_point == 0)
-			return 2.0;
-		else
-			return 1.0 / value_at_new_point;
+	/*
+	 * Put the costs of moving to the n points (xs[i], ys[i], zs[i]) in
+	 * costs, from the cost volume if there is one.
+	 */
+
+	void costsOf(final int n, final int[] xs, final int[] ys, final int[] zs, final double[] costs,
+			final CostFunction costFunction, final CostCache.Volume cached_costs) {
+		if (cached_costs != null) {
+			for (int i = 0; i < n; ++i)
+				costs[i] = cached_costs.cost(xs[i], ys[i], zs[i], this);
+		} else if (costsPointByPoint) {
+			for (int i = 0; i < n; ++i)
+				costs[i] = costMovingTo(xs[i], ys[i], zs[i]);
+		} else {
+			costFunction.costs(n, xs, ys, zs, costs);
+		}
+	}
+
+	/* The same for a width x height block of slice z, as CostCache uses: */
+
+	void costsOf(final int x0, final int y0, final int z, final int w, final int h, final double[] costs) {
+		if (costsPointByPoint) {
+			int k = 0;
+			for (int y = y0; y < y0 + h; ++y)
+				for (int x = x0; x < x0 + w; ++x)
+					costs[k++] = costMovingTo(x, y, z);
+		} else {
+			costFunction().costs(x0, y0, z, w, h, costs);
+		}
+	}
+
+	/*
+	 * A description of the cost function used by costMovingTo(), for looking
+	 * up cached costs in a CostCache: two searches of the same image whose
+	 * costMetric() is the same (and with the same sigma and multiplier) must
+	 * have the same costs.  Subclasses that change costMovingTo() should
+	 * override this, returning null if the costs shouldn't be cached.
+	 */
+
+	protected String costMetric() {
+		return costFunction().metric();
+	}
+
+	/*
+	 * If this is set, the costs are taken from (and lazily computed into)
+	 * a volume of a CostCache rather than calling costMovingTo() every time.
+	 */
+
+	CostCache.Volume costs;
+
+	public void setCostVolume(final CostCache.Volume costs) {
+		this.costs = costs;
+	}
+
+	/*
+	 * If this is set, a search between two points only considers points in
+	 * the corridor (see CoarseToFineTracerThread).
+	 */
+
+	Corridor corridor;
 
+	public void setCorridor(final Corridor corridor) {
+		this.corridor = corridor;
 	}
 
 	/*
@@ -99,18 +190,25 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 	protected void reportPointsInSearch() {
 		for (final SearchProgressCallback progress : progressListeners)
-			progress.pointsInSearch(this, open_from_start.size() + (bidirectional ? open_from_goal.size() : 0),
-					closed_from_start.size() + (bidirectional ? closed_from_goal.size() : 0));
+			progress.pointsInSearch(this,
+					search_from_start.openSize() + (bidirectional ? search_from_goal.openSize() : 0),
+					search_from_start.closedSize() + (bidirectional ? search_from_goal.closedSize() : 0));
 	}
 
 	public int pointsConsideredInSearch() {
-		return open_from_start.size() + (bidirectional ? open_from_goal.size() : 0) + closed_from_start.size()
-				+ (bidirectional ? closed_from_goal.size() : 0);
+		return search_from_start.size() + (bidirectional ? search_from_goal.size() : 0);
+	}
+
+	/* An estimate of the memory used by the search state, in bytes: */
+
+	public long bytesUsedBySearch() {
+		return search_from_start.bytesAllocated() + (bidirectional ? search_from_goal.bytesAllocated() : 0);
 	}
 
 	/*
-	 * This is a factory method for creating specialized search nodes,
-	 * subclasses of SearchNode:
+	 * This is a factory method for creating search nodes, e.g. for the start
+	 * points passed to addNode().  The search itself doesn't create
+	 * SearchNode objects; see SearchState.
 	 */
 
 	protected SearchNode createNewNode(final int x, final int y, final int z, final float g, final float h,
@@ -159,11 +257,38 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 	protected double minimum_cost_per_unit_distance;
 
+	/*
+	 * The calibrated length of a step to each of the 26 neighbours, in the
+	 * order of SearchState.NEIGHBOUR_DX etc.  These are worked out once per
+	 * search rather than once per neighbour expanded.
+	 */
+
+	double[] stepLengths() {
+		final double[] result = new double[26];
+		for (int n = 0; n < 26; ++n) {
+			final int xdiff = SearchState.NEIGHBOUR_DX[n];
+			final int ydiff = SearchState.NEIGHBOUR_DY[n];
+			final int zdiff = SearchState.NEIGHBOUR_DZ[n];
+			final double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
+			final double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
+			final double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+			result[n] = Math.sqrt(xdiffsq + ydiffsq + zdiffsq);
+		}
+		return result;
+	}
+
 	byte[][] slices_data_b;
 	short[][] slices_data_s;
 	float[][] slices_data_f;
 
+	/*
+	 * The pixels are either in the arrays above (for an ImagePlus, or an
+	 * ImgLib2 image with an array per slice) or read from voxels:
+	 */
 	ImagePlus imagePlus;
+	VoxelSource voxels;
+
+	Calibration calibration;
 
 	float x_spacing;
 	float y_spacing;
@@ -192,6 +317,21 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	long reportEveryMilliseconds;
 	long lastReportMilliseconds;
 
+	/*
+	 * When run() was first called, or 0 before that.  The timeout counts
+	 * from then, and calling run() again (as CoarseToFineTracerThread does)
+	 * carries on with the same status and deadline.
+	 */
+	long startedMilliseconds;
+
+	synchronized void starting() {
+		if (startedMilliseconds == 0) {
+			startedMilliseconds = System.currentTimeMillis();
+			threadStatus = startPaused ? PAUSED : RUNNING;
+		}
+		reportThreadStatus();
+	}
+
 	ArrayList<SearchProgressCallback> progressListeners;
 
 	public void addProgressListener(final SearchProgressCallback callback) {
@@ -227,9 +367,9 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		synchronized (this) {
 			if (verbose)
 				SNT.log("... entered synchronized");
-			if (threadStatus == PAUSED) {
+			if (threadStatus == PAUSED || waitingAtCostLimit) {
 				if (verbose)
-					SNT.log("was paused so interrupting");
+					SNT.log("was paused or waiting so interrupting");
 				this.interrupt();
 				if (verbose)
 					SNT.log("done interrupting");
@@ -247,7 +387,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	 * Override this method if you want to find out when a point was first
 	 * discovered:
 	 */
-	protected void addingNode(final SearchNode n) {
+	protected void addingNode(final int x, final int y, final int z) {
 	}
 
 	public void reportThreadStatus() {
@@ -306,13 +446,6 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 		this.imagePlus = imagePlus;
 
-		this.stackMin = stackMin;
-		this.stackMax = stackMax;
-
-		this.bidirectional = bidirectional;
-		this.definedGoal = definedGoal;
-		this.startPaused = startPaused;
-
 		this.imageType = imagePlus.getType();
 
 		width = imagePlus.getWidth();
@@ -341,7 +474,96 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			}
 		}
 
-		final Calibration calibration = imagePlus.getCalibration();
+		initialise(imagePlus.getCalibration(), stackMin, stackMax, bidirectional, definedGoal, startPaused,
+				timeoutSeconds, reportEveryMilliseconds);
+	}
+
+	/*
+	 * A search of a VoxelSource, which reads voxels from it as they're
+	 * needed rather than needing the whole image in memory.
+	 */
+
+	public SearchThread(final VoxelSource voxels, final float stackMin, final float stackMax,
+			final boolean bidirectional, final boolean definedGoal, final boolean startPaused, final int timeoutSeconds,
+			final long reportEveryMilliseconds) {
+
+		this.voxels = voxels;
+
+		this.imageType = voxels.getType();
+
+		width = voxels.getWidth();
+		height = voxels.getHeight();
+		depth = voxels.getDepth();
+
+		initialise(voxels.getCalibration(), stackMin, stackMax, bidirectional, definedGoal, startPaused,
+				timeoutSeconds, reportEveryMilliseconds);
+	}
+
+	/*
+	 * A search of an ImgLib2 image.  Images that keep their pixels in one
+	 * array per slice (such as a PlanarImg) are searched through those
+	 * arrays just as an ImagePlus is; anything else is read through an
+	 * ImgLib2VoxelSource.
+	 */
+
+	public <T extends RealType<T>> SearchThread(final RandomAccessibleInterval<T> image,
+			final Calibration calibration, final float stackMin, final float stackMax, final boolean bidirectional,
+			final boolean definedGoal, final boolean startPaused, final int timeoutSeconds,
+			final long reportEveryMilliseconds) {
+
+		final Object[] slices = ImgLib2VoxelSource.slices(image);
+
+		if (slices == null) {
+
+			voxels = new ImgLib2VoxelSource<>(image, calibration);
+			imageType = voxels.getType();
+			width = voxels.getWidth();
+			height = voxels.getHeight();
+			depth = voxels.getDepth();
+
+		} else {
+
+			imageType = ImgLib2VoxelSource.typeOf(image);
+			width = (int) image.dimension(0);
+			height = (int) image.dimension(1);
+			depth = slices.length;
+			switch (imageType) {
+			case ImagePlus.GRAY8:
+				slices_data_b = new byte[depth][];
+				for (int z = 0; z < depth; ++z)
+					slices_data_b[z] = (byte[]) slices[z];
+				break;
+			case ImagePlus.GRAY16:
+				slices_data_s = new short[depth][];
+				for (int z = 0; z < depth; ++z)
+					slices_data_s[z] = (short[]) slices[z];
+				break;
+			case ImagePlus.GRAY32:
+				slices_data_f = new float[depth][];
+				for (int z = 0; z < depth; ++z)
+					slices_data_f[z] = (float[]) slices[z];
+				break;
+			}
+		}
+
+		initialise(calibration, stackMin, stackMax, bidirectional, definedGoal, startPaused, timeoutSeconds,
+				reportEveryMilliseconds);
+	}
+
+	private void initialise(final Calibration calibration, final float stackMin, final float stackMax,
+			final boolean bidirectional, final boolean definedGoal, final boolean startPaused, final int timeoutSeconds,
+			final long reportEveryMilliseconds) {
+
+		this.calibration = calibration;
+
+		costsPointByPoint = overridesCostMovingTo(getClass());
+
+		this.stackMin = stackMin;
+		this.stackMax = stackMax;
+
+		this.bidirectional = bidirectional;
+		this.definedGoal = definedGoal;
+		this.startPaused = startPaused;
 
 		x_spacing = (float) calibration.pixelWidth;
 		y_spacing = (float) calibration.pixelHeight;
@@ -359,40 +581,35 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		this.timeoutSeconds = timeoutSeconds;
 		this.reportEveryMilliseconds = reportEveryMilliseconds;
 
-		closed_from_start = new PriorityQueue<>();
-		open_from_start = new PriorityQueue<>();
-		if (bidirectional) {
-			closed_from_goal = new PriorityQueue<>();
-			open_from_goal = new PriorityQueue<>();
-		}
-
-		nodes_as_image_from_start = new SearchNode[depth][];
+		search_from_start = new SearchState(width, height, depth, OPEN_FROM_START, CLOSED_FROM_START);
 		if (bidirectional)
-			nodes_as_image_from_goal = new SearchNode[depth][];
+			search_from_goal = new SearchState(width, height, depth, OPEN_FROM_GOAL, CLOSED_FROM_GOAL);
 
 		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
 
 		progressListeners = new ArrayList<>();
 	}
 
-	PriorityQueue<SearchNode> closed_from_start;
-	PriorityQueue<SearchNode> open_from_start;
-
-	// The next two are null if the search is not bidirectional
-	PriorityQueue<SearchNode> closed_from_goal;
-	PriorityQueue<SearchNode> open_from_goal;
+	/*
+	 * The open and closed lists, and the per-voxel costs and predecessors,
+	 * for the search from the start and (if the search is bidirectional,
+	 * otherwise this is null) from the goal:
+	 */
 
-	SearchNode[][] nodes_as_image_from_start;
-	SearchNode[][] nodes_as_image_from_goal;
+	SearchState search_from_start;
+	SearchState search_from_goal;
 
 	public void printStatus() {
-		SNT.log("... with " + open_from_start.size() + " open nodes at the start and " + closed_from_start.size()
-				+ " closed nodes at the start");
+		SNT.log("... with " + search_from_start.openSize() + " open nodes at the start and "
+				+ search_from_start.closedSize() + " closed nodes at the start");
 		if (bidirectional) {
-			SNT.log("... with " + open_from_goal.size() + " open nodes at the goal and " + closed_from_goal.size()
-					+ " closed nodes at the goal");
+			SNT.log("... with " + search_from_goal.openSize() + " open nodes at the goal and "
+					+ search_from_goal.closedSize() + " closed nodes at the goal");
 		} else
 			SNT.log(" ... unidirectional search");
+		final int points = pointsConsideredInSearch();
+		if (points > 0)
+			SNT.log("... using " + (bytesUsedBySearch() / points) + " bytes per node");
 	}
 
 	@Override
@@ -407,27 +624,43 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			if (verbose)
 				SNT.log("... was asked to start it in the " + (startPaused ? "paused" : "unpaused") + " state.");
 
-			synchronized (this) {
-				threadStatus = startPaused ? PAUSED : RUNNING;
-				reportThreadStatus();
-			}
+			starting();
+
+			// Settle on the costs before any other threads use them:
+			costFunction();
 
-			final long started_at = lastReportMilliseconds = System.currentTimeMillis();
+			final long started_at = startedMilliseconds;
+			lastReportMilliseconds = System.currentTimeMillis();
 
 			int loops_at_last_report = 0;
 			int loops = 0;
 
+			final double[] step_lengths = stepLengths();
+			final double minimum_cost = minimum_cost_per_unit_distance;
+			final CostCache.Volume cached_costs = costs;
+			final CostFunction cost_function = costFunction();
+			final Neighbours neighbours = new Neighbours();
+
+			// The cheapest route between the two searches found so
+			// far, and a point on it that both have reached:
+			float meetingCost = Float.POSITIVE_INFINITY;
+			long meeting = -1;
+
 			/*
-			 * We maintain the list of nodes in the search in a couple of
-			 * different data structures here, which is bad for memory usage but
-			 * good for the speed of the search.
+			 * The state of each search is kept in a SearchState, which holds
+			 * the open and closed lists as well as the cost and predecessor
+			 * of every voxel reached, indexed in the same way as the voxels
+			 * of the image.
 			 *
-			 * As well as keeping the nodes in priority lists, we keep them in a
-			 * set of arrays that are indexed in the same way as voxels in the
-			 * image.
+			 * A bidirectional search is NBA* (Pijls and Post's "new
+			 * bidirectional A*"): it finishes once either search has no
+			 * open points left, and the cheapest route between the two
+			 * searches found by then is the cheapest path.  Points that
+			 * can't be on a cheaper route are closed without being
+			 * expanded, which keeps both searches small.
 			 */
 
-			while ((open_from_start.size() > 0) || (bidirectional && (open_from_goal.size() > 0))) {
+			while (search_from_start.openSize() > 0 && (!bidirectional || search_from_goal.openSize() > 0)) {
 
 				if (threadStatus == STOPPING) {
 					reportThreadStatus();
@@ -442,6 +675,13 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 					}
 				}
 
+				final float limit = costLimit();
+				if (!bidirectional && search_from_start.openSize() > 0 && search_from_start.peekOpenF() > limit) {
+					waitAtCostLimit(limit);
+					continue;
+				}
+				waitingAtCostLimit = false;
+
 				// We only check every thousandth loop for
 				// whether we should report the progress, etc.
 
@@ -477,175 +717,79 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				}
 
 				boolean fromStart = true;
-				if (bidirectional)
-					fromStart = open_from_goal.size() > open_from_start.size();
-
-				final PriorityQueue<SearchNode> open_queue = fromStart ? open_from_start : open_from_goal;
-				final PriorityQueue<SearchNode> closed_queue = fromStart ? closed_from_start : closed_from_goal;
-
-				final SearchNode[][] nodes_as_image_this_search = fromStart ? nodes_as_image_from_start
-						: nodes_as_image_from_goal;
-				final SearchNode[][] nodes_as_image_other_search = fromStart ? nodes_as_image_from_goal
-						: nodes_as_image_from_start;
-
-				SearchNode p = null;
-
-				if (open_queue.size() == 0)
-					continue;
-
-				// p = get_highest_priority( open_from_start,
-				// open_from_start_hash );
-				p = open_queue.poll();
-				if (p == null)
-					continue;
-
-				// Has the route from the start found the goal?
-				if (definedGoal && atGoal(p.x, p.y, p.z, fromStart)) {
-					if (verbose)
-						SNT.log("Found the goal!");
-					if (fromStart)
-						foundGoal(p.asPath(x_spacing, y_spacing, z_spacing, spacing_units));
-					else
-						foundGoal(p.asPathReversed(x_spacing, y_spacing, z_spacing, spacing_units));
-					setExitReason(SUCCESS);
-					reportFinished(true);
-					return;
+				if (bidirectional) {
+					if (search_from_start.openSize() == 0)
+						fromStart = false;
+					else if (search_from_goal.openSize() > 0)
+						fromStart = search_from_goal.openSize() > search_from_start.openSize();
 				}
 
-				p.searchStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
-				closed_queue.add(p);
-				nodes_as_image_this_search[p.z][p.y * width + p.x] = p;
-
-				// Now look at the neighbours of p. We're going to consider
-				// the 26 neighbours in 3D.
-
-				for (int zdiff = -1; zdiff <= 1; zdiff++) {
+				final SearchState thisSearch = fromStart ? search_from_start : search_from_goal;
+				final SearchState otherSearch = fromStart ? search_from_goal : search_from_start;
 
-					final int new_z = p.z + zdiff;
-					if (new_z < 0 || new_z >= depth)
+				// Other threads may read thisSearch while holding its
+				// lock (see LiveWireThread.pathTo()):
+				synchronized (thisSearch) {
+					final float p_f = thisSearch.peekOpenF();
+					final long p = thisSearch.pollOpen();
+					if (p < 0)
 						continue;
 
-					if (nodes_as_image_this_search[new_z] == null) {
-						nodes_as_image_this_search[new_z] = new SearchNode[width * height];
+					final int p_x = SearchState.keyX(p);
+					final int p_y = SearchState.keyY(p);
+					final int p_z = SearchState.keyZ(p);
+
+					// Has the route from the start found the goal?
+					if (definedGoal && atGoal(p_x, p_y, p_z, fromStart)) {
+						if (verbose)
+							SNT.log("Found the goal!");
+						if (fromStart)
+							foundGoal(thisSearch.asPath(p, x_spacing, y_spacing, z_spacing, spacing_units));
+						else
+							foundGoal(thisSearch.asPathReversed(p, x_spacing, y_spacing, z_spacing, spacing_units));
+						setExitReason(SUCCESS);
+						reportFinished(true);
+						return;
 					}
 
-					for (int xdiff = -1; xdiff <= 1; xdiff++)
-						for (int ydiff = -1; ydiff <= 1; ydiff++) {
+					thisSearch.close(p);
 
-							if ((xdiff == 0) && (ydiff == 0) && (zdiff == 0))
-								continue;
+					if (bidirectional) {
+						// Skip points that the other search has dealt with,
+						// and those that the estimates show can't be on a
+						// route cheaper than the best one so far:
+						if (otherSearch.isClosed(p_x, p_y, p_z) || p_f >= meetingCost
+								|| thisSearch.getG(p_x, p_y, p_z) + otherSearch.peekOpenF()
+										- estimateCostToGoal(p_x, p_y, p_z, !fromStart) >= meetingCost) {
+							++loops;
+							continue;
+						}
+					}
 
-							final int new_x = p.x + xdiff;
-							final int new_y = p.y + ydiff;
+					final long met = expand(thisSearch, otherSearch, fromStart, p, step_lengths, minimum_cost,
+							cost_function, cached_costs, neighbours);
 
-							if (new_x < 0 || new_x >= width)
-								continue;
-
-							if (new_y < 0 || new_y >= height)
-								continue;
-
-							final double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
-							final double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
-							final double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
-
-							final float h_for_new_point = estimateCostToGoal(new_x, new_y, new_z, fromStart);
-
-							double cost_moving_to_new_point = costMovingTo(new_x, new_y, new_z);
-							if (cost_moving_to_new_point < minimum_cost_per_unit_distance) {
-								cost_moving_to_new_point = minimum_cost_per_unit_distance;
-							}
-
-							final float g_for_new_point = (float) (p.g
-									+ Math.sqrt(xdiffsq + ydiffsq + zdiffsq) * cost_moving_to_new_point);
-
-							final float f_for_new_point = h_for_new_point + g_for_new_point;
-
-							final SearchNode newNode = createNewNode(new_x, new_y, new_z, g_for_new_point,
-									h_for_new_point, p, FREE);
-
-							// Is this newNode really new?
-							final SearchNode alreadyThereInThisSearch = nodes_as_image_this_search[new_z][new_y * width
-									+ new_x];
-
-							if (alreadyThereInThisSearch == null) {
-
-								newNode.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-								open_queue.add(newNode);
-								addingNode(newNode);
-								nodes_as_image_this_search[new_z][new_y * width + new_x] = newNode;
-
-							} else {
-
-								// The other alternative is that this node is
-								// already in one
-								// of the lists working from the start but has a
-								// better way
-								// of getting to that point.
-
-								if (alreadyThereInThisSearch.f > f_for_new_point) {
-
-									if (alreadyThereInThisSearch.searchStatus == (fromStart ? OPEN_FROM_START
-											: OPEN_FROM_GOAL)) {
-
-										open_queue.remove(alreadyThereInThisSearch);
-										alreadyThereInThisSearch.setFrom(newNode);
-										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START
-												: OPEN_FROM_GOAL;
-										open_queue.add(alreadyThereInThisSearch);
-
-									} else if (alreadyThereInThisSearch.searchStatus == (fromStart ? CLOSED_FROM_START
-											: CLOSED_FROM_GOAL)) {
-
-										closed_queue.remove(alreadyThereInThisSearch);
-										alreadyThereInThisSearch.setFrom(newNode);
-										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START
-												: OPEN_FROM_GOAL;
-										open_queue.add(alreadyThereInThisSearch);
-									}
-								}
-							}
-
-							if (bidirectional && nodes_as_image_other_search[new_z] != null) {
-
-								final SearchNode alreadyThereInOtherSearch = nodes_as_image_other_search[new_z][new_y
-										* width + new_x];
-								if (alreadyThereInOtherSearch != null) {
-
-									Path result = null;
-
-									// If either of the next two if conditions
-									// are true
-									// then we've finished.
-
-									if (alreadyThereInOtherSearch != null
-											&& (alreadyThereInOtherSearch.searchStatus == CLOSED_FROM_START
-													|| alreadyThereInOtherSearch.searchStatus == CLOSED_FROM_GOAL)) {
-
-										if (fromStart) {
-											result = p.asPath(x_spacing, y_spacing, z_spacing, spacing_units);
-											final Path fromGoalReversed = alreadyThereInOtherSearch
-													.asPathReversed(x_spacing, y_spacing, z_spacing, spacing_units);
-											result.add(fromGoalReversed);
-										} else {
-											result = alreadyThereInOtherSearch.asPath(x_spacing, y_spacing, z_spacing,
-													spacing_units);
-											result.add(
-													p.asPathReversed(x_spacing, y_spacing, z_spacing, spacing_units));
-										}
-										if (verbose)
-											SNT.log("Searches met!");
-										foundGoal(result);
-										setExitReason(SUCCESS);
-										reportFinished(true);
-										return;
-									}
-								}
-							}
+					if (met >= 0) {
+						final int m_x = SearchState.keyX(met), m_y = SearchState.keyY(met), m_z = SearchState.keyZ(met);
+						final float cost = thisSearch.getG(m_x, m_y, m_z) + otherSearch.getG(m_x, m_y, m_z);
+						if (cost < meetingCost) {
+							meetingCost = cost;
+							meeting = met;
 						}
+					}
 				}
 				++loops;
 			}
 
+			if (meeting >= 0) {
+				if (verbose)
+					SNT.log("Searches met!");
+				foundGoal(pathThrough(meeting));
+				setExitReason(SUCCESS);
+				reportFinished(true);
+				return;
+			}
+
 			/*
 			 * If we get to here then we haven't found a route to the point.
 			 * (With the current impmlementation this shouldn't happen, so print
@@ -683,6 +827,229 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 	}
 
+	/*
+	 * A unidirectional search stops expanding points once every open point
+	 * has an f greater than costLimit(), keeping its open and closed
+	 * points, and waits there until costLimitRaised() is called or the
+	 * search is stopped.  It then carries on from where it was, so the
+	 * result is the same as if the limit had been higher all along.
+	 */
+
+	protected float costLimit() {
+		return Float.POSITIVE_INFINITY;
+	}
+
+	volatile boolean waitingAtCostLimit;
+
+	/* Wait for a while, unless the limit has changed since it was checked: */
+
+	void waitAtCostLimit(final float limit) {
+		final boolean arrived;
+		synchronized (this) {
+			if (costLimit() != limit)
+				return;
+			arrived = !waitingAtCostLimit;
+			waitingAtCostLimit = true;
+		}
+		if (arrived) {
+			if (verbose)
+				SNT.log("Reached the cost limit of " + limit);
+			reportPointsInSearch();
+			reachedCostLimit();
+		}
+		try {
+			Thread.sleep(4000);
+		} catch (final InterruptedException e) {
+		}
+	}
+
+	/* Called once each time the search stops at costLimit(): */
+
+	protected void reachedCostLimit() {
+	}
+
+	/* Call this after raising costLimit(), to wake up a waiting search: */
+
+	void costLimitRaised() {
+		synchronized (this) {
+			if (waitingAtCostLimit)
+				interrupt();
+		}
+	}
+
+	/* Room for the neighbours of a point and their costs: */
+
+	static final class Neighbours {
+		final int[] xs = new int[26];
+		final int[] ys = new int[26];
+		final int[] zs = new int[26];
+		final int[] directions = new int[26];
+		final double[] costs = new double[26];
+	}
+
+	/*
+	 * Consider the neighbours of p, which has just been closed in
+	 * thisSearch, adding them to the open list or improving the routes to
+	 * them.  If the search is bidirectional, this returns the key of the
+	 * neighbour with the cheapest new route through it that the other
+	 * search has also reached, or -1 if there is none.
+	 *
+	 * The search from the goal works backwards, so the cost of each step
+	 * from p to a neighbour is that of moving from the neighbour to p.
+	 * That way the costs from the two searches add up to the cost of the
+	 * route from the start to the goal.
+	 */
+
+	long expand(final SearchState thisSearch, final SearchState otherSearch, final boolean fromStart, final long p,
+			final double[] step_lengths, final double minimum_cost, final CostFunction cost_function,
+			final CostCache.Volume cached_costs, final Neighbours neighbours) {
+
+		final int p_x = SearchState.keyX(p);
+		final int p_y = SearchState.keyY(p);
+		final int p_z = SearchState.keyZ(p);
+		final float p_g = thisSearch.getG(p_x, p_y, p_z);
+
+		// Now look at the neighbours of p. We're going to consider
+		// the 26 neighbours in 3D, or the 8 in the slice if there's
+		// only one; only points on the border of the image need
+		// their neighbours checked against the bounds.
+
+		final boolean singleSlice = depth == 1;
+		final int firstNeighbour = singleSlice ? SearchState.FIRST_IN_SLICE : 0;
+		final int endNeighbour = singleSlice ? SearchState.END_IN_SLICE : 26;
+		final boolean interior = p_x > 0 && p_x < width - 1 && p_y > 0 && p_y < height - 1
+				&& (singleSlice || p_z > 0 && p_z < depth - 1);
+		final Corridor corridor = this.corridor;
+
+		final int[] xs = neighbours.xs;
+		final int[] ys = neighbours.ys;
+		final int[] zs = neighbours.zs;
+		final int[] directions = neighbours.directions;
+		final double[] costs = neighbours.costs;
+
+		double cost_moving_to_p = 0;
+		if (!fromStart) {
+			xs[0] = p_x;
+			ys[0] = p_y;
+			zs[0] = p_z;
+			costsOf(1, xs, ys, zs, costs, cost_function, cached_costs);
+			cost_moving_to_p = Math.max(costs[0], minimum_cost);
+		}
+
+		int count = 0;
+
+		for (int n = firstNeighbour; n < endNeighbour; ++n) {
+
+			final int new_x = p_x + SearchState.NEIGHBOUR_DX[n];
+			final int new_y = p_y + SearchState.NEIGHBOUR_DY[n];
+			final int new_z = p_z + SearchState.NEIGHBOUR_DZ[n];
+
+			if (!interior && (new_x < 0 || new_x >= width || new_y < 0 || new_y >= height || new_z < 0
+					|| new_z >= depth))
+				continue;
+
+			if (corridor != null && !corridor.contains(new_x, new_y, new_z))
+				continue;
+
+			// NBA* doesn't look again at points the other search has
+			// closed (the route through them is counted from there):
+			if (bidirectional && otherSearch.isClosed(new_x, new_y, new_z))
+				continue;
+
+			xs[count] = new_x;
+			ys[count] = new_y;
+			zs[count] = new_z;
+			directions[count] = n;
+			++count;
+		}
+
+		// Get the costs of all of those at once:
+		if (fromStart)
+			costsOf(count, xs, ys, zs, costs, cost_function, cached_costs);
+
+		long meeting = -1;
+		float meetingCost = Float.POSITIVE_INFINITY;
+
+		for (int i = 0; i < count; ++i) {
+
+			final int n = directions[i];
+			final int new_x = xs[i];
+			final int new_y = ys[i];
+			final int new_z = zs[i];
+
+			double cost_of_step = cost_moving_to_p;
+			if (fromStart) {
+				cost_of_step = costs[i];
+				if (cost_of_step < minimum_cost) {
+					cost_of_step = minimum_cost;
+				}
+			}
+
+			final float g_for_new_point = (float) (p_g + step_lengths[n] * cost_of_step);
+
+			// Only work out h (and touch the open list) if this
+			// is a new point or a better route to one that's
+			// already in this search.  relax() then either adds
+			// a new open node or improves the existing one,
+			// reopening it if it was closed:
+			if (thisSearch.improves(new_x, new_y, new_z, g_for_new_point)) {
+
+				final float h_for_new_point = estimateCostToGoal(new_x, new_y, new_z, fromStart);
+				final float f_for_new_point = h_for_new_point + g_for_new_point;
+
+				final int relaxed = thisSearch.relax(new_x, new_y, new_z, g_for_new_point, f_for_new_point,
+						SearchState.OPPOSITE_DIRECTION[n]);
+				if (relaxed == SearchState.REACHED)
+					addingNode(new_x, new_y, new_z);
+
+				// If the other search has reached this point too then
+				// there's a route from the start to the goal through it:
+				if (bidirectional && otherSearch.reached(new_x, new_y, new_z)) {
+					final float cost = g_for_new_point + otherSearch.getG(new_x, new_y, new_z);
+					if (cost < meetingCost) {
+						meetingCost = cost;
+						meeting = SearchState.key(new_x, new_y, new_z);
+					}
+				}
+			}
+		}
+
+		return meeting;
+	}
+
+	/*
+	 * The path from the start to the goal through meeting, which both
+	 * searches have reached.  The points are written straight into a path
+	 * of the right length, rather than joining copies of the two halves.
+	 */
+
+	Path pathThrough(final long meeting) {
+		int toStart = 0;
+		for (long k = meeting; k >= 0; k = search_from_start.getPredecessor(k))
+			++toStart;
+		int toGoal = 0;
+		for (long k = search_from_goal.getPredecessor(meeting); k >= 0; k = search_from_goal.getPredecessor(k))
+			++toGoal;
+
+		final Path result = new Path(x_spacing, y_spacing, z_spacing, spacing_units, toStart + toGoal);
+		int i = toStart;
+		for (long k = meeting; k >= 0; k = search_from_start.getPredecessor(k)) {
+			--i;
+			result.precise_x_positions[i] = SearchState.keyX(k) * x_spacing;
+			result.precise_y_positions[i] = SearchState.keyY(k) * y_spacing;
+			result.precise_z_positions[i] = SearchState.keyZ(k) * z_spacing;
+		}
+		i = toStart;
+		for (long k = search_from_goal.getPredecessor(meeting); k >= 0; k = search_from_goal.getPredecessor(k)) {
+			result.precise_x_positions[i] = SearchState.keyX(k) * x_spacing;
+			result.precise_y_positions[i] = SearchState.keyY(k) * y_spacing;
+			result.precise_z_positions[i] = SearchState.keyZ(k) * z_spacing;
+			++i;
+		}
+		result.points = toStart + toGoal;
+		return result;
+	}
+
 	/*
 	 * This is the heuristic value for the A* search. There's no defined goal in
 	 * this default superclass implementation, so always return 0 so we end up
@@ -717,24 +1084,25 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		return exitReason;
 	}
 
-	SearchNode anyNodeUnderThreshold(final int x, final int y, final int z, final double threshold) {
-		final SearchNode[] startSlice = nodes_as_image_from_start[z];
-		SearchNode[] goalSlice = null;
-		if (nodes_as_image_from_goal != null)
-			goalSlice = nodes_as_image_from_goal[z];
-		final int index = y * width + x;
-		SearchNode n = null;
-		if (startSlice != null) {
-			n = startSlice[index];
-			if (n != null && threshold >= 0 && n.g > threshold)
-				n = null;
-			if (n == null && goalSlice != null) {
-				n = goalSlice[index];
-				if (threshold >= 0 && n.g > threshold)
-					n = null;
-			}
-		}
-		return n;
+	/*
+	 * Returns the status of the point in the search from the start or,
+	 * failing that, the search from the goal, or 0 if neither has reached it
+	 * with a cost of at most threshold (if threshold is non-negative).
+	 */
+
+	byte anyStatusUnderThreshold(final int x, final int y, final int z, final double threshold) {
+		byte status = statusUnderThreshold(search_from_start, x, y, z, threshold);
+		if (status == 0 && search_from_goal != null)
+			status = statusUnderThreshold(search_from_goal, x, y, z, threshold);
+		return status;
+	}
+
+	private static byte statusUnderThreshold(final SearchState search, final int x, final int y, final int z,
+			final double threshold) {
+		final byte status = search.getStatus(x, y, z);
+		if (status != 0 && threshold >= 0 && search.getG(x, y, z) > threshold)
+			return 0;
+		return status;
 	}
 
 	/*
@@ -770,10 +1138,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				final int z = currentSliceInPlane;
 				for (int y = 0; y < height; ++y)
 					for (int x = 0; x < width; ++x) {
-						final SearchNode n = anyNodeUnderThreshold(x, y, z, drawingThreshold);
-						if (n == null)
-							continue;
-						final byte status = n.searchStatus;
+						final byte status = anyStatusUnderThreshold(x, y, z, drawingThreshold);
 						if (status == start_status || status == goal_status)
 							g.fillRect(canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2,
 									pixel_size, pixel_size);
@@ -782,10 +1147,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				final int y = currentSliceInPlane;
 				for (int z = 0; z < depth; ++z)
 					for (int x = 0; x < width; ++x) {
-						final SearchNode n = anyNodeUnderThreshold(x, y, z, drawingThreshold);
-						if (n == null)
-							continue;
-						final byte status = n.searchStatus;
+						final byte status = anyStatusUnderThreshold(x, y, z, drawingThreshold);
 						if (status == start_status || status == goal_status)
 							g.fillRect(canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(z) - pixel_size / 2,
 									pixel_size, pixel_size);
@@ -794,10 +1156,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				final int x = currentSliceInPlane;
 				for (int y = 0; y < height; ++y)
 					for (int z = 0; z < depth; ++z) {
-						final SearchNode n = anyNodeUnderThreshold(x, y, z, drawingThreshold);
-						if (n == null)
-							continue;
-						final byte status = n.searchStatus;
+						final byte status = anyStatusUnderThreshold(x, y, z, drawingThreshold);
 						if (status == start_status || status == goal_status)
 							g.fillRect(canvas.myScreenX(z) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2,
 									pixel_size, pixel_size);
@@ -810,41 +1169,29 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 	public void addNode(final SearchNode n, final boolean fromStart) {
 
-		final SearchNode[][] nodes_as_image = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
-
-		if (nodes_as_image[n.z] == null) {
-			nodes_as_image[n.z] = new SearchNode[width * height];
-		}
+		final SearchState search = fromStart ? search_from_start : search_from_goal;
 
-		if (nodes_as_image[n.z][n.y * width + n.x] != null) {
-			// Then there's already a node there:
+		byte status;
+		if (n.searchStatus == OPEN_FROM_START || n.searchStatus == OPEN_FROM_GOAL)
+			status = search.openStatus;
+		else if (n.searchStatus == CLOSED_FROM_START || n.searchStatus == CLOSED_FROM_GOAL)
+			status = search.closedStatus;
+		else
 			return;
-		}
-
-		if (n.searchStatus == OPEN_FROM_START) {
-
-			open_from_start.add(n);
-			nodes_as_image[n.z][n.y * width + n.x] = n;
-
-		} else if (n.searchStatus == OPEN_FROM_GOAL) {
-			assert bidirectional && definedGoal;
 
-			open_from_goal.add(n);
-			nodes_as_image[n.z][n.y * width + n.x] = n;
+		assert fromStart || (bidirectional && definedGoal);
 
-		} else if (n.searchStatus == CLOSED_FROM_START) {
-
-			closed_from_start.add(n);
-			nodes_as_image[n.z][n.y * width + n.x] = n;
-
-		} else if (n.searchStatus == CLOSED_FROM_GOAL) {
-			assert bidirectional && definedGoal;
-
-			closed_from_goal.add(n);
-			nodes_as_image[n.z][n.y * width + n.x] = n;
-
-		}
+		/*
+		 * The search only records the direction of a predecessor, so a
+		 * predecessor that isn't one of the 26 neighbours (which the search
+		 * itself never produces) is dropped:
+		 */
+		byte predecessor = 0;
+		final SearchNode p = n.getPredecessor();
+		if (p != null)
+			predecessor = SearchState.directionTo(p.x - n.x, p.y - n.y, p.z - n.z);
 
+		search.add(n.x, n.y, n.z, n.g, n.f, predecessor, status);
 	}
 
 }
@@ -78,7 +78,7 @@ import stacks.ThreePanes;
 */
 
 public class SimpleNeuriteTracer extends ThreePanes
-		implements SearchProgressCallback, GaussianGenerationCallback, PathAndFillListener {
+		implements LiveWireProgressCallback, GaussianGenerationCallback, PathAndFillListener {
 
 	protected static boolean verbose = false;
 
@@ -113,6 +113,35 @@ public class SimpleNeuriteTracer extends ThreePanes
 		return unsavedPaths;
 	}
 
+	/*
+	 * Each change to the paths is counted, so that a save that's written in
+	 * the background only marks them as saved if nothing changed after its
+	 * copy of them was taken.
+	 */
+
+	private int pathChanges;
+	private final Object pathChangesLock = new Object();
+
+	void pathsChanged() {
+		synchronized (pathChangesLock) {
+			++pathChanges;
+			unsavedPaths = true;
+		}
+	}
+
+	int pathChanges() {
+		synchronized (pathChangesLock) {
+			return pathChanges;
+		}
+	}
+
+	void pathsSaved(final int changesWhenCopied) {
+		synchronized (pathChangesLock) {
+			if (pathChanges == changesWhenCopied)
+				unsavedPaths = false;
+		}
+	}
+
 	public PathAndFillManager getPathAndFillManager() {
 		return pathAndFillManager;
 	}
@@ -162,10 +191,15 @@ public class SimpleNeuriteTracer extends ThreePanes
 			currentSearchThread.requestStop();
 		if (tubularGeodesicsThread != null)
 			tubularGeodesicsThread.requestStop();
+		if (liveWire != null)
+			liveWire.cancelPathTo();
+		liveWireClickPending = false;
 		endJoin = null;
 		endJoinPoint = null;
 		if (cancelFillToo && filler != null)
 			filler.requestStop();
+		if (cancelFillToo)
+			stopLiveWire();
 	}
 
 	@Override
@@ -543,6 +577,10 @@ public class SimpleNeuriteTracer extends ThreePanes
 				if (pathAndFillManager.loadUncompressedXML(chosenFile.getAbsolutePath()))
 					unsavedPaths = false;
 				break;
+			case PathAndFillManager.TRACES_FILE_TYPE_BINARY:
+				if (pathAndFillManager.loadBinary(chosenFile.getAbsolutePath()))
+					unsavedPaths = false;
+				break;
 			default:
 				SNT.error("The file '" + chosenFile.getAbsolutePath() + "' was of unknown type (" + guessedType + ")");
 				break;
@@ -609,6 +647,9 @@ public class SimpleNeuriteTracer extends ThreePanes
 				resultsDialog.showMouseThreshold(distance);
 			}
 		}
+
+		if (liveWireEnabled)
+			previewLiveWire(ix, iy, iz);
 	}
 
 	volatile boolean lastStartPointSet = false;
@@ -644,6 +685,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 		}
 
 		temporaryPath = path;
+		liveWirePreview = null;
 
 		if (temporaryPath != null)
 			temporaryPath.setName("Temporary Path");
@@ -812,15 +854,42 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 			tubularGeodesicsThread.start();
 
+		} else if (liveWireEnabled) {
+
+			final Path result = liveWirePathTo(x_end, y_end, z_end);
+			if (result != null)
+				liveWirePathFound(result);
+			else
+				liveWireClickPending = true;
+
 		} else {
 
-			currentSearchThread = new TracerThread(xy, stackMin, stackMax, 0, // timeout
-																				// in
-																				// seconds
-					1000, // reportEveryMilliseconds
-					last_start_point_x, last_start_point_y, last_start_point_z, x_end, y_end, z_end, true, // reciprocal
-					singleSlice, (hessianEnabled ? hessian : null), resultsDialog.getMultiplier(), tubeness,
-					hessianEnabled);
+			// If the multiplier has changed, the precomputed tubeness
+			// has to be regenerated:
+			if (hessianEnabled && tubenessGenerator != null
+					&& tubenessGenerator.multiplier != resultsDialog.getMultiplier())
+				startTubeness();
+
+			final TubenessGenerator generator = (hessianEnabled && tubeness == null) ? tubenessGenerator : null;
+
+			if (coarseToFineEnabled)
+				currentSearchThread = new CoarseToFineTracerThread(getImagePyramid(), stackMin, stackMax, 0, // timeout
+						1000, // reportEveryMilliseconds
+						last_start_point_x, last_start_point_y, last_start_point_z, x_end, y_end, z_end, true, // reciprocal
+						singleSlice, (hessianEnabled ? hessian : null), resultsDialog.getMultiplier(),
+						(generator != null) ? generator.getTubeness() : tubeness, hessianEnabled);
+			else
+				currentSearchThread = new TracerThread(xy, stackMin, stackMax, 0, // timeout
+																					// in
+																					// seconds
+						1000, // reportEveryMilliseconds
+						last_start_point_x, last_start_point_y, last_start_point_z, x_end, y_end, z_end, true, // reciprocal
+						singleSlice, (hessianEnabled ? hessian : null), resultsDialog.getMultiplier(),
+						(generator != null) ? generator.getTubeness() : tubeness, hessianEnabled);
+			currentSearchThread.setTubenessGenerator(generator);
+
+			useCostCache(currentSearchThread, hessianEnabled ? hessianSigma : 0,
+					hessianEnabled ? resultsDialog.getMultiplier() : 0);
 
 			addThreadToDraw(currentSearchThread);
 
@@ -836,6 +905,128 @@ public class SimpleNeuriteTracer extends ThreePanes
 		repaintAllPanes();
 	}
 
+	/*
+	 * In live-wire mode, one LiveWireThread searches outwards from the
+	 * start point for as long as that stays the same, so a path to
+	 * anywhere it has already explored is found straight away.
+	 */
+
+	volatile boolean liveWireEnabled = false;
+	LiveWireThread liveWire;
+
+	/*
+	 * While a path is being traced, the path from the start point to the
+	 * mouse pointer is shown as a preview; it is only kept (as the
+	 * temporary path) when that point is clicked.  liveWireClickPending is
+	 * true while liveWire is searching for a point that was clicked, when
+	 * the preview isn't changed.
+	 */
+
+	Path liveWirePreview;
+	volatile boolean liveWireClickPending;
+
+	public synchronized void setLiveWireEnabled(final boolean enabled) {
+		liveWireEnabled = enabled;
+		resultsDialog.useLiveWire.setSelected(enabled);
+		if (!enabled) {
+			stopLiveWire();
+			showLiveWirePreview(null);
+			repaintAllPanes();
+		}
+	}
+
+	synchronized void previewLiveWire(final int x, final int y, final int z) {
+		if (liveWireClickPending)
+			return;
+		if (!lastStartPointSet || !pathUnfinished || temporaryPath != null || tubularGeodesicsTracingEnabled) {
+			if (liveWirePreview != null) {
+				showLiveWirePreview(null);
+				repaintAllPanes();
+			}
+			return;
+		}
+		if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth)
+			return;
+		final Path result = liveWirePathTo(x, y, z);
+		if (result != null) {
+			showLiveWirePreview(result);
+			repaintAllPanes();
+		}
+	}
+
+	/* The preview is only drawn in the panes, not in the 3D viewer: */
+
+	synchronized void showLiveWirePreview(final Path path) {
+		liveWirePreview = path;
+		xy_tracer_canvas.setTemporaryPath(path);
+		if (!single_pane) {
+			zy_tracer_canvas.setTemporaryPath(path);
+			xz_tracer_canvas.setTemporaryPath(path);
+		}
+	}
+
+	synchronized void stopLiveWire() {
+		if (liveWire != null) {
+			liveWire.requestStop();
+			liveWire = null;
+		}
+	}
+
+	synchronized Path liveWirePathTo(final int x_end, final int y_end, final int z_end) {
+
+		if (hessianEnabled && tubenessGenerator != null
+				&& tubenessGenerator.multiplier != resultsDialog.getMultiplier())
+			startTubeness();
+
+		final TubenessGenerator generator = (hessianEnabled && tubeness == null) ? tubenessGenerator : null;
+		final float[][] searchTubeness = (generator != null) ? generator.getTubeness() : tubeness;
+		final ComputeCurvatures searchHessian = hessianEnabled ? hessian : null;
+
+		// Start a new search if the start point or the costs have changed:
+		if (liveWire == null || liveWire.start_x != last_start_point_x || liveWire.start_y != last_start_point_y
+				|| liveWire.start_z != last_start_point_z || liveWire.useHessian != hessianEnabled
+				|| liveWire.hessian != searchHessian || liveWire.tubeness != searchTubeness
+				|| liveWire.multiplier != resultsDialog.getMultiplier()) {
+			stopLiveWire();
+			liveWire = new LiveWireThread(xy, stackMin, stackMax, last_start_point_x, last_start_point_y,
+					last_start_point_z, true, // reciprocal
+					singleSlice, searchHessian, resultsDialog.getMultiplier(), searchTubeness, hessianEnabled,
+					LiveWireThread.DEFAULT_BACKGROUND_POINTS);
+			liveWire.setTubenessGenerator(generator);
+			useCostCache(liveWire, hessianEnabled ? hessianSigma : 0,
+					hessianEnabled ? resultsDialog.getMultiplier() : 0);
+			liveWire.addProgressListener(this);
+			liveWire.start();
+		}
+
+		return liveWire.pathTo(x_end, y_end, z_end);
+	}
+
+	/* Called from the live-wire thread if the path wasn't found straight away: */
+
+	@Override
+	synchronized public void pathFound(final LiveWireThread source, final Path result) {
+		if (source != liveWire || temporaryPath != null)
+			return;
+		if (liveWireClickPending)
+			liveWirePathFound(result);
+		else if (lastStartPointSet && pathUnfinished) {
+			showLiveWirePreview(result);
+			repaintAllPanes();
+		}
+	}
+
+	void liveWirePathFound(final Path result) {
+		liveWireClickPending = false;
+		removeSphere(targetBallName);
+		if (endJoin != null) {
+			result.setEndJoin(endJoin, endJoinPoint);
+		}
+		setTemporaryPath(result);
+		resultsDialog.changeState(NeuriteTracerResultsDialog.QUERY_KEEP);
+		repaintAllPanes();
+	}
+
 	synchronized public void confirmTemporary() {
 
 		if (temporaryPath == null)
@@ -944,13 +1135,15 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		lastStartPointSet = false;
 		setPathUnfinished(false);
+		stopLiveWire();
+		showLiveWirePreview(null);
 
 		final Path savedCurrentPath = currentPath;
 		setCurrentPath(null);
 
 		pathAndFillManager.addPath(savedCurrentPath, true);
 
-		unsavedPaths = true;
+		pathsChanged();
 
 		// ... and change the state of the UI
 		resultsDialog.changeState(NeuriteTracerResultsDialog.WAITING_TO_START_PATH);
@@ -997,7 +1190,9 @@ public class SimpleNeuriteTracer extends ThreePanes
 			 * Then this is a succeeding point, and we should start a search.
 			 */
 			testPathTo(world_x, world_y, world_z, joinPoint);
-			resultsDialog.changeState(NeuriteTracerResultsDialog.SEARCHING);
+			// (In live-wire mode the path may have been found already.)
+			if (temporaryPath == null)
+				resultsDialog.changeState(NeuriteTracerResultsDialog.SEARCHING);
 		} else {
 			/* This is an initial point. */
 			startPath(world_x, world_y, world_z, joinPoint);
@@ -1221,6 +1416,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		filler.addProgressListener(this);
 		filler.addProgressListener(resultsDialog.getFillWindow());
+		filler.setBoundMargin(fillBoundMargin);
 
 		addThreadToDraw(filler);
 
@@ -1234,6 +1430,20 @@ public class SimpleNeuriteTracer extends ThreePanes
 	// (FIXME: check that that is true)
 	FillerThread filler = null;
 
+	/*
+	 * If this is positive, fills only explore as far as the threshold
+	 * times this margin, carrying on when the threshold is raised (see
+	 * FillerThread.setBoundMargin).  By default they explore everything
+	 * that they can reach, so that the maximum threshold is known.
+	 */
+	double fillBoundMargin = 0;
+
+	public void setFillBoundMargin(final double margin) {
+		fillBoundMargin = margin;
+		if (filler != null)
+			filler.setBoundMargin(margin);
+	}
+
 	synchronized public void startFillingPaths(final Set<Path> fromPaths) {
 
 		// currentlyFilling = true;
@@ -1244,6 +1454,9 @@ public class SimpleNeuriteTracer extends ThreePanes
 				0.03f, // Initial threshold to display
 				5000); // reportEveryMilliseconds
 
+		useCostCache(filler, 0, 0);
+		filler.setBoundMargin(fillBoundMargin);
+
 		addThreadToDraw(filler);
 
 		filler.addProgressListener(this);
@@ -1281,20 +1494,126 @@ public class SimpleNeuriteTracer extends ThreePanes
 	volatile double hessianSigma = -1;
 
 	public void startHessian() {
-		if (hessian == null) {
-			resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
-			hessianSigma = resultsDialog.getSigma();
-			hessian = new ComputeCurvatures(xy, hessianSigma, this, true);
-			new Thread(hessian).start();
-		} else {
-			final double newSigma = resultsDialog.getSigma();
-			if (newSigma != hessianSigma) {
-				resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
-				hessianSigma = newSigma;
-				hessian = new ComputeCurvatures(xy, hessianSigma, this, true);
-				new Thread(hessian).start();
+		final double newSigma = resultsDialog.getSigma();
+		if ((hessian != null || tubenessGenerator != null) && newSigma == hessianSigma) {
+			// Carry on with any tiles that weren't finished:
+			if (tubenessGenerator != null)
+				tubenessGenerator.start();
+			return;
+		}
+		stopTubeness();
+		resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
+		hessianSigma = newSigma;
+		final File cacheDirectory = tubenessCacheDirectory;
+		tubenessCache = (cacheDirectory == null) ? null
+				: TubenessCache.open(cacheDirectory, tubenessCacheLimit, file_info, xy.getChannel(),
+						xy.getCalibration(), width, height, depth, hessianSigma, singleSlice);
+		if (tubenessCache != null && tubenessCache.isComplete()) {
+			// Then everything we need was computed in an earlier
+			// session, so there's no need for the Gaussian:
+			if (verbose)
+				SNT.log("Using the cached tubeness in " + tubenessCache.file);
+			hessian = null;
+			proportionDone(1.0);
+			return;
+		}
+		hessian = new ComputeCurvatures(xy, hessianSigma, this, true);
+		new Thread(hessian).start();
+	}
+
+	/*
+	 * Once the Gaussian has been generated the tubeness used by TracerThread
+	 * is filled in by this in the background, in parallel; until it's
+	 * finished, searches use the tiles that are ready and get the rest from
+	 * it on demand.  If everything's in the tubenessCache, searches just
+	 * read the tiles they need from there through it.  This isn't used if a
+	 * tubeness file was loaded.
+	 */
+
+	TubenessGenerator tubenessGenerator;
+	TubenessCache tubenessCache;
+
+	/*
+	 * The tubeness is only cached on disk (see TubenessCache) if a
+	 * directory has been set for it, in which case the cache files there are
+	 * kept under the limit (in bytes).
+	 */
+
+	volatile File tubenessCacheDirectory;
+	volatile long tubenessCacheLimit = 1024L * 1024 * 1024;
+
+	public void setTubenessCache(final File directory, final long limit) {
+		tubenessCacheDirectory = directory;
+		tubenessCacheLimit = limit;
+	}
+
+	synchronized void startTubeness() {
+		if (tubeness != null)
+			return;
+		final double multiplier = resultsDialog.getMultiplier();
+		if (tubenessGenerator != null) {
+			if (tubenessGenerator.hessian == hessian && tubenessGenerator.cache == tubenessCache
+					&& tubenessGenerator.multiplier == multiplier) {
+				tubenessGenerator.start();
+				return;
 			}
+			tubenessGenerator.cancel();
+		}
+		tubenessGenerator = new TubenessGenerator(hessian, tubenessCache, width, height, depth, (float) x_spacing,
+				(float) y_spacing, (float) z_spacing, multiplier, singleSlice, this);
+		tubenessGenerator.start();
+	}
+
+	synchronized void stopTubeness() {
+		if (tubenessGenerator != null) {
+			tubenessGenerator.cancel();
+			tubenessGenerator = null;
 		}
+		if (tubenessCache != null) {
+			tubenessCache.close();
+			tubenessCache = null;
+		}
+	}
+
+	/*
+	 * The costs worked out by searches in this image are kept here, so that
+	 * tracing again (or filling) with the same cost function doesn't have to
+	 * recompute them.  Only costs that are expensive to work out (those
+	 * whose CostFunction has a metric: the Hessian evaluated on demand, and
+	 * 32 bit intensities) are cached.  By default this uses up to a quarter
+	 * of the maximum heap; change that with getCostCache().setMemoryBudget().
+	 */
+
+	CostCache costCache = new CostCache(Runtime.getRuntime().maxMemory() / 4);
+
+	public CostCache getCostCache() {
+		return costCache;
+	}
+
+	/*
+	 * If this is set, paths are traced by finding a route in a downsampled
+	 * copy of the image first (see CoarseToFineTracerThread).
+	 */
+
+	volatile boolean coarseToFineEnabled = false;
+	ImagePyramid imagePyramid;
+
+	public void setCoarseToFineEnabled(final boolean enabled) {
+		coarseToFineEnabled = enabled;
+		if (resultsDialog != null)
+			resultsDialog.useCoarseToFine.setSelected(enabled);
+	}
+
+	synchronized ImagePyramid getImagePyramid() {
+		if (imagePyramid == null || imagePyramid.image != xy)
+			imagePyramid = new ImagePyramid(xy);
+		return imagePyramid;
+	}
+
+	void useCostCache(final SearchThread thread, final double sigma, final double multiplier) {
+		final String metric = thread.costMetric();
+		if (metric != null)
+			thread.setCostVolume(costCache.volume(xy, metric, sigma, multiplier));
 	}
 
 	// Even better, we might have a "tubeness" file already there.
@@ -1337,11 +1656,20 @@ public class SimpleNeuriteTracer extends ThreePanes
 		if (hessian != null) {
 			hessian.cancelGaussianGeneration();
 		}
+		if (tubenessGenerator != null) {
+			tubenessGenerator.cancel();
+		}
 	}
 
-	// This is the implementation of GaussianGenerationCallback
+	// This is the implementation of GaussianGenerationCallback, for both the
+	// Gaussian and the tubeness generated from it afterwards
 	@Override
 	public void proportionDone(final double proportion) {
+		final TubenessGenerator generator = tubenessGenerator;
+		if (generator != null && generator.isRunning()) {
+			IJ.showProgress(proportion);
+			return;
+		}
 		if (proportion < 0) {
 			hessianEnabled = false;
 			hessian = null;
@@ -1352,6 +1680,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 		} else if (proportion >= 1.0) {
 			hessianEnabled = true;
 			resultsDialog.gaussianCalculated(true);
+			startTubeness();
 		}
 		IJ.showProgress(proportion);
 	}
@@ -1402,24 +1731,21 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		// Now find corresponding points from the first one, and draw lines to
 		// them:
-		final ArrayList<NearPoint> cp = pathAndFillManager.getCorrespondences(pafmTraces, 2.5);
-		int done = 0;
-		for (final NearPoint np : cp) {
+		final Correspondences correspondences = new Correspondences(pathAndFillManager, pafmTraces, maxDistance);
+		SNT.log("Correspondences to " + tracesFile.getName() + ": " + correspondences);
+		// All the balls go in one mesh, since adding thousands of
+		// separate ones to the viewer is very slow:
+		final List<Point3f> balls = new ArrayList<>();
+		for (final NearPoint np : correspondences.getNearPoints()) {
 			if (np != null) {
-				// SNT.log("Drawing:");
-				// SNT.log(np.toString());
-
 				linePoints.add(new Point3f((float) np.nearX, (float) np.nearY, (float) np.nearZ));
 				linePoints.add(new Point3f((float) np.closestIntersection.x, (float) np.closestIntersection.y,
 						(float) np.closestIntersection.z));
-
-				final String ballName = univ.getSafeContentName("ball " + done);
-				final List<Point3f> sphere = customnode.MeshMaker.createSphere(np.nearX, np.nearY, np.nearZ,
-						Math.abs(x_spacing / 2));
-				univ.addTriangleMesh(sphere, new Color3f(c), ballName);
+				balls.addAll(customnode.MeshMaker.createSphere(np.nearX, np.nearY, np.nearZ, Math.abs(x_spacing / 2)));
 			}
-			++done;
 		}
+		if (!balls.isEmpty())
+			univ.addTriangleMesh(balls, new Color3f(c), univ.getSafeContentName("correspondence points"));
 		univ.addLineMesh(linePoints, new Color3f(Color.red), "correspondences", false);
 
 		for (int pi = 0; pi < pafmTraces.size(); ++pi) {
@@ -1662,7 +1988,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 						v = 0xFF & slices_data_b[z][xyIndex];
 						break;
 					case ImagePlus.GRAY16:
-						v = slices_data_s[z][xyIndex];
+						v = slices_data_s[z][xyIndex] & 0xFFFF;
 						break;
 					case ImagePlus.GRAY32:
 						v = slices_data_f[z][xyIndex];
@@ -1711,7 +2037,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 				v = 0xFF & slices_data_b[p[2]][xyIndex];
 				break;
 			case ImagePlus.GRAY16:
-				v = slices_data_s[p[2]][xyIndex];
+				v = slices_data_s[p[2]][xyIndex] & 0xFFFF;
 				break;
 			case ImagePlus.GRAY32:
 				v = slices_data_f[p[2]][xyIndex];
@@ -1823,6 +2149,8 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	@Override
 	public void closeAndReset() {
+		if (xy != null)
+			costCache.clear(xy);
 		// Dispose xz/zy images unless the user stored some annotations (ROIs)
 		// on the image overlay or modified them somehow. In that case, restore
 		// them to the user
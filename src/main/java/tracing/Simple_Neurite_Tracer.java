@@ -425,7 +425,7 @@ public class Simple_Neurite_Tracer extends SimpleNeuriteTracer implements PlugIn
 					for (int z = 0; z < depth; ++z) {
 						for (int y = 0; y < height; ++y)
 							for (int x = 0; x < width; ++x) {
-								final short v = slices_data_s[z][y * width + x];
+								final int v = slices_data_s[z][y * width + x] & 0xFFFF;
 								if (v < stackMin)
 									stackMin = v;
 								if (v > stackMax)
@@ -454,6 +454,9 @@ public class Simple_Neurite_Tracer extends SimpleNeuriteTracer implements PlugIn
 					IJ.showProgress(1.0);
 					break;
 				}
+				// Costs cached for this image may have been scaled
+				// from another range:
+				costCache.clear(xy);
 			}
 
 			final QueueJumpingKeyListener xy_listener = new QueueJumpingKeyListener(this, xy_tracer_canvas);
@@ -29,6 +29,9 @@ package tracing;
 
 import features.ComputeCurvatures;
 import ij.ImagePlus;
+import ij.measure.Calibration;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
 
 /* This is the thread that explores between two points in an image,
  * doing an A* search with a choice of distance measures. */
@@ -62,7 +65,7 @@ public class TracerThread extends SearchThread {
 
 		double minimum_cost;
 
-		if (hessian == null) {
+		if (!useHessian) {
 
 			minimum_cost = reciprocal ? (1 / 255.0) : 1;
 
@@ -80,6 +83,20 @@ public class TracerThread extends SearchThread {
 	float[][] tubeness;
 	boolean useHessian;
 
+	/*
+	 * If tubeness is being generated by a TubenessGenerator, the values
+	 * that aren't ready yet (NaN) are got from it.  This is necessary if
+	 * the tubeness is coming from a TubenessCache rather than a hessian.
+	 */
+	TubenessGenerator tubenessGenerator;
+
+	public synchronized void setTubenessGenerator(final TubenessGenerator tubenessGenerator) {
+		this.tubenessGenerator = tubenessGenerator;
+		// The default costs have to be recreated to use it:
+		if (costFunction instanceof TubenessCost)
+			costFunction = null;
+	}
+
 	boolean singleSlice;
 
 	/* If you specify 0 for timeoutSeconds then there is no timeout. */
@@ -90,22 +107,80 @@ public class TracerThread extends SearchThread {
 			final ComputeCurvatures hessian, final double multiplier, final float[][] tubeness,
 			final boolean useHessian) {
 
-		super(imagePlus, stackMin, stackMax, true, // bidirectional
+		this(imagePlus, stackMin, stackMax, timeoutSeconds, reportEveryMilliseconds, start_x, start_y, start_z,
+				goal_x, goal_y, goal_z, reciprocal, singleSlice, hessian, multiplier, tubeness, useHessian, true);
+	}
+
+	/*
+	 * If definedGoal is false, the goal is ignored and this just searches
+	 * outwards from the start with the same costs, i.e. with Dijkstra's
+	 * algorithm (as LiveWireThread does).
+	 */
+
+	TracerThread(final ImagePlus imagePlus, final float stackMin, final float stackMax, final int timeoutSeconds,
+			final long reportEveryMilliseconds, final int start_x, final int start_y, final int start_z,
+			final int goal_x, final int goal_y, final int goal_z, final boolean reciprocal, final boolean singleSlice,
+			final ComputeCurvatures hessian, final double multiplier, final float[][] tubeness,
+			final boolean useHessian, final boolean definedGoal) {
+
+		super(imagePlus, stackMin, stackMax, definedGoal, // bidirectional
+				definedGoal, // definedGoal
+				false, // startPaused,
+				timeoutSeconds, reportEveryMilliseconds);
+
+		setUp(start_x, start_y, start_z, goal_x, goal_y, goal_z, reciprocal, singleSlice, hessian, multiplier,
+				tubeness, useHessian);
+	}
+
+	/*
+	 * A search of a VoxelSource, e.g. a ChunkedVoxelFile of an image that's
+	 * too big for memory.  Only the intensity-based costs can be used, since
+	 * the Hessian needs the whole image.
+	 */
+
+	public TracerThread(final VoxelSource voxels, final float stackMin, final float stackMax,
+			final int timeoutSeconds, final long reportEveryMilliseconds, final int start_x, final int start_y,
+			final int start_z, final int goal_x, final int goal_y, final int goal_z, final boolean reciprocal) {
+
+		super(voxels, stackMin, stackMax, true, // bidirectional
+				true, // definedGoal
+				false, // startPaused,
+				timeoutSeconds, reportEveryMilliseconds);
+
+		setUp(start_x, start_y, start_z, goal_x, goal_y, goal_z, reciprocal, voxels.getDepth() == 1, null, 1, null,
+				false);
+	}
+
+	/*
+	 * A search of an ImgLib2 image (see the SearchThread constructor), also
+	 * only with the intensity-based costs.
+	 */
+
+	public <T extends RealType<T>> TracerThread(final RandomAccessibleInterval<T> image,
+			final Calibration calibration, final float stackMin, final float stackMax, final int timeoutSeconds,
+			final long reportEveryMilliseconds, final int start_x, final int start_y, final int start_z,
+			final int goal_x, final int goal_y, final int goal_z, final boolean reciprocal) {
+
+		super(image, calibration, stackMin, stackMax, true, // bidirectional
 				true, // definedGoal
 				false, // startPaused,
 				timeoutSeconds, reportEveryMilliseconds);
 
+		setUp(start_x, start_y, start_z, goal_x, goal_y, goal_z, reciprocal, depth == 1, null, 1, null, false);
+	}
+
+	private void setUp(final int start_x, final int start_y, final int start_z, final int goal_x, final int goal_y,
+			final int goal_z, final boolean reciprocal, final boolean singleSlice, final ComputeCurvatures hessian,
+			final double multiplier, final float[][] tubeness, final boolean useHessian) {
+
 		this.reciprocal = reciprocal;
 		this.singleSlice = singleSlice;
 		this.hessian = hessian;
 		this.tubeness = tubeness;
 		this.multiplier = multiplier;
-		// need to do this again since it needs to know if hessian is set...
-		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
-
-		this.tubeness = tubeness;
-
 		this.useHessian = useHessian;
+		// need to do this again since it needs to know if useHessian is set...
+		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
 
 		this.start_x = start_x;
 		this.start_y = start_y;
@@ -114,16 +189,40 @@ public class TracerThread extends SearchThread {
 		this.goal_y = goal_y;
 		this.goal_z = goal_z;
 
+		addEndPoints();
+
+		this.result = null;
+	}
+
+	/* Open the start (and the goal, if there is one) to begin the search: */
+
+	void addEndPoints() {
+
+		if (definedGoal) {
+			// Most searches stay near the box around the start and
+			// goal, so make room for that in the search state now
+			// rather than growing it a step at a time:
+			final int marginXY = Math.max(Math.abs(goal_x - start_x), Math.abs(goal_y - start_y)) / 4
+					+ SearchState.TILE_SIZE;
+			final int marginZ = Math.abs(goal_z - start_z) / 4 + 1;
+			final int x0 = Math.min(start_x, goal_x) - marginXY, x1 = Math.max(start_x, goal_x) + marginXY;
+			final int y0 = Math.min(start_y, goal_y) - marginXY, y1 = Math.max(start_y, goal_y) + marginXY;
+			final int z0 = Math.min(start_z, goal_z) - marginZ, z1 = Math.max(start_z, goal_z) + marginZ;
+			search_from_start.reserve(x0, y0, z0, x1, y1, z1);
+			if (bidirectional)
+				search_from_goal.reserve(x0, y0, z0, x1, y1, z1);
+		}
+
 		final SearchNode s = createNewNode(start_x, start_y, start_z, 0,
 				estimateCostToGoal(start_x, start_y, start_z, true), null, OPEN_FROM_START);
 		addNode(s, true);
 
-		final SearchNode g = createNewNode(goal_x, goal_y, goal_z, 0, estimateCostToGoal(goal_x, goal_y, goal_z, false),
-				null, OPEN_FROM_GOAL);
-
-		addNode(g, false);
+		if (definedGoal) {
+			final SearchNode g = createNewNode(goal_x, goal_y, goal_z, 0,
+					estimateCostToGoal(goal_x, goal_y, goal_z, false), null, OPEN_FROM_GOAL);
 
-		this.result = null;
+			addNode(g, false);
+		}
 	}
 
 	@Override
@@ -137,147 +236,105 @@ public class TracerThread extends SearchThread {
 	}
 
 	/*
-	 * If we're taking the reciprocal of the value at the new point as our cost,
-	 * then values of zero cause a problem. This is the value that we use
-	 * instead of zero there.
+	 * The costs are either Hessian-based (from the tubeness or hessian) or
+	 * based on the intensity, taking either the reciprocal of the value or
+	 * 256 minus it.
 	 */
 
-	static final double RECIPROCAL_FUDGE = 0.5;
+	@Override
+	protected CostFunction defaultCostFunction() {
+		if (useHessian)
+			return new TubenessCost(tubeness, tubenessGenerator, hessian, singleSlice, multiplier, width, x_spacing,
+					y_spacing, z_spacing);
+		return new IntensityCost(this, reciprocal);
+	}
 
 	/*
-	 * This cost doesn't take into account the distance between the points - it
-	 * will be post-multiplied by that value.
-	 *
-	 * The minimum cost should be > 0 - it is the value that is used in
-	 * calculating the heuristic for how far a given point is from the goal.
+	 * The measure of how tube-like the image is at a point that the Hessian
+	 * costs are based on: the cost of moving to the point is 1 / measure.
+	 * This is used both on demand by costMovingTo() and when precomputing
+	 * tubeness (see TubenessGenerator).
 	 */
 
-	@Override
-	protected double costMovingTo(final int new_x, final int new_y, final int new_z) {
-
-		double value_at_new_point = -1;
-
-		switch (imageType) {
-		case ImagePlus.GRAY8:
-		case ImagePlus.COLOR_256:
-			value_at_new_point = slices_data_b[new_z][new_y * width + new_x] & 0xFF;
-			break;
-		case ImagePlus.GRAY16: {
-			value_at_new_point = slices_data_s[new_z][new_y * width + new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
-		}
-		case ImagePlus.GRAY32: {
-			value_at_new_point = slices_data_f[new_z][new_y * width + new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
-		}
-		}
-
-		double cost;
-
-		if (useHessian) {
-
-			if (tubeness == null) {
-
-				if (singleSlice) {
-
-					final double[] hessianEigenValues = new double[2];
-
-					final boolean real = hessian.hessianEigenvaluesAtPoint2D(new_x, new_y, true, hessianEigenValues,
-							false, true, x_spacing, y_spacing);
-
-					// Just use the absolute value
-					// of the largest eigenvalue
-					// (if it's < 0)
-
-					if (real && (hessianEigenValues[1] < 0)) {
-
-						double measure = Math.abs(hessianEigenValues[1]);
-						if (measure == 0) // This should never happen in
-											// practice...
-							measure = 0.2;
-
-						measure *= multiplier;
-						if (measure > 256)
-							measure = 256;
-
-						cost = 1 / measure;
-
-					} else {
-
-						cost = 1 / 0.2;
-
-					}
-
-				} else {
-
-					final double[] hessianEigenValues = new double[3];
+	static double hessianMeasure(final ComputeCurvatures hessian, final boolean singleSlice, final int x, final int y,
+			final int z, final double multiplier, final float x_spacing, final float y_spacing, final float z_spacing) {
+		return measureFromRaw(hessianRaw(hessian, singleSlice, x, y, z, x_spacing, y_spacing, z_spacing), multiplier);
+	}
 
-					final boolean real = hessian.hessianEigenvaluesAtPoint3D(new_x, new_y, new_z, true,
-							hessianEigenValues, false, true, x_spacing, y_spacing, z_spacing);
+	/*
+	 * hessianMeasure() is worked out in two parts, so that the first (which
+	 * doesn't depend on the multiplier) can be cached on disk: this is the
+	 * value derived from the eigenvalues, or -1 where the point doesn't look
+	 * like a tube at all.
+	 */
 
-					/*
-					 * FIXME: there's lots of literature on how to pick this
-					 * rule (see Sato et al, "Three-dimensional multi-scale line
-					 * filter for segmentation and visualization of curvilinear
-					 * structures in medical images". The rule I'm using here
-					 * probably isn't optimal.
-					 */
+	static double hessianRaw(final ComputeCurvatures hessian, final boolean singleSlice, final int x, final int y,
+			final int z, final float x_spacing, final float y_spacing, final float z_spacing) {
 
-					final double e1 = hessianEigenValues[1];
-					final double e2 = hessianEigenValues[2];
+		if (singleSlice) {
 
-					if (real && (e1 < 0) && (e2 < 0)) {
+			final double[] hessianEigenValues = new double[2];
 
-						double measure = Math.sqrt(e1 * e2);
+			final boolean real = hessian.hessianEigenvaluesAtPoint2D(x, y, true, hessianEigenValues, false, true,
+					x_spacing, y_spacing);
 
-						if (measure == 0) // This should never happen in
-											// practice...
-							measure = 0.2;
+			// Just use the absolute value
+			// of the largest eigenvalue
+			// (if it's < 0)
 
-						measure *= multiplier;
-						if (measure > 256)
-							measure = 256;
+			if (real && (hessianEigenValues[1] < 0))
+				return Math.abs(hessianEigenValues[1]);
+			else
+				return -1;
 
-						cost = 1 / measure;
+		} else {
 
-					} else {
+			final double[] hessianEigenValues = new double[3];
 
-						cost = 1 / 0.2;
+			final boolean real = hessian.hessianEigenvaluesAtPoint3D(x, y, z, true, hessianEigenValues, false, true,
+					x_spacing, y_spacing, z_spacing);
 
-					}
+			/*
+			 * FIXME: there's lots of literature on how to pick this rule (see
+			 * Sato et al, "Three-dimensional multi-scale line filter for
+			 * segmentation and visualization of curvilinear structures in
+			 * medical images". The rule I'm using here probably isn't optimal.
+			 */
 
-				}
+			final double e1 = hessianEigenValues[1];
+			final double e2 = hessianEigenValues[2];
 
-			} else {
+			if (real && (e1 < 0) && (e2 < 0))
+				return Math.sqrt(e1 * e2);
+			else
+				return -1;
 
-				// Then this saves a lot of time:
-				float measure = tubeness[new_z][new_y * width + new_x];
-				if (measure == 0)
-					measure = 0.2f;
-				cost = 1 / measure;
+		}
+	}
 
-			}
+	static double measureFromRaw(final double raw, final double multiplier) {
 
-		} else {
+		if (raw < 0)
+			return 0.2;
 
-			if (reciprocal) {
-				cost = 1 / RECIPROCAL_FUDGE;
-				if (value_at_new_point != 0)
-					cost = 1.0 / value_at_new_point;
-			} else {
-				cost = 256 - value_at_new_point;
-			}
+		double measure = raw;
+		if (measure == 0) // This should never happen in
+							// practice...
+			measure = 0.2;
 
-		}
+		measure *= multiplier;
+		if (measure > 256)
+			measure = 256;
 
-		return cost;
+		return measure;
 	}
 
 	@Override
 	float estimateCostToGoal(final int current_x, final int current_y, final int current_z, final boolean fromStart) {
 
+		if (!definedGoal)
+			return 0;
+
 		final double xdiff = ((fromStart ? goal_x : start_x) - current_x) * x_spacing;
 		final double ydiff = ((fromStart ? goal_y : start_y) - current_y) * y_spacing;
 		final double zdiff = ((fromStart ? goal_z : start_z) - current_z) * z_spacing;
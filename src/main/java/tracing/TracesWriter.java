@@ -0,0 +1,355 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/*
+ * Writes the paths and fills of a PathAndFillManager in the .traces XML
+ * format.  The constructor copies everything that's written, so it should
+ * be called holding the manager's lock, but the (much slower) writing can
+ * then be done in another thread while the paths and fills change.
+ */
+
+class TracesWriter {
+
+	static final String DTD = "<!DOCTYPE tracings [\n"
+			+ "  <!ELEMENT tracings       (samplespacing,imagesize,path*,fill*)>\n"
+			+ "  <!ELEMENT imagesize      EMPTY>\n"
+			+ "  <!ELEMENT samplespacing  EMPTY>\n"
+			+ "  <!ELEMENT path           (point+)>\n"
+			+ "  <!ELEMENT point          EMPTY>\n"
+			+ "  <!ELEMENT fill           (node*)>\n"
+			+ "  <!ELEMENT node           EMPTY>\n"
+			+ "  <!ATTLIST samplespacing  x                 CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST samplespacing  y                 CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST samplespacing  z                 CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST samplespacing  units             CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST imagesize      width             CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST imagesize      height            CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST imagesize      depth             CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST path           id                CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST path           primary           CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           name              CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           startson          CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           startsindex       CDATA           #IMPLIED>\n" // deprecated
+			+ "  <!ATTLIST path           startsx           CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           startsy           CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           startsz           CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           endson            CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           endsindex         CDATA           #IMPLIED>\n" // deprecated
+			+ "  <!ATTLIST path           endsx             CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           endsy             CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           endsz             CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           reallength        CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           usefitted         (true|false)    #IMPLIED>\n"
+			+ "  <!ATTLIST path           fitted            CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           fittedversionof   CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           swctype           CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST path           color             CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          x                 CDATA           #REQUIRED>\n" // deprecated
+			+ "  <!ATTLIST point          y                 CDATA           #REQUIRED>\n" // deprecated
+			+ "  <!ATTLIST point          z                 CDATA           #REQUIRED>\n" // deprecated
+			+ "  <!ATTLIST point          xd                CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          yd                CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          zd                CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          tx                CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          ty                CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          tz                CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST point          r                 CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST fill           id                CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST fill           frompaths         CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST fill           metric            CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST fill           threshold         CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST fill           volume            CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST node           id                CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST node           x                 CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST node           y                 CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST node           z                 CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST node           previousid        CDATA           #IMPLIED>\n"
+			+ "  <!ATTLIST node           distance          CDATA           #REQUIRED>\n"
+			+ "  <!ATTLIST node           status            (open|closed)   #REQUIRED>\n"
+			+ "]>";
+
+	/* A copy of what's written for a path: */
+
+	static final class PathCopy {
+		/* The names and values of the path element's attributes, in turn: */
+		final String[] attributes;
+		final int[] x, y, z;
+		final double[] xd, yd, zd;
+		final double[] tx, ty, tz, r;
+
+		PathCopy(final Path p) {
+			final List<String> a = new ArrayList<>();
+			add(a, "id", p.getID());
+			add(a, "swctype", p.getSWCType());
+			add(a, "color", SNT.getColorString(p.getColor()));
+			if (p.getPrimary())
+				add(a, "primary", true);
+			add(a, "usefitted", p.getUseFitted());
+			if (p.fitted != null)
+				add(a, "fitted", p.fitted.getID());
+			if (p.fittedVersionOf != null)
+				add(a, "fittedversionof", p.fittedVersionOf.getID());
+			if (p.startJoins != null) {
+				add(a, "startson", p.startJoins.getID());
+				add(a, "startx", p.startJoinsPoint.x);
+				add(a, "starty", p.startJoinsPoint.y);
+				add(a, "startz", p.startJoinsPoint.z);
+				// The nearest index, for backward compatibility:
+				if (p.startJoins.size() > 0)
+					add(a, "startsindex", p.startJoins.indexNearestTo(p.startJoinsPoint.x, p.startJoinsPoint.y,
+							p.startJoinsPoint.z));
+			}
+			if (p.endJoins != null) {
+				add(a, "endson", p.endJoins.getID());
+				add(a, "endsx", p.endJoinsPoint.x);
+				add(a, "endsy", p.endJoinsPoint.y);
+				add(a, "endsz", p.endJoinsPoint.z);
+				if (p.endJoins.size() > 0)
+					add(a, "endsindex",
+							p.endJoins.indexNearestTo(p.endJoinsPoint.x, p.endJoinsPoint.y, p.endJoinsPoint.z));
+			}
+			if (p.name != null)
+				add(a, "name", p.name);
+			add(a, "reallength", p.getRealLength());
+			attributes = a.toArray(new String[a.size()]);
+
+			final int n = p.size();
+			x = new int[n];
+			y = new int[n];
+			z = new int[n];
+			for (int i = 0; i < n; ++i) {
+				x[i] = p.getXUnscaled(i);
+				y[i] = p.getYUnscaled(i);
+				z[i] = p.getZUnscaled(i);
+			}
+			xd = Arrays.copyOf(p.precise_x_positions, n);
+			yd = Arrays.copyOf(p.precise_y_positions, n);
+			zd = Arrays.copyOf(p.precise_z_positions, n);
+			if (p.hasCircles()) {
+				tx = Arrays.copyOf(p.tangents_x, n);
+				ty = Arrays.copyOf(p.tangents_y, n);
+				tz = Arrays.copyOf(p.tangents_z, n);
+				r = Arrays.copyOf(p.radiuses, n);
+			} else
+				tx = ty = tz = r = null;
+		}
+	}
+
+	/* A copy of what's written for a fill: */
+
+	static final class FillCopy {
+		final String[] attributes;
+		final int[] x, y, z, previous;
+		final double[] distance;
+		final boolean[] open;
+
+		FillCopy(final Fill f, final int fillIndex) {
+			final List<String> a = new ArrayList<>();
+			add(a, "id", fillIndex);
+			if (f.sourcePaths != null && f.sourcePaths.size() > 0)
+				add(a, "frompaths", f.getSourcePathsStringMachine());
+			add(a, "volume", f.getVolume());
+			add(a, "metric", f.getMetric());
+			add(a, "threshold", f.getThreshold());
+			attributes = a.toArray(new String[a.size()]);
+
+			final int n = f.nodeList.size();
+			x = new int[n];
+			y = new int[n];
+			z = new int[n];
+			previous = new int[n];
+			distance = new double[n];
+			open = new boolean[n];
+			for (int i = 0; i < n; ++i) {
+				final Fill.Node node = f.nodeList.get(i);
+				x[i] = node.x;
+				y[i] = node.y;
+				z[i] = node.z;
+				previous[i] = node.previous;
+				distance[i] = node.distance;
+				open[i] = node.open;
+			}
+		}
+	}
+
+	static void add(final List<String> attributes, final String name, final Object value) {
+		attributes.add(name);
+		attributes.add(String.valueOf(value));
+	}
+
+	final double x_spacing, y_spacing, z_spacing;
+	final String spacing_units;
+	final int width, height, depth;
+	final PathCopy[] paths;
+	final FillCopy[] fills;
+
+	TracesWriter(final PathAndFillManager manager) {
+		x_spacing = manager.x_spacing;
+		y_spacing = manager.y_spacing;
+		z_spacing = manager.z_spacing;
+		spacing_units = manager.spacing_units;
+		width = manager.width;
+		height = manager.height;
+		depth = manager.depth;
+		paths = new PathCopy[manager.allPaths.size()];
+		for (int i = 0; i < paths.length; ++i)
+			paths[i] = new PathCopy(manager.allPaths.get(i));
+		fills = new FillCopy[manager.allFills.size()];
+		for (int i = 0; i < fills.length; ++i)
+			fills[i] = new FillCopy(manager.allFills.get(i), i);
+	}
+
+	void write(final String fileName, final boolean compress) throws IOException {
+		final OutputStream fos = new FileOutputStream(fileName);
+		final OutputStream out = compress ? new ParallelGZIPOutputStream(fos) : fos;
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void write(final OutputStream out) throws IOException {
+		// XMLStreamWriter makes many small writes, which are slow to
+		// encode and compress one by one:
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16);
+		try {
+			// The XMLStreamWriter is flushed before each element that's
+			// written directly (see startContent), but that mustn't flush
+			// out, which would end a block of a ParallelGZIPOutputStream
+			// early every time:
+			final XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(new FilterWriter(writer) {
+				@Override
+				public void flush() {
+				}
+			});
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeCharacters("\n");
+			xml.writeDTD(DTD);
+			xml.writeCharacters("\n\n");
+			xml.writeStartElement("tracings");
+
+			xml.writeCharacters("\n  ");
+			xml.writeEmptyElement("samplespacing");
+			xml.writeAttribute("x", String.valueOf(x_spacing));
+			xml.writeAttribute("y", String.valueOf(y_spacing));
+			xml.writeAttribute("z", String.valueOf(z_spacing));
+			xml.writeAttribute("units", String.valueOf(spacing_units));
+
+			xml.writeCharacters("\n  ");
+			xml.writeEmptyElement("imagesize");
+			xml.writeAttribute("width", String.valueOf(width));
+			xml.writeAttribute("height", String.valueOf(height));
+			xml.writeAttribute("depth", String.valueOf(depth));
+
+			// The points and nodes only have numbers in their attributes,
+			// which never need escaping, so they're written straight to the
+			// writer: going through the XMLStreamWriter for each attribute
+			// made writing large fills slower than the old string building.
+			final StringBuilder line = new StringBuilder(160);
+
+			for (final PathCopy p : paths) {
+				xml.writeCharacters("\n  ");
+				xml.writeStartElement("path");
+				writeAttributes(xml, p.attributes);
+				startContent(xml);
+				for (int i = 0; i < p.x.length; ++i) {
+					line.setLength(0);
+					line.append("\n    <point x=\"").append(p.x[i]).append("\" y=\"").append(p.y[i])
+							.append("\" z=\"").append(p.z[i]).append("\" xd=\"").append(p.xd[i])
+							.append("\" yd=\"").append(p.yd[i]).append("\" zd=\"").append(p.zd[i]);
+					if (p.r != null)
+						line.append("\" tx=\"").append(p.tx[i]).append("\" ty=\"").append(p.ty[i])
+								.append("\" tz=\"").append(p.tz[i]).append("\" r=\"").append(p.r[i]);
+					line.append("\"/>");
+					writer.append(line);
+				}
+				xml.writeCharacters("\n  ");
+				xml.writeEndElement();
+			}
+
+			for (final FillCopy f : fills) {
+				xml.writeCharacters("\n  ");
+				xml.writeStartElement("fill");
+				writeAttributes(xml, f.attributes);
+				startContent(xml);
+				for (int i = 0; i < f.x.length; ++i) {
+					line.setLength(0);
+					line.append("\n    <node id=\"").append(i).append("\" x=\"").append(f.x[i]).append("\" y=\"")
+							.append(f.y[i]).append("\" z=\"").append(f.z[i]);
+					if (f.previous[i] >= 0)
+						line.append("\" previousid=\"").append(f.previous[i]);
+					line.append("\" distance=\"").append(f.distance[i]).append("\" status=\"")
+							.append(f.open[i] ? "open" : "closed").append("\"/>");
+					writer.append(line);
+				}
+				xml.writeCharacters("\n  ");
+				xml.writeEndElement();
+			}
+
+			xml.writeCharacters("\n");
+			xml.writeEndElement();
+			xml.writeCharacters("\n");
+			xml.writeEndDocument();
+			xml.close();
+			writer.flush();
+		} catch (final XMLStreamException e) {
+			throw new IOException("Writing the traces failed", e);
+		}
+	}
+
+	/*
+	 * Closes the start tag that the XMLStreamWriter has open and passes on
+	 * what it has buffered, so that the element's content can be written to
+	 * the writer:
+	 */
+	private static void startContent(final XMLStreamWriter xml) throws XMLStreamException {
+		xml.writeCharacters("");
+		xml.flush();
+	}
+
+	private static void writeAttributes(final XMLStreamWriter xml, final String[] attributes)
+			throws XMLStreamException {
+		for (int i = 0; i < attributes.length; i += 2)
+			xml.writeAttribute(attributes[i], attributes[i + 1]);
+	}
+}
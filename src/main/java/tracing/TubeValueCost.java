@@ -0,0 +1,95 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/*
+ * The costs that AutoSearchThread uses: the reciprocal of a tubeness value
+ * that has already been computed for every point, either held in memory
+ * or (if tubeValues is null) read from a VoxelSource.
+ */
+
+public class TubeValueCost implements CostFunction {
+
+	final float[][] tubeValues;
+	final VoxelSource tubes;
+	final int width;
+
+	public TubeValueCost(final float[][] tubeValues, final int width) {
+		this.tubeValues = tubeValues;
+		this.tubes = null;
+		this.width = width;
+	}
+
+	public TubeValueCost(final VoxelSource tubes) {
+		this.tubeValues = null;
+		this.tubes = tubes;
+		this.width = tubes.getWidth();
+	}
+
+	static double costOf(float measure) {
+		if (measure == 0)
+			measure = 0.2f;
+		return 1 / measure;
+	}
+
+	@Override
+	public double cost(final int x, final int y, final int z) {
+		return costOf(tubeValues != null ? tubeValues[z][y * width + x] : tubes.getValue(x, y, z));
+	}
+
+	@Override
+	public void costs(final int n, final int[] xs, final int[] ys, final int[] zs, final double[] costs) {
+		if (tubeValues != null) {
+			for (int i = 0; i < n; ++i)
+				costs[i] = costOf(tubeValues[zs[i]][ys[i] * width + xs[i]]);
+		} else {
+			for (int i = 0; i < n; ++i)
+				costs[i] = costOf(tubes.getValue(xs[i], ys[i], zs[i]));
+		}
+	}
+
+	@Override
+	public void costs(final int x0, final int y0, final int z, final int w, final int h, final double[] costs) {
+		int k = 0;
+		for (int y = y0; y < y0 + h; ++y) {
+			if (tubeValues != null) {
+				final float[] slice = tubeValues[z];
+				for (int i = y * width + x0; i < y * width + x0 + w; ++i)
+					costs[k++] = costOf(slice[i]);
+			} else {
+				for (int x = x0; x < x0 + w; ++x)
+					costs[k++] = costOf(tubes.getValue(x, y, z));
+			}
+		}
+	}
+
+	/* The tubeness values are already cheap to look up: */
+
+	@Override
+	public String metric() {
+		return null;
+	}
+}
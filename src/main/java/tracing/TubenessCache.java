@@ -0,0 +1,409 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+
+/*
+ * An on-disk cache of the tubeness computed from the Hessian of an image
+ * (as generated by TubenessGenerator), so that reopening the same image and
+ * using the same sigma doesn't need the Gaussian or the eigenvalues to be
+ * computed again.
+ *
+ * The cache is only used if a directory for it has been chosen (see
+ * SimpleNeuriteTracer.setTubenessCache).  The files in it are named after a
+ * SHA-1 hash of everything the values depend on: the image file (path, size
+ * and modification time), the channel, the calibration, sigma and whether
+ * the 2D or 3D measure is used.  A changed image therefore just gets a new
+ * file.  The directory is kept under a size limit: when a cache is opened
+ * the files that were opened least recently are deleted until the rest
+ * fit, and the file that's open then stops growing when the directory
+ * reaches the limit.
+ *
+ * Only the tubeness is cached, not the eigenvalues it's derived from: the
+ * searches never use the eigenvalues themselves, and they'd take three
+ * times the space.
+ *
+ * The values stored are the raw measure (see TracerThread.hessianRaw) so
+ * that they don't depend on the multiplier.  They're stored in the same
+ * tiles as TubenessGenerator uses, each deflated separately and written
+ * as a contiguous block, with a fixed-size index at the start of the file
+ * giving the offset and length of each block (or 0 for a tile that hasn't
+ * been written yet).  A file can be filled in over several sessions, and
+ * tiles are only read when they're needed.  The blocks are forced to disk
+ * before the index entries that refer to them are written, a batch at a
+ * time, so that after a crash the index only refers to complete blocks.
+ *
+ * The format is:
+ *
+ *   "SNTTUBE1"
+ *   int width, height, depth, tile size, number of tiles
+ *   long offset and int length of each tile, in order
+ *   the blocks, in the order that they were written
+ */
+
+public class TubenessCache {
+
+	static final boolean verbose = SimpleNeuriteTracer.verbose;
+
+	static final byte[] MAGIC = "SNTTUBE1".getBytes(StandardCharsets.US_ASCII);
+	static final int HEADER_BYTES = MAGIC.length + 5 * 4;
+	static final int INDEX_ENTRY_BYTES = 8 + 4;
+
+	/* How many blocks are written between forcing them to disk: */
+	static final int TILES_PER_SYNC = 256;
+
+	final File file;
+	final int width, height, depth, tileSize, tiles;
+
+	/* The size this file may grow to: */
+	final long maximumBytes;
+
+	final RandomAccessFile raf;
+	final FileChannel channel;
+
+	final long[] offsets;
+	final int[] lengths;
+	int tilesWritten;
+	boolean closed;
+	boolean full;
+
+	/* Tiles whose blocks have been written but whose index entries haven't: */
+	final List<Integer> unsynced = new ArrayList<>();
+
+	/*
+	 * Open (or create) the cache in directory for the tubeness of image with
+	 * this sigma, keeping the files there under maximumBytes in all.
+	 * Returns null if the image wasn't loaded from a file or the cache can't
+	 * be opened.
+	 */
+
+	public static TubenessCache open(final File directory, final long maximumBytes, final FileInfo fileInfo,
+			final int channel, final Calibration calibration, final int width, final int height, final int depth,
+			final double sigma, final boolean singleSlice) {
+		if (fileInfo == null || fileInfo.directory == null || fileInfo.fileName == null)
+			return null;
+		final File imageFile = new File(fileInfo.directory, fileInfo.fileName);
+		if (!imageFile.isFile())
+			return null;
+		final String description = imageFile.getAbsolutePath() + "\n" + imageFile.length() + "\n"
+				+ imageFile.lastModified() + "\nchannel " + channel + "\n" + calibration.pixelWidth + " x "
+				+ calibration.pixelHeight + " x " + calibration.pixelDepth + " " + calibration.getUnit() + "\n"
+				+ width + " x " + height + " x " + depth + "\nsigma " + sigma + "\n"
+				+ (singleSlice ? "2D" : "3D");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return null;
+		final File file = new File(directory, "tubeness-" + sha1(description) + ".bin");
+		final long others = deleteOldFiles(directory, file, maximumBytes);
+		try {
+			final TubenessCache cache = new TubenessCache(file, width, height, depth, TubenessGenerator.TILE_SIZE,
+					maximumBytes - others);
+			// So that deleteOldFiles() keeps the files in use:
+			file.setLastModified(System.currentTimeMillis());
+			return cache;
+		} catch (final IOException e) {
+			SNT.log("Couldn't open the tubeness cache " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * Delete the least recently opened cache files in directory (other
+	 * than keep) until the rest, including keep, take up no more than
+	 * maximumBytes.  Returns the size of the files left other than keep.
+	 */
+
+	static long deleteOldFiles(final File directory, final File keep, final long maximumBytes) {
+		final File[] found = directory.listFiles();
+		if (found == null)
+			return 0;
+		final List<File> files = new ArrayList<>();
+		long total = 0;
+		for (final File f : found) {
+			if (!f.getName().startsWith("tubeness-") || !f.getName().endsWith(".bin"))
+				continue;
+			total += f.length();
+			if (!f.equals(keep))
+				files.add(f);
+		}
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		long others = total - keep.length();
+		for (final File f : files) {
+			if (total <= maximumBytes)
+				break;
+			final long length = f.length();
+			if (f.delete()) {
+				total -= length;
+				others -= length;
+			} else
+				SNT.log("Couldn't delete the old tubeness cache " + f);
+		}
+		return others;
+	}
+
+	static String sha1(final String s) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder sb = new StringBuilder();
+			for (final byte b : digest)
+				sb.append(String.format("%02x", b & 0xFF));
+			return sb.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException("BUG: no SHA-1 available", e);
+		}
+	}
+
+	TubenessCache(final File file, final int width, final int height, final int depth, final int tileSize,
+			final long maximumBytes) throws IOException {
+		this.file = file;
+		this.maximumBytes = maximumBytes;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.tileSize = tileSize;
+		tiles = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize) * depth;
+		offsets = new long[tiles];
+		lengths = new int[tiles];
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		final long indexEnd = HEADER_BYTES + (long) tiles * INDEX_ENTRY_BYTES;
+		if (!readIndex(indexEnd)) {
+			// New, or not a file we can use, so start again:
+			channel.truncate(0);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.put(MAGIC).putInt(width).putInt(height).putInt(depth).putInt(tileSize).putInt(tiles);
+			header.flip();
+			writeFully(header, 0);
+			writeFully(ByteBuffer.allocate((int) (indexEnd - HEADER_BYTES)), HEADER_BYTES);
+		}
+	}
+
+	private boolean readIndex(final long indexEnd) throws IOException {
+		if (channel.size() < indexEnd)
+			return false;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(header, 0);
+		header.flip();
+		final byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC) || header.getInt() != width || header.getInt() != height
+				|| header.getInt() != depth || header.getInt() != tileSize || header.getInt() != tiles)
+			return false;
+		final ByteBuffer index = ByteBuffer.allocate((int) (indexEnd - HEADER_BYTES));
+		readFully(index, HEADER_BYTES);
+		index.flip();
+		final long size = channel.size();
+		for (int t = 0; t < tiles; ++t) {
+			offsets[t] = index.getLong();
+			lengths[t] = index.getInt();
+			// Ignore blocks that were never completely written:
+			if (lengths[t] > 0 && offsets[t] + lengths[t] > size)
+				lengths[t] = 0;
+			if (lengths[t] > 0)
+				++tilesWritten;
+		}
+		if (verbose)
+			SNT.log("Found " + tilesWritten + " of " + tiles + " tiles in " + file);
+		return true;
+	}
+
+	public synchronized boolean hasTile(final int tile) {
+		return lengths[tile] > 0;
+	}
+
+	public synchronized boolean isComplete() {
+		return tilesWritten == tiles;
+	}
+
+	/*
+	 * The raw values of a tile (tileSize * tileSize of them, row by row) or
+	 * null if that tile isn't in the cache or couldn't be read.  A tile that
+	 * can't be read is removed from the index, so that it's computed (and
+	 * written) again.
+	 */
+
+	public float[] readTile(final int tile) {
+		final ByteBuffer compressed;
+		synchronized (this) {
+			if (closed || lengths[tile] == 0)
+				return null;
+			compressed = ByteBuffer.allocate(lengths[tile]);
+			try {
+				readFully(compressed, offsets[tile]);
+			} catch (final IOException e) {
+				forget(tile, e);
+				return null;
+			}
+		}
+		try {
+			final Inflater inflater = new Inflater();
+			final byte[] raw = new byte[4 * tileSize * tileSize];
+			try {
+				inflater.setInput(compressed.array());
+				if (inflater.inflate(raw) != raw.length)
+					throw new IOException("tile " + tile + " is too short");
+			} finally {
+				inflater.end();
+			}
+			final float[] values = new float[tileSize * tileSize];
+			ByteBuffer.wrap(raw).asFloatBuffer().get(values);
+			return values;
+		} catch (final IOException | DataFormatException e) {
+			synchronized (this) {
+				forget(tile, e);
+			}
+			return null;
+		}
+	}
+
+	private void forget(final int tile, final Exception e) {
+		SNT.log("Couldn't read tile " + tile + " from " + file + ": " + e);
+		if (lengths[tile] == 0)
+			return;
+		lengths[tile] = 0;
+		--tilesWritten;
+		unsynced.remove(Integer.valueOf(tile));
+		if (closed)
+			return;
+		try {
+			writeFully(ByteBuffer.allocate(INDEX_ENTRY_BYTES), HEADER_BYTES + (long) tile * INDEX_ENTRY_BYTES);
+		} catch (final IOException e2) {
+			SNT.log("Couldn't write to " + file + ", so not caching any more tubeness there: " + e2);
+			close();
+		}
+	}
+
+	public void writeTile(final int tile, final float[] values) {
+		final ByteBuffer raw = ByteBuffer.allocate(4 * values.length);
+		raw.asFloatBuffer().put(values);
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		final byte[] compressed = new byte[raw.capacity() + 64];
+		int length;
+		try {
+			deflater.setInput(raw.array());
+			deflater.finish();
+			length = deflater.deflate(compressed);
+			if (!deflater.finished())
+				return;
+		} finally {
+			deflater.end();
+		}
+		synchronized (this) {
+			if (closed || full || lengths[tile] > 0)
+				return;
+			try {
+				final long offset = channel.size();
+				if (offset + length > maximumBytes) {
+					SNT.log("The tubeness cache " + file + " has reached its size limit");
+					full = true;
+					return;
+				}
+				writeFully(ByteBuffer.wrap(compressed, 0, length), offset);
+				offsets[tile] = offset;
+				lengths[tile] = length;
+				++tilesWritten;
+				unsynced.add(tile);
+				if (unsynced.size() >= TILES_PER_SYNC)
+					sync();
+			} catch (final IOException e) {
+				SNT.log("Couldn't write to " + file + ", so not caching any more tubeness there: " + e);
+				close();
+			}
+		}
+	}
+
+	/*
+	 * Force the blocks written so far to disk, and only then write the index
+	 * entries that refer to them, so that the index never refers to a block
+	 * that isn't there.
+	 */
+
+	private void sync() throws IOException {
+		if (unsynced.isEmpty())
+			return;
+		channel.force(false);
+		for (final int tile : unsynced) {
+			final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+			entry.putLong(offsets[tile]).putInt(lengths[tile]).flip();
+			writeFully(entry, HEADER_BYTES + (long) tile * INDEX_ENTRY_BYTES);
+		}
+		unsynced.clear();
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			sync();
+			channel.force(false);
+		} catch (final IOException e) {
+			SNT.log("Failed to write the index of " + file + ": " + e);
+		}
+		try {
+			raf.close();
+		} catch (final IOException e) {
+			SNT.log("Failed to close " + file + ": " + e);
+		}
+	}
+
+	private void readFully(final ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("unexpected end of " + file);
+			position += n;
+		}
+	}
+
+	private void writeFully(final ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+}
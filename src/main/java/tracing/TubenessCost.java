@@ -0,0 +1,106 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import features.ComputeCurvatures;
+
+/*
+ * The Hessian-based costs that TracerThread uses: the reciprocal of the
+ * measure of how tube-like the image is at each point.  The measure is
+ * taken from a precomputed tubeness array where that has it; where it's
+ * NaN (not computed yet, or there's no array) it comes from the
+ * TubenessGenerator if there is one, or otherwise is worked out from the
+ * hessian on demand.
+ */
+
+public class TubenessCost implements CostFunction {
+
+	final float[][] tubeness;
+	final TubenessGenerator tubenessGenerator;
+	final ComputeCurvatures hessian;
+	final boolean singleSlice;
+	final double multiplier;
+	final float x_spacing, y_spacing, z_spacing;
+	final int width;
+
+	public TubenessCost(final float[][] tubeness, final TubenessGenerator tubenessGenerator,
+			final ComputeCurvatures hessian, final boolean singleSlice, final double multiplier, final int width,
+			final float x_spacing, final float y_spacing, final float z_spacing) {
+		this.tubeness = tubeness;
+		this.tubenessGenerator = tubenessGenerator;
+		this.hessian = hessian;
+		this.singleSlice = singleSlice;
+		this.multiplier = multiplier;
+		this.width = width;
+		this.x_spacing = x_spacing;
+		this.y_spacing = y_spacing;
+		this.z_spacing = z_spacing;
+	}
+
+	@Override
+	public double cost(final int x, final int y, final int z) {
+
+		float measure = (tubeness == null) ? Float.NaN : tubeness[z][y * width + x];
+
+		if (Float.isNaN(measure))
+			return costOnDemand(x, y, z);
+
+		if (measure == 0)
+			measure = 0.2f;
+		return 1 / measure;
+	}
+
+	double costOnDemand(final int x, final int y, final int z) {
+		if (tubenessGenerator != null)
+			return 1 / tubenessGenerator.measureAt(x, y, z);
+		else
+			return 1 / TracerThread.hessianMeasure(hessian, singleSlice, x, y, z, multiplier, x_spacing, y_spacing,
+					z_spacing);
+	}
+
+	@Override
+	public void costs(final int n, final int[] xs, final int[] ys, final int[] zs, final double[] costs) {
+		for (int i = 0; i < n; ++i)
+			costs[i] = cost(xs[i], ys[i], zs[i]);
+	}
+
+	@Override
+	public void costs(final int x0, final int y0, final int z, final int w, final int h, final double[] costs) {
+		int k = 0;
+		for (int y = y0; y < y0 + h; ++y)
+			for (int x = x0; x < x0 + w; ++x)
+				costs[k++] = cost(x, y, z);
+	}
+
+	@Override
+	public String metric() {
+		// Looking up precomputed tubeness is already cheap:
+		if (tubeness != null)
+			return null;
+		return (singleSlice ? "hessian-2D" : "hessian-3D") + " spacing " + x_spacing + "," + y_spacing + ","
+				+ z_spacing;
+	}
+}
@@ -0,0 +1,401 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import features.ComputeCurvatures;
+import features.GaussianGenerationCallback;
+
+/*
+ * Fills in a tubeness array (as used by TracerThread in place of computing
+ * the Hessian eigenvalues at each point on demand) from a ComputeCurvatures
+ * whose Gaussian has been generated, in parallel on a ForkJoinPool of its
+ * own (so that other users of the common pool aren't held up by it).
+ *
+ * The volume is split into TILE_SIZE x TILE_SIZE tiles of each slice, each
+ * of which is a separate task.  Values that haven't been computed yet are
+ * NaN, so a TracerThread can be given the array straight away and will only
+ * fall back to computing the measure itself in unfinished tiles.  If the
+ * generation is cancelled the finished tiles are kept, and calling start()
+ * again only computes the remaining ones.
+ *
+ * If there is a TubenessCache, tiles that are in it are read from there
+ * rather than computed, and computed tiles are added to it.  If the cache
+ * has every tile then no hessian is needed (it may be null), and there's
+ * no tubeness array at all: tiles are only read as they're needed (by
+ * measureAt) and kept in memory up to a budget, after which the least
+ * recently used are dropped, as ChunkedVoxelFile does with an image.  With
+ * a hessian the whole array is still allocated, but then the Gaussian that
+ * the hessian holds is as large anyway.
+ *
+ * Progress is reported to the callback as the proportion of tiles done,
+ * finishing with 1.0 unless it was cancelled.  If a tile can't be computed,
+ * the generation stops and -1 is reported instead.
+ */
+
+public class TubenessGenerator {
+
+	static final int TILE_SIZE = 64;
+
+	static ForkJoinPool pool;
+
+	static synchronized ForkJoinPool pool() {
+		if (pool == null)
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	final ComputeCurvatures hessian;
+	final TubenessCache cache;
+	final double multiplier;
+	final boolean singleSlice;
+	final float x_spacing, y_spacing, z_spacing;
+
+	final int width, height, depth;
+	final int tilesX, tilesY, tilesPerSlice;
+
+	/* This is null if the tiles are read on demand: */
+	final float[][] tubeness;
+	final int tiles;
+
+	static final class Tile {
+		final int index;
+		final float[] measure;
+
+		/* Set when the tile is used, and cleared as it comes round for eviction: */
+		volatile boolean used;
+
+		Tile(final int index, final float[] measure) {
+			this.index = index;
+			this.measure = measure;
+		}
+	}
+
+	/*
+	 * The tiles read on demand, and those in memory in the order they were
+	 * read (only changed while synchronized on loaded):
+	 */
+	final AtomicReferenceArray<Tile> tilesRead;
+	final ArrayDeque<Tile> loaded = new ArrayDeque<>();
+	long memoryBudget = Runtime.getRuntime().maxMemory() / 8;
+	long bytesLoaded;
+
+	/*
+	 * Each tile is TODO, then IN_PROGRESS (claimed by one task) and then
+	 * DONE, or TODO again if computing it failed.  Threads that need a tile
+	 * that's IN_PROGRESS wait on tileLock, which is notified whenever a
+	 * claimed tile is finished with.
+	 */
+	static final int TODO = 0;
+	static final int IN_PROGRESS = 1;
+	static final int DONE = 2;
+
+	final AtomicIntegerArray tileStatus;
+	final Object tileLock = new Object();
+	final AtomicInteger tilesDone = new AtomicInteger();
+
+	final GaussianGenerationCallback callback;
+
+	volatile boolean running;
+
+	/* Tasks from an earlier start() stop when this changes: */
+	volatile int generation;
+
+	public TubenessGenerator(final ComputeCurvatures hessian, final TubenessCache cache, final int width,
+			final int height, final int depth, final float x_spacing, final float y_spacing, final float z_spacing,
+			final double multiplier, final boolean singleSlice, final GaussianGenerationCallback callback) {
+		if (hessian == null && (cache == null || !cache.isComplete()))
+			throw new IllegalArgumentException("Without a hessian, the tubeness cache must be complete");
+		this.hessian = hessian;
+		this.cache = cache;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.x_spacing = x_spacing;
+		this.y_spacing = y_spacing;
+		this.z_spacing = z_spacing;
+		this.multiplier = multiplier;
+		this.singleSlice = singleSlice;
+		this.callback = callback;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		tilesPerSlice = tilesX * tilesY;
+		tiles = tilesPerSlice * depth;
+		tileStatus = new AtomicIntegerArray(tiles);
+		if (hessian == null) {
+			tubeness = null;
+			tilesRead = new AtomicReferenceArray<>(tiles);
+			return;
+		}
+		tilesRead = null;
+		tubeness = new float[depth][];
+		for (int z = 0; z < depth; ++z) {
+			tubeness[z] = new float[width * height];
+			Arrays.fill(tubeness[z], Float.NaN);
+		}
+	}
+
+	/* This is null if the tiles are read on demand, so searches must use measureAt: */
+
+	public float[][] getTubeness() {
+		return tubeness;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/* Reading tiles on demand needs nothing to be done first: */
+
+	public boolean isFinished() {
+		return tubeness == null || tilesDone.get() == tiles;
+	}
+
+	/* Start (or restart) computing the unfinished tiles; this returns immediately: */
+
+	public synchronized void start() {
+		if (running || isFinished())
+			return;
+		running = true;
+		final int g = ++generation;
+		pool().execute(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				try {
+					new Tiles(g, 0, tiles).invoke();
+				} catch (final RuntimeException | Error e) {
+					failed(g, e);
+				}
+			}
+		});
+	}
+
+	public synchronized void cancel() {
+		++generation;
+		running = false;
+	}
+
+	/* Stop (as if cancelled) and tell the callback, if g is still running: */
+
+	void failed(final int g, final Throwable e) {
+		synchronized (this) {
+			if (g != generation || !running)
+				return;
+			++generation;
+			running = false;
+		}
+		SNT.error("Generating the tubeness failed: " + e);
+		callback.proportionDone(-1);
+	}
+
+	/* Called by whichever task finishes the last tile: */
+
+	synchronized void finished() {
+		if (!running)
+			return;
+		// Still running while reporting, so that the callback can tell
+		// this apart from the end of the Gaussian:
+		callback.proportionDone(1.0);
+		running = false;
+	}
+
+	/* Compute the tiles from (inclusive) to to (exclusive): */
+
+	class Tiles extends RecursiveAction {
+
+		final int g, from, to;
+
+		Tiles(final int g, final int from, final int to) {
+			this.g = g;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (g != generation)
+				return;
+			if (to - from > 1) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new Tiles(g, from, middle), new Tiles(g, middle, to));
+				return;
+			}
+			if (tileStatus.compareAndSet(from, TODO, IN_PROGRESS))
+				computeTile(from);
+		}
+	}
+
+	/*
+	 * The measure at (x, y, z), for a search that has found a NaN in
+	 * tubeness there (or has no tubeness array).  If the tile is in the
+	 * cache it's read now; otherwise just this point is computed.
+	 */
+
+	public double measureAt(final int x, final int y, final int z) {
+		final int tile = z * tilesPerSlice + (y / TILE_SIZE) * tilesX + (x / TILE_SIZE);
+		if (tubeness == null) {
+			Tile read = tilesRead.get(tile);
+			if (read == null)
+				read = readTile(tile);
+			else if (!read.used)
+				read.used = true;
+			return read.measure[(y % TILE_SIZE) * TILE_SIZE + (x % TILE_SIZE)];
+		}
+		final float measure = tubeness[z][y * width + x];
+		if (!Float.isNaN(measure))
+			return measure;
+		if (hessian != null && (cache == null || !cache.hasTile(tile)))
+			return TracerThread.hessianMeasure(hessian, singleSlice, x, y, z, multiplier, x_spacing, y_spacing,
+					z_spacing);
+		while (tileStatus.get(tile) != DONE) {
+			if (tileStatus.compareAndSet(tile, TODO, IN_PROGRESS))
+				computeTile(tile);
+			else
+				awaitTile(tile);
+		}
+		return tubeness[z][y * width + x];
+	}
+
+	/* Read a tile from the cache into memory, dropping others to make room: */
+
+	private Tile readTile(final int tile) {
+		synchronized (loaded) {
+			Tile read = tilesRead.get(tile);
+			if (read != null)
+				return read;
+			final float[] raw = cache.readTile(tile);
+			if (raw == null)
+				throw new IllegalStateException("Tile " + tile + " couldn't be read from the tubeness cache "
+						+ cache.file + ", and there's no Hessian to compute it from");
+			final float[] measure = new float[TILE_SIZE * TILE_SIZE];
+			for (int i = 0; i < measure.length; ++i)
+				measure[i] = (float) TracerThread.measureFromRaw(raw[i], multiplier);
+			final long tileBytes = 4L * measure.length;
+			while (bytesLoaded > memoryBudget - tileBytes && !loaded.isEmpty()) {
+				// Give any that have been used since they last came
+				// round a second chance:
+				final Tile oldest = loaded.poll();
+				if (oldest.used) {
+					oldest.used = false;
+					loaded.add(oldest);
+					continue;
+				}
+				tilesRead.set(oldest.index, null);
+				bytesLoaded -= tileBytes;
+			}
+			read = new Tile(tile, measure);
+			loaded.add(read);
+			bytesLoaded += tileBytes;
+			tilesRead.set(tile, read);
+			return read;
+		}
+	}
+
+	/*
+	 * Wait while another thread has the tile claimed.  Tiles are quick to
+	 * compute, so an interruption is only passed on once it's finished.
+	 */
+
+	void awaitTile(final int tile) {
+		boolean interrupted = false;
+		synchronized (tileLock) {
+			while (tileStatus.get(tile) == IN_PROGRESS) {
+				try {
+					tileLock.wait();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/*
+	 * Read or compute a tile that this thread has claimed.  If that fails
+	 * the tile is put back to be tried again, and the exception is passed
+	 * on.
+	 */
+
+	void computeTile(final int tile) {
+		try {
+			fillTile(tile);
+		} catch (final RuntimeException | Error e) {
+			tileStatus.set(tile, TODO);
+			synchronized (tileLock) {
+				tileLock.notifyAll();
+			}
+			throw e;
+		}
+		tileStatus.set(tile, DONE);
+		synchronized (tileLock) {
+			tileLock.notifyAll();
+		}
+		final int done = tilesDone.incrementAndGet();
+		if (done == tiles)
+			finished();
+		// Otherwise only report when the percentage changes:
+		else if (running && (100L * done / tiles) != (100L * (done - 1) / tiles))
+			callback.proportionDone(done / (double) tiles);
+	}
+
+	private void fillTile(final int tile) {
+		final int z = tile / tilesPerSlice;
+		final int t = tile % tilesPerSlice;
+		final int x0 = (t % tilesX) * TILE_SIZE;
+		final int y0 = (t / tilesX) * TILE_SIZE;
+		final int x1 = Math.min(x0 + TILE_SIZE, width);
+		final int y1 = Math.min(y0 + TILE_SIZE, height);
+		float[] raw = (cache == null) ? null : cache.readTile(tile);
+		final boolean computed = (raw == null);
+		if (computed) {
+			// Without a hessian, the tile should have been in the
+			// cache; guessing the values would give wrong traces:
+			if (hessian == null)
+				throw new IllegalStateException("Tile " + tile + " couldn't be read from the tubeness cache "
+						+ cache.file + ", and there's no Hessian to compute it from");
+			raw = new float[TILE_SIZE * TILE_SIZE];
+			for (int y = y0; y < y1; ++y)
+				for (int x = x0; x < x1; ++x)
+					raw[(y - y0) * TILE_SIZE + (x - x0)] = (float) TracerThread.hessianRaw(hessian, singleSlice,
+							x, y, z, x_spacing, y_spacing, z_spacing);
+		}
+		final float[] slice = tubeness[z];
+		for (int y = y0; y < y1; ++y)
+			for (int x = x0; x < x1; ++x)
+				slice[y * width + x] = (float) TracerThread.measureFromRaw(raw[(y - y0) * TILE_SIZE + (x - x0)],
+						multiplier);
+		if (computed && cache != null && hessian != null)
+			cache.writeTile(tile, raw);
+	}
+}
@@ -0,0 +1,58 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.measure.Calibration;
+
+/*
+ * Somewhere other than an ImagePlus that a search can get the values of
+ * voxels from, so that it doesn't need the whole image in memory (see
+ * ChunkedVoxelFile).  getType() is one of ImagePlus.GRAY8, GRAY16 or
+ * GRAY32, and getValue() returns 8 and 16 bit values as unsigned.
+ *
+ * getValue() may be called from several threads at once.
+ */
+
+public interface VoxelSource {
+
+	public int getWidth();
+
+	public int getHeight();
+
+	public int getDepth();
+
+	public int getType();
+
+	public Calibration getCalibration();
+
+	public float getValue(int x, int y, int z);
+
+	/* The smallest and largest values, as used for stackMin and stackMax: */
+
+	public float getMin();
+
+	public float getMax();
+}
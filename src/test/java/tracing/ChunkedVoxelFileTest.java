@@ -0,0 +1,109 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Checks that a ChunkedVoxelFile gives back the image it was written from,
+ * and that tracing in it finds the same path as tracing in memory, even
+ * with a memory budget of only a few chunks, including for 16 bit values
+ * above 32767
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class ChunkedVoxelFileTest {
+
+	@Test
+	public void testTracingMatchesInMemory() throws IOException {
+		final ImagePlus image = FillerThreadTest.noisyStack(100, 70, 12, 3);
+		final File file = File.createTempFile("snt-chunks", ".bin");
+		file.deleteOnExit();
+		ChunkedVoxelFile.write(image, file, 16, 16, 4);
+		try (final ChunkedVoxelFile voxels = new ChunkedVoxelFile(file, 16 * 16 * 4 * 8)) {
+			assertEquals(100, voxels.getWidth());
+			assertEquals(70, voxels.getHeight());
+			assertEquals(12, voxels.getDepth());
+			assertEquals(0.5, voxels.getCalibration().pixelWidth, 0);
+			assertEquals(2, voxels.getCalibration().pixelDepth, 0);
+			for (int z = 0; z < 12; ++z) {
+				final byte[] pixels = (byte[]) image.getStack().getPixels(z + 1);
+				for (int i = 0; i < pixels.length; ++i)
+					assertEquals(pixels[i] & 0xFF, voxels.getValue(i % 100, i / 100, z), 0);
+			}
+
+			final TracerThread inMemory = new TracerThread(image, 0, 255, 0, 0, 2, 3, 1, 95, 60, 10, true, false,
+					null, 1, null, false);
+			inMemory.run();
+			final TracerThread chunked = new TracerThread(voxels, 0, 255, 0, 0, 2, 3, 1, 95, 60, 10, true);
+			chunked.run();
+			final Path expected = inMemory.getResult();
+			final Path found = chunked.getResult();
+			assertEquals(expected.size(), found.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.getXUnscaled(i), found.getXUnscaled(i));
+				assertEquals(expected.getYUnscaled(i), found.getYUnscaled(i));
+				assertEquals(expected.getZUnscaled(i), found.getZUnscaled(i));
+			}
+			assertTrue(voxels.bytesInMemory() <= 16 * 16 * 4 * 8);
+		}
+	}
+
+	@Test
+	public void testUnsigned16BitValues() throws IOException {
+		// Dim noise below 32768 and a bright line above it:
+		final Random random = new Random(5);
+		final ImageStack stack = new ImageStack(100, 70);
+		for (int z = 0; z < 12; ++z) {
+			final short[] pixels = new short[100 * 70];
+			for (int i = 0; i < pixels.length; ++i)
+				pixels[i] = (short) (20000 + random.nextInt(10000));
+			for (int x = 0; x < 100; ++x)
+				pixels[35 * 100 + x] = (short) (60000 + random.nextInt(5000));
+			stack.addSlice(null, pixels);
+		}
+		final ImagePlus image = new ImagePlus("16 bit", stack);
+		final File file = File.createTempFile("snt-chunks", ".bin");
+		file.deleteOnExit();
+		ChunkedVoxelFile.write(image, file, 16, 16, 4);
+		try (final ChunkedVoxelFile voxels = new ChunkedVoxelFile(file, 16 * 16 * 4 * 2 * 8)) {
+			assertTrue(voxels.getMin() >= 20000 && voxels.getMin() < 30000);
+			assertTrue(voxels.getMax() >= 60000);
+			for (int z = 0; z < 12; ++z) {
+				final short[] pixels = (short[]) stack.getPixels(z + 1);
+				for (int i = 0; i < pixels.length; ++i)
+					assertEquals(pixels[i] & 0xFFFF, voxels.getValue(i % 100, i / 100, z), 0);
+			}
+
+			final TracerThread inMemory = new TracerThread(image, voxels.getMin(), voxels.getMax(), 0, 0, 2, 35, 1,
+					95, 35, 10, true, false, null, 1, null, false);
+			final TracerThread chunked = new TracerThread(voxels, voxels.getMin(), voxels.getMax(), 0, 0, 2, 35, 1,
+					95, 35, 10, true);
+			for (int z = 0; z < 12; ++z)
+				for (int y = 0; y < 70; ++y)
+					for (int x = 0; x < 100; ++x)
+						assertEquals(inMemory.costFunction().cost(x, y, z), chunked.costFunction().cost(x, y, z),
+								1e-12);
+
+			inMemory.run();
+			chunked.run();
+			final Path expected = inMemory.getResult();
+			final Path found = chunked.getResult();
+			assertEquals(expected.size(), found.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(35, expected.getYUnscaled(i));
+				assertEquals(expected.getXUnscaled(i), found.getXUnscaled(i));
+				assertEquals(expected.getZUnscaled(i), found.getZUnscaled(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Checks that a fill stopped at a threshold and then carried on, or with
+ * its costs from a CostCache, matches the uninterrupted fill
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class FillerThreadTest {
+
+	static ImagePlus noisyStack(final int width, final int height, final int depth, final long seed) {
+		final Random random = new Random(seed);
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; ++z) {
+			final byte[] pixels = new byte[width * height];
+			for (int i = 0; i < pixels.length; ++i)
+				pixels[i] = (byte) (20 + random.nextInt(30));
+			// A bright line through the middle of the stack:
+			for (int x = 0; x < width; ++x)
+				pixels[(height / 2) * width + x] = (byte) (200 + random.nextInt(50));
+			stack.addSlice(null, pixels);
+		}
+		final ImagePlus image = new ImagePlus("noise", stack);
+		image.getCalibration().pixelWidth = 0.5;
+		image.getCalibration().pixelHeight = 0.5;
+		image.getCalibration().pixelDepth = 2;
+		return image;
+	}
+
+	static FillerThread filler(final ImagePlus image) {
+		final FillerThread filler = new FillerThread(image, 0, 255, false, true, 0.5, 0);
+		final Path source = new Path(0.5, 0.5, 2, "um");
+		source.addPointDouble(5, image.getHeight() / 4.0, 2);
+		source.addPointDouble(5.5, image.getHeight() / 4.0, 2);
+		filler.setSourcePaths(Collections.singleton(source));
+		return filler;
+	}
+
+	static Fill fill(final ImagePlus image) {
+		final FillerThread filler = filler(image);
+		filler.run();
+		return filler.getFill();
+	}
+
+	@Test
+	public void testBoundedFillResumes() throws InterruptedException {
+		final ImagePlus image = noisyStack(80, 60, 10, 7);
+		final List<Fill.Node> expected = fill(image).nodeList;
+
+		final FillerThread filler = filler(image);
+		filler.setThreshold(0.2);
+		filler.setBoundMargin(1.5);
+		filler.start();
+		for (int i = 0; i < 1000 && !filler.waitingAtCostLimit; ++i)
+			Thread.sleep(10);
+		assertTrue(filler.waitingAtCostLimit);
+
+		// Everything closed is within the limit, and nothing open is:
+		final SearchState state = filler.search_from_start;
+		for (final long key : state.closedKeys())
+			assertTrue(state.getG(SearchState.keyX(key), SearchState.keyY(key), SearchState.keyZ(key)) <= 0.3);
+		assertTrue(state.peekOpenF() > 0.3);
+		assertTrue(state.size() < expected.size());
+
+		// Raising the threshold finishes the fill as if it had never stopped:
+		filler.setThreshold(1000);
+		filler.join(60000);
+		final List<Fill.Node> found = filler.getFill().nodeList;
+		assertEquals(expected.size(), found.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).distance, found.get(i).distance, 0);
+			assertEquals(expected.get(i).previous, found.get(i).previous);
+		}
+	}
+
+	@Test
+	public void testCachedCostsMatchUncached() {
+		final ImagePlus image = noisyStack(80, 60, 10, 3);
+		final List<Fill.Node> expected = fill(image).nodeList;
+		// 8 bit costs come from a table, so they aren't worth caching:
+		assertNull(filler(image).costMetric());
+		// A budget of a few slices, so that tiles are evicted and recomputed:
+		final CostCache cache = new CostCache(3L * 80 * 60 * 8);
+		for (int round = 0; round < 2; ++round) {
+			final FillerThread filler = filler(image);
+			filler.setCostVolume(cache.volume(image, "reciprocal", 0, 0));
+			filler.run();
+			final List<Fill.Node> found = filler.getFill().nodeList;
+			assertEquals(expected.size(), found.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.get(i).distance, found.get(i).distance, 0);
+				assertEquals(expected.get(i).previous, found.get(i).previous);
+			}
+			assertTrue(cache.bytesUsed() <= cache.getMemoryBudget());
+		}
+		cache.clear(image);
+		assertEquals(0, cache.bytesUsed());
+	}
+}
@@ -0,0 +1,101 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Checks that the ways of searching an ImgLib2 image (the arrays of a
+ * PlanarImg, the array of a 3D ArrayImg, and a RandomAccess for anything
+ * else) read 16 bit values above 32767 as unsigned, give the same costs and
+ * find the same path
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import ij.measure.Calibration;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+public class ImgLib2VoxelSourceTest {
+
+	static final int WIDTH = 40, HEIGHT = 30, DEPTH = 6, LINE_Y = 15;
+
+	/* Dim values below 32768 and a bright line above it: */
+
+	static int value(final int x, final int y, final int z) {
+		return y == LINE_Y ? 60000 + (x * 7 + z * 13) % 5000 : 20000 + (x * 31 + y * 17 + z * 7) % 10000;
+	}
+
+	static <I extends RandomAccessibleInterval<UnsignedShortType>> I filled(final I image) {
+		final Cursor<UnsignedShortType> cursor = Views.iterable(image).localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(value(cursor.getIntPosition(0), cursor.getIntPosition(1), cursor.getIntPosition(2)));
+		}
+		return image;
+	}
+
+	static TracerThread tracer(final RandomAccessibleInterval<UnsignedShortType> image, final float min,
+			final float max) {
+		return new TracerThread(image, new Calibration(), min, max, 0, 0, 1, LINE_Y, 0, WIDTH - 2, LINE_Y,
+				DEPTH - 1, true);
+	}
+
+	@Test
+	public void testBackendsAgreeAbove32767() {
+		final RandomAccessibleInterval<UnsignedShortType> planar = filled(
+				PlanarImgs.unsignedShorts(WIDTH, HEIGHT, DEPTH));
+		final RandomAccessibleInterval<UnsignedShortType> array = filled(
+				ArrayImgs.unsignedShorts(WIDTH, HEIGHT, DEPTH));
+		// A view isn't an ArrayImg, so it's read through a RandomAccess:
+		final RandomAccessibleInterval<UnsignedShortType> view = Views.translate(array, 0, 0, 0);
+
+		final ImgLib2VoxelSource<UnsignedShortType> arrayVoxels = new ImgLib2VoxelSource<>(array, new Calibration());
+		final ImgLib2VoxelSource<UnsignedShortType> viewVoxels = new ImgLib2VoxelSource<>(view, new Calibration());
+		assertNotNull(arrayVoxels.s);
+		assertNull(viewVoxels.s);
+		assertNotNull(ImgLib2VoxelSource.slices(planar));
+		for (int z = 0; z < DEPTH; ++z)
+			for (int y = 0; y < HEIGHT; ++y)
+				for (int x = 0; x < WIDTH; ++x) {
+					assertEquals(value(x, y, z), arrayVoxels.getValue(x, y, z), 0);
+					assertEquals(value(x, y, z), viewVoxels.getValue(x, y, z), 0);
+				}
+		assertEquals(viewVoxels.getMax(), arrayVoxels.getMax(), 0);
+		final float min = arrayVoxels.getMin(), max = arrayVoxels.getMax();
+
+		final TracerThread fromPlanar = tracer(planar, min, max);
+		final TracerThread fromArray = tracer(array, min, max);
+		final TracerThread fromView = tracer(view, min, max);
+		assertNotNull(fromPlanar.slices_data_s);
+		for (int z = 0; z < DEPTH; ++z)
+			for (int y = 0; y < HEIGHT; ++y)
+				for (int x = 0; x < WIDTH; ++x) {
+					final double cost = fromPlanar.costFunction().cost(x, y, z);
+					assertEquals(cost, fromArray.costFunction().cost(x, y, z), 1e-12);
+					assertEquals(cost, fromView.costFunction().cost(x, y, z), 1e-12);
+				}
+
+		fromPlanar.run();
+		fromArray.run();
+		fromView.run();
+		final Path expected = fromPlanar.getResult();
+		for (final TracerThread other : new TracerThread[] { fromArray, fromView }) {
+			final Path found = other.getResult();
+			assertEquals(expected.size(), found.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(LINE_Y, expected.getYUnscaled(i));
+				assertEquals(expected.getXUnscaled(i), found.getXUnscaled(i));
+				assertEquals(expected.getYUnscaled(i), found.getYUnscaled(i));
+				assertEquals(expected.getZUnscaled(i), found.getZUnscaled(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Checks that PathPointIndex finds the same nearest points as looking at
+ * every point of every path, as paths are added, changed and removed, and
+ * that Correspondences finds the same points looking them up in parallel,
+ * and that an index of some of the paths finds the nearest of their points
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PathPointIndexTest {
+
+	/* The way nearestPointOnAnyPath() used to work: */
+
+	static NearPoint nearestByScanning(final List<Path> paths, final double x, final double y, final double z,
+			final double distanceLimit) {
+		final PriorityQueue<NearPoint> pq = new PriorityQueue<>();
+		for (final Path path : paths) {
+			if (!path.versionInUse())
+				continue;
+			for (int j = 0; j < path.size(); ++j)
+				pq.add(new NearPoint(x, y, z, path, j));
+		}
+		while (true) {
+			final NearPoint np = pq.poll();
+			if (np == null)
+				return null;
+			if (np.distanceToPathPointSquared() > (distanceLimit * distanceLimit))
+				return null;
+			if (np.distanceToPathNearPoint() >= 0)
+				return np;
+		}
+	}
+
+	static Path randomPath(final Random random) {
+		final Path path = new Path(0.5, 0.5, 2, "um");
+		double x = random.nextDouble() * 200, y = random.nextDouble() * 200, z = random.nextDouble() * 40;
+		final int n = 2 + random.nextInt(60);
+		for (int i = 0; i < n; ++i) {
+			path.addPointDouble(x, y, z);
+			x += random.nextGaussian() * 2;
+			y += random.nextGaussian() * 2;
+			z += random.nextGaussian();
+		}
+		return path;
+	}
+
+	static void assertSameResult(final NearPoint expected, final NearPoint found) {
+		if (expected == null) {
+			assertNull(found);
+			return;
+		}
+		assertEquals(expected.distanceToPathPointSquared(), found.distanceToPathPointSquared(), 0);
+		assertEquals(expected.distanceToPathNearPoint(), found.distanceToPathNearPoint(), 1e-9);
+	}
+
+	@Test
+	public void testMatchesScanningAllPoints() {
+		final Random random = new Random(23);
+		final PathPointIndex index = new PathPointIndex();
+		final List<Path> paths = new ArrayList<>();
+		for (int i = 0; i < 200; ++i) {
+			final Path path = randomPath(random);
+			paths.add(path);
+			index.add(path);
+		}
+		for (int round = 0; round < 4; ++round) {
+			for (int i = 0; i < 200; ++i) {
+				final double x = random.nextDouble() * 240 - 20;
+				final double y = random.nextDouble() * 240 - 20;
+				final double z = random.nextDouble() * 60 - 10;
+				final double limit = i % 2 == 0 ? 5 : 1000;
+				assertSameResult(nearestByScanning(paths, x, y, z, limit), index.nearestPoint(x, y, z, limit));
+			}
+			// Remove some paths, extend others and add some more:
+			for (int i = 0; i < 20; ++i) {
+				index.remove(paths.remove(random.nextInt(paths.size())));
+				final Path extended = paths.get(random.nextInt(paths.size()));
+				extended.addPointDouble(random.nextDouble() * 200, random.nextDouble() * 200, 20);
+				final Path added = randomPath(random);
+				paths.add(added);
+				index.add(added);
+			}
+		}
+	}
+
+	@Test
+	public void testOnlyPathsInUse() {
+		final PathPointIndex index = new PathPointIndex();
+		final Path path = new Path(1, 1, 1, "um");
+		path.addPointDouble(0, 0, 0);
+		path.addPointDouble(10, 0, 0);
+		final Path fitted = new Path(1, 1, 1, "um");
+		fitted.addPointDouble(0, 5, 0);
+		fitted.addPointDouble(10, 5, 0);
+		path.setFitted(fitted);
+		index.add(path);
+		index.add(fitted);
+		assertSame(path, index.nearestPoint(5, 4, 0, 100).getPath());
+		path.setUseFitted(true);
+		assertSame(fitted, index.nearestPoint(5, 1, 0, 100).getPath());
+		index.clear();
+		assertNull(index.nearestPoint(5, 1, 0, 100));
+	}
+
+	@Test
+	public void testNearestPathPointOfSomePaths() {
+		final Random random = new Random(31);
+		final PathPointIndex all = new PathPointIndex();
+		final PathPointIndex some = new PathPointIndex();
+		final List<Path> somePaths = new ArrayList<>();
+		for (int i = 0; i < 300; ++i) {
+			final Path path = randomPath(random);
+			all.add(path);
+			if (i % 3 == 0) {
+				some.add(path);
+				somePaths.add(path);
+			}
+		}
+		assertNull(new PathPointIndex().nearestPathPoint(0, 0, 0));
+		for (int round = 0; round < 3; ++round) {
+			for (int i = 0; i < 300; ++i) {
+				final double x = random.nextDouble() * 300 - 50;
+				final double y = random.nextDouble() * 300 - 50;
+				final double z = random.nextDouble() * 100 - 30;
+				double nearest = Double.MAX_VALUE;
+				for (final Path path : somePaths) {
+					final int j = path.indexNearestTo(x, y, z);
+					nearest = Math.min(nearest, path.getPointInImage(j).distanceSquaredTo(x, y, z));
+				}
+				final PointInImage found = some.nearestPathPoint(x, y, z);
+				assertEquals(nearest, found.distanceSquaredTo(x, y, z), 0);
+				assertTrue(somePaths.contains(found.onPath));
+			}
+			// Both indexes hear about paths being extended:
+			for (int i = 0; i < 20; ++i)
+				somePaths.get(random.nextInt(somePaths.size())).addPointDouble(random.nextDouble() * 200,
+						random.nextDouble() * 200, 20);
+			some.remove(somePaths.remove(0));
+		}
+		assertEquals(2, somePaths.get(0).pointIndexes.length);
+	}
+
+	@Test
+	public void testCorrespondences() {
+		final Random random = new Random(29);
+		final PathAndFillManager from = new PathAndFillManager(200, 200, 40, 0.5f, 0.5f, 2, "um");
+		final PathAndFillManager to = new PathAndFillManager(200, 200, 40, 0.5f, 0.5f, 2, "um");
+		final List<Path> toPaths = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			from.addPath(randomPath(random));
+			final Path path = randomPath(random);
+			toPaths.add(path);
+			to.addPath(path);
+		}
+		final Correspondences correspondences = new Correspondences(from, to, 5);
+		final List<NearPoint> found = correspondences.getNearPoints();
+		int i = 0, matched = 0;
+		double maxDistance = 0;
+		final PathAndFillManager.AllPointsIterator points = from.allPointsIterator();
+		while (points.hasNext()) {
+			final PointInImage p = points.next();
+			final NearPoint expected = nearestByScanning(toPaths, p.x, p.y, p.z, 5);
+			assertSameResult(expected, found.get(i++));
+			if (expected != null) {
+				++matched;
+				maxDistance = Math.max(maxDistance, expected.distanceToPathNearPoint());
+			}
+		}
+		assertEquals(i, found.size());
+		assertEquals(matched, correspondences.getMatched());
+		assertEquals(i - matched, correspondences.getUnmatched());
+		assertEquals(maxDistance, correspondences.getMaxDistance(), 1e-9);
+	}
+}
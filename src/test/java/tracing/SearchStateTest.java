@@ -0,0 +1,235 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Checks the open heap, closed log, predecessors and tiles kept by SearchState */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SearchStateTest {
+
+	private static SearchState newState() {
+		return new SearchState(200, 150, 20, SearchThread.OPEN_FROM_START, SearchThread.CLOSED_FROM_START);
+	}
+
+	@Test
+	public void testPollOrderMatchesSearchNodeOrder() {
+		final Random random = new Random(42);
+		final SearchState state = newState();
+		final PriorityQueue<SearchNode> queue = new PriorityQueue<>();
+		for (int i = 0; i < 5000; ++i) {
+			final int x = random.nextInt(200), y = random.nextInt(150), z = random.nextInt(20);
+			// Use few distinct costs so that the x, y, z tie-breaking is exercised:
+			final float g = random.nextInt(20);
+			if (state.add(x, y, z, g, g, (byte) 0, SearchThread.OPEN_FROM_START))
+				queue.add(new SearchNode(x, y, z, g, 0, null, SearchThread.OPEN_FROM_START));
+		}
+		assertEquals(queue.size(), state.openSize());
+		while (!queue.isEmpty()) {
+			final SearchNode expected = queue.poll();
+			assertEquals(SearchState.key(expected.x, expected.y, expected.z), state.pollOpen());
+		}
+		assertEquals(-1, state.pollOpen());
+	}
+
+	@Test
+	public void testHeapMatchesScanningOpenVoxels() {
+		final Random random = new Random(11);
+		final SearchState state = newState();
+		assertEquals(-1, state.peekOpen());
+		assertEquals(Float.POSITIVE_INFINITY, state.peekOpenF(), 0);
+		// The f of each open voxel, looked through for the lowest each time:
+		final Map<Long, Float> open = new HashMap<>();
+		for (int i = 0; i < 20000; ++i) {
+			if (random.nextInt(3) == 0) {
+				long lowest = -1;
+				float lowestF = Float.POSITIVE_INFINITY;
+				for (final Map.Entry<Long, Float> e : open.entrySet()) {
+					final float f = e.getValue();
+					if (f < lowestF || (f == lowestF && e.getKey() < lowest)) {
+						lowest = e.getKey();
+						lowestF = f;
+					}
+				}
+				assertEquals(lowest, state.peekOpen());
+				assertEquals(lowestF, state.peekOpenF(), 0);
+				assertEquals(lowest, state.pollOpen());
+				if (lowest >= 0) {
+					state.close(lowest);
+					open.remove(lowest);
+				}
+				continue;
+			}
+			final int x = random.nextInt(40), y = random.nextInt(40), z = random.nextInt(3);
+			final long key = SearchState.key(x, y, z);
+			final float g = random.nextInt(1000) / 4f;
+			final boolean wasReached = state.reached(x, y, z);
+			final float oldG = state.getG(x, y, z);
+			final int result = state.relax(x, y, z, g, g, (byte) 0);
+			if (!wasReached) {
+				assertEquals(SearchState.REACHED, result);
+				open.put(key, g);
+			} else if (g < oldG) {
+				assertEquals(SearchState.IMPROVED, result);
+				open.put(key, g);
+			} else
+				assertEquals(SearchState.UNCHANGED, result);
+			assertEquals(open.size(), state.openSize());
+		}
+		while (!open.isEmpty())
+			open.remove(state.pollOpen());
+		assertEquals(0, state.openSize());
+		assertEquals(-1, state.peekOpen());
+		assertEquals(Float.POSITIVE_INFINITY, state.peekOpenF(), 0);
+	}
+
+	@Test
+	public void testRelaxImprovesAndReopens() {
+		final SearchState state = newState();
+		state.add(10, 10, 10, 0, 0, (byte) 0, SearchThread.OPEN_FROM_START);
+		assertEquals(SearchState.REACHED, state.relax(11, 10, 10, 5, 5, SearchState.directionTo(-1, 0, 0)));
+		assertEquals(SearchState.REACHED, state.relax(12, 11, 10, 1, 1, (byte) 0));
+		assertEquals(SearchState.UNCHANGED, state.relax(11, 10, 10, 6, 6, (byte) 0));
+
+		// Lowering the cost of an open node moves it up the heap:
+		assertEquals(SearchState.IMPROVED, state.relax(11, 10, 10, 0.5f, 0.5f, SearchState.directionTo(-1, 0, 0)));
+		assertEquals(SearchState.key(10, 10, 10), state.pollOpen());
+		assertEquals(SearchState.key(11, 10, 10), state.pollOpen());
+		state.close(SearchState.key(11, 10, 10));
+		assertTrue(state.isClosed(11, 10, 10));
+		assertEquals(1, state.closedSize());
+
+		// ... and a cheaper route to a closed node reopens it:
+		assertEquals(SearchState.IMPROVED, state.relax(11, 10, 10, 0.25f, 0.25f, SearchState.directionTo(1, 1, 0)));
+		assertFalse(state.isClosed(11, 10, 10));
+		assertEquals(0, state.closedSize());
+		assertEquals(0.25f, state.getG(11, 10, 10), 0);
+		assertEquals(SearchState.key(12, 11, 10), state.getPredecessor(SearchState.key(11, 10, 10)));
+		assertEquals(SearchState.key(11, 10, 10), state.pollOpen());
+		state.close(SearchState.key(11, 10, 10));
+		assertEquals(1, state.closedKeys().length);
+	}
+
+	@Test
+	public void testTileTableGrowsAroundSearch() {
+		final SearchState state = new SearchState(4096, 4096, 100, SearchThread.OPEN_FROM_START,
+				SearchThread.CLOSED_FROM_START);
+		state.add(2000, 2000, 50, 1, 1, (byte) 0, SearchThread.OPEN_FROM_START);
+		final long small = state.bytesAllocated();
+		// Reaching points in every direction keeps what was there already:
+		final int[][] points = { { 2100, 1990, 51 }, { 10, 4000, 0 }, { 4095, 5, 99 }, { 1990, 2001, 50 } };
+		for (int i = 0; i < points.length; ++i)
+			state.add(points[i][0], points[i][1], points[i][2], i + 2, i + 2, (byte) 0,
+					SearchThread.OPEN_FROM_START);
+		assertEquals(1, state.getG(2000, 2000, 50), 0);
+		for (int i = 0; i < points.length; ++i)
+			assertEquals(i + 2, state.getG(points[i][0], points[i][1], points[i][2]), 0);
+		assertFalse(state.reached(2001, 2001, 50));
+		assertTrue(state.sliceTouched(99));
+		assertFalse(state.sliceTouched(98));
+		// A search near one point only needs a small table:
+		assertTrue(small < 128 * 128 * 4);
+	}
+
+	@Test
+	public void testTileEdges() {
+		final SearchState state = newState();
+		final int edge = SearchState.TILE_SIZE;
+		// Four voxels around a corner shared by four tiles:
+		state.add(edge - 1, edge - 1, 5, 1, 1, (byte) 0, SearchThread.OPEN_FROM_START);
+		assertEquals(SearchState.REACHED, state.relax(edge, edge - 1, 5, 2, 2, SearchState.directionTo(-1, 0, 0)));
+		assertEquals(SearchState.REACHED, state.relax(edge, edge, 5, 3, 3, SearchState.directionTo(0, -1, 0)));
+		assertEquals(SearchState.REACHED, state.relax(edge - 1, edge, 6, 4, 4, SearchState.directionTo(1, 0, -1)));
+		assertEquals(4, state.tilesAllocated());
+
+		// The predecessors lead back across the tile edges:
+		long key = SearchState.key(edge - 1, edge, 6);
+		final long[] expected = { SearchState.key(edge, edge, 5), SearchState.key(edge, edge - 1, 5),
+				SearchState.key(edge - 1, edge - 1, 5), -1 };
+		for (final long e : expected) {
+			key = state.getPredecessor(key);
+			assertEquals(e, key);
+		}
+
+		// Voxels in tiles that weren't reached don't allocate anything:
+		assertFalse(state.reached(3 * edge, 0, 5));
+		assertTrue(Float.isNaN(state.getG(3 * edge, 0, 5)));
+		assertTrue(state.improves(3 * edge, 0, 5, 100));
+		assertFalse(state.improves(edge, edge, 5, 3));
+		assertEquals(4, state.tilesAllocated());
+
+		// Reserving a box keeps everything in it:
+		state.reserve(0, 0, 0, 199, 149, 19);
+		assertEquals(3, state.getG(edge, edge, 5), 0);
+		assertEquals(4, state.getG(edge - 1, edge, 6), 0);
+		assertEquals(4, state.tilesAllocated());
+	}
+
+	@Test
+	public void testClosedKeysAfterReopening() {
+		final Random random = new Random(7);
+		final SearchState state = newState();
+		final Set<Long> closed = new HashSet<>();
+		for (int i = 0; i < 3000; ++i)
+			state.add(i % 200, i / 200, 0, 1000, 1000, (byte) 0, SearchThread.OPEN_FROM_START);
+		while (state.openSize() > 0) {
+			final long key = state.pollOpen();
+			state.close(key);
+			closed.add(key);
+		}
+		float g = 999;
+		for (int i = 0; i < 20000; ++i) {
+			final int x = random.nextInt(200), y = random.nextInt(15);
+			final long key = SearchState.key(x, y, 0);
+			if (state.isClosed(x, y, 0)) {
+				state.relax(x, y, 0, g, g, (byte) 0);
+				g -= 0.01f;
+				assertEquals(key, state.pollOpen());
+				state.close(key);
+			}
+		}
+		final long[] keys = state.closedKeys();
+		assertEquals(closed.size(), keys.length);
+		final Set<Long> found = new HashSet<>();
+		for (final long key : keys)
+			found.add(key);
+		assertEquals(closed, found);
+
+		final long[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		for (int i = 1; i < sorted.length; ++i)
+			assertTrue(sorted[i] != sorted[i - 1]);
+	}
+
+	@Test
+	public void testDirectionCodes() {
+		for (int i = 0; i < 26; ++i) {
+			final int dx = SearchState.NEIGHBOUR_DX[i];
+			final int dy = SearchState.NEIGHBOUR_DY[i];
+			final int dz = SearchState.NEIGHBOUR_DZ[i];
+			assertEquals(i + 1, SearchState.directionTo(dx, dy, dz));
+		}
+		assertEquals(0, SearchState.directionTo(0, 0, 0));
+		assertEquals(0, SearchState.directionTo(2, 0, 0));
+	}
+
+	@Test
+	public void testNeighboursInSlice() {
+		for (int i = 0; i < 26; ++i) {
+			final boolean inSlice = i >= SearchState.FIRST_IN_SLICE && i < SearchState.END_IN_SLICE;
+			assertEquals(inSlice, SearchState.NEIGHBOUR_DZ[i] == 0);
+		}
+	}
+}
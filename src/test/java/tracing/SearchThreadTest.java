@@ -0,0 +1,69 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Checks that the bidirectional search finds the cheapest path, and that
+ * it considers fewer points than searching from the start alone
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+
+public class SearchThreadTest {
+
+	static TracerThread tracer(final ImagePlus image, final int[] start, final int[] goal) {
+		return new TracerThread(image, 0, 255, 0, 0, start[0], start[1], start[2], goal[0], goal[1], goal[2], true,
+				false, null, 1, null, false);
+	}
+
+	/* The cost of path with the costs that tracer searched with: */
+
+	static double pathCost(final SearchThread tracer, final Path path) {
+		final CostFunction costs = tracer.costFunction();
+		double total = 0;
+		for (int i = 1; i < path.size(); ++i) {
+			final int x = path.getXUnscaled(i), y = path.getYUnscaled(i), z = path.getZUnscaled(i);
+			final double dx = (x - path.getXUnscaled(i - 1)) * tracer.x_spacing;
+			final double dy = (y - path.getYUnscaled(i - 1)) * tracer.y_spacing;
+			final double dz = (z - path.getZUnscaled(i - 1)) * tracer.z_spacing;
+			total += Math.sqrt(dx * dx + dy * dy + dz * dz)
+					* Math.max(costs.cost(x, y, z), tracer.minimum_cost_per_unit_distance);
+		}
+		return total;
+	}
+
+	@Test
+	public void testBidirectionalFindsCheapestPath() {
+		final ImagePlus image = FillerThreadTest.noisyStack(80, 60, 10, 3);
+		final Random random = new Random(17);
+		long fromStartOnly = 0, fromBoth = 0;
+		for (int i = 0; i < 6; ++i) {
+			final int[] start = { random.nextInt(80), random.nextInt(60), random.nextInt(10) };
+			final int[] goal = { random.nextInt(80), random.nextInt(60), random.nextInt(10) };
+
+			final TracerThread unidirectional = tracer(image, start, goal);
+			unidirectional.bidirectional = false;
+			unidirectional.search_from_goal = null;
+			unidirectional.run();
+			final double cheapest = pathCost(unidirectional, unidirectional.getResult());
+
+			final TracerThread bidirectional = tracer(image, start, goal);
+			bidirectional.run();
+			final Path path = bidirectional.getResult();
+			assertEquals(cheapest, pathCost(bidirectional, path), cheapest * 1e-5);
+			assertEquals(start[0], path.getXUnscaled(0));
+			assertEquals(goal[0], path.getXUnscaled(path.size() - 1));
+
+			fromStartOnly += unidirectional.pointsConsideredInSearch();
+			fromBoth += bidirectional.pointsConsideredInSearch();
+		}
+		assertTrue(fromBoth < fromStartOnly);
+	}
+}
@@ -0,0 +1,189 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * JMH benchmarks for the search engine, using the same image, end points and
+ * parameters as Tracing3DTest.  These are not run as part of the unit tests;
+ * after "mvn test-compile" run the main method with the test classpath from
+ * the top level of the repository, so that tests/sample-data can be found.
+ *
+ * expansionRate traces the same path in 8-bit, 16-bit and 32-bit copies of
+ * the image and reports the number of nodes expanded per second;
+ * expansionRateWithoutCostTable does the same but works out each cost from
+ * the scaled pixel value rather than looking it up in a table.
+ *
+ * tracePlanarImg traces the same path as traceReciprocal in an ImgLib2 copy
+ * of the image, which should take the same time.
+ */
+
+package tracing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import features.ComputeCurvatures;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.StackConverter;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import util.BatchOpener;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TracerBenchmark {
+
+	static final String SAMPLE_IMAGE = "tests/sample-data/c061AG-small-section.tif";
+
+	ImagePlus image;
+	ComputeCurvatures hessian;
+	PlanarImg<UnsignedByteType, ?> planar;
+
+	int startX, startY, startZ;
+	int endX, endY, endZ;
+
+	@Setup
+	public void setUp() {
+		image = BatchOpener.openFirstChannel(SAMPLE_IMAGE);
+		if (image == null)
+			throw new IllegalStateException("Couldn't open " + SAMPLE_IMAGE);
+		final Calibration c = image.getCalibration();
+		startX = (int) (56.524 / c.pixelWidth);
+		startY = (int) (43.258 / c.pixelHeight);
+		startZ = (int) (18 / c.pixelDepth);
+		endX = 0;
+		endY = (int) (17.015 / c.pixelHeight);
+		endZ = (int) (22.8 / c.pixelDepth);
+		hessian = new ComputeCurvatures(image, 0.721, null, true);
+		hessian.run();
+		planar = PlanarImgs.unsignedBytes(image.getWidth(), image.getHeight(), image.getStackSize());
+		for (int z = 0; z < image.getStackSize(); ++z)
+			System.arraycopy(image.getStack().getPixels(z + 1), 0, planar.getPlane(z).getCurrentStorageArray(), 0,
+					image.getWidth() * image.getHeight());
+	}
+
+	@TearDown
+	public void tearDown() {
+		image.close();
+	}
+
+	TracerThread newTracer(final boolean useHessian) {
+		return new TracerThread(image, 0, 255, -1, 0, startX, startY, startZ, endX, endY, endZ, true, false,
+				useHessian ? hessian : null, 19.69, null, useHessian);
+	}
+
+	@Benchmark
+	public Path traceHessian() {
+		final TracerThread tracer = newTracer(true);
+		tracer.run();
+		return tracer.getResult();
+	}
+
+	@Benchmark
+	public Path traceReciprocal() {
+		final TracerThread tracer = newTracer(false);
+		tracer.run();
+		return tracer.getResult();
+	}
+
+	@Benchmark
+	public Path tracePlanarImg() {
+		final TracerThread tracer = new TracerThread(planar, image.getCalibration(), 0, 255, -1, 0, startX, startY,
+				startZ, endX, endY, endZ, true);
+		tracer.run();
+		return tracer.getResult();
+	}
+
+	@State(Scope.Benchmark)
+	public static class BitDepth {
+
+		@Param({ "8", "16", "32" })
+		int bitDepth;
+
+		ImagePlus image;
+
+		@Setup
+		public void setUp(final TracerBenchmark benchmark) {
+			image = benchmark.image.duplicate();
+			image.setCalibration(benchmark.image.getCalibration());
+			if (bitDepth == 16)
+				new StackConverter(image).convertToGray16();
+			else if (bitDepth == 32)
+				new StackConverter(image).convertToGray32();
+		}
+
+		@TearDown
+		public void tearDown() {
+			image.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Expanded {
+
+		public long nodes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			nodes = 0;
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public Path expansionRate(final BitDepth bitDepth, final Expanded expanded) {
+		final TracerThread tracer = new TracerThread(bitDepth.image, 0, 255, -1, 0, startX, startY, startZ, endX,
+				endY, endZ, true, false, null, 19.69, null, false);
+		tracer.run();
+		expanded.nodes += tracer.search_from_start.closedSize();
+		if (tracer.search_from_goal != null)
+			expanded.nodes += tracer.search_from_goal.closedSize();
+		return tracer.getResult();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public Path expansionRateWithoutCostTable(final BitDepth bitDepth, final Expanded expanded) {
+		final TracerThread tracer = new TracerThread(bitDepth.image, 0, 255, -1, 0, startX, startY, startZ, endX,
+				endY, endZ, true, false, null, 19.69, null, false);
+		tracer.setCostFunction(new IntensityCost(tracer, true) {
+			@Override
+			double[] costTable() {
+				return null;
+			}
+		});
+		tracer.run();
+		expanded.nodes += tracer.search_from_start.closedSize();
+		if (tracer.search_from_goal != null)
+			expanded.nodes += tracer.search_from_goal.closedSize();
+		return tracer.getResult();
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TracerBenchmark.class.getSimpleName()).build()).run();
+	}
+}
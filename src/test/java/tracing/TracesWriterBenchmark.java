@@ -0,0 +1,150 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * JMH benchmarks for writing traces files with large fills.  These are not
+ * run as part of the unit tests; after "mvn test-compile" run the main
+ * method with the test classpath.
+ *
+ * Each benchmark writes the same snapshot of a manager with one fill of
+ * the given number of nodes to a stream that discards it, and reports the
+ * uncompressed megabytes written per second: writeUncompressed just
+ * serialises, writeGZIP compresses with a single GZIPOutputStream as the
+ * old writer did, and writeParallelGZIP compresses in blocks in as many
+ * threads as there are processors.  snapshot measures the time that the
+ * manager is locked for.
+ */
+
+package tracing;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class TracesWriterBenchmark {
+
+	@Param({ "1000000", "5000000" })
+	int fillNodes;
+
+	PathAndFillManager manager;
+	TracesWriter snapshot;
+
+	/* The size of the XML for the snapshot: */
+	double megabytes;
+
+	@Setup
+	public void setUp() throws IOException {
+		manager = new PathAndFillManager(512, 512, 100, 0.5f, 0.5f, 2, "um");
+		final Random random = new Random(47);
+		for (int i = 0; i < 100; ++i)
+			manager.addPath(PathPointIndexTest.randomPath(random));
+		final Fill fill = new Fill();
+		for (int i = 0; i < fillNodes; ++i)
+			fill.add(random.nextInt(512), random.nextInt(512), random.nextInt(100), random.nextDouble() * 3, i - 1,
+					random.nextBoolean());
+		fill.setMetric("reciprocal-intensity-scaled");
+		fill.setThreshold(1.5);
+		manager.addFill(fill);
+		snapshot = manager.snapshotForWriting();
+		final Discard discard = new Discard();
+		snapshot.write(discard);
+		megabytes = discard.bytes / 1e6;
+	}
+
+	/* Counts and discards what's written to it: */
+
+	static class Discard extends OutputStream {
+		long bytes;
+
+		@Override
+		public void write(final int b) {
+			++bytes;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			bytes += len;
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Written {
+
+		/* Megabytes of XML, reported per second: */
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	@Benchmark
+	public TracesWriter snapshot() {
+		return manager.snapshotForWriting();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long writeUncompressed(final Written written) throws IOException {
+		final Discard discard = new Discard();
+		snapshot.write(discard);
+		written.megabytes += megabytes;
+		return discard.bytes;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long writeGZIP(final Written written) throws IOException {
+		final Discard discard = new Discard();
+		final OutputStream out = new BufferedOutputStream(new GZIPOutputStream(discard, 1 << 16), 1 << 16);
+		snapshot.write(out);
+		out.close();
+		written.megabytes += megabytes;
+		return discard.bytes;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long writeParallelGZIP(final Written written) throws IOException {
+		final Discard discard = new Discard();
+		final OutputStream out = new ParallelGZIPOutputStream(discard);
+		snapshot.write(out);
+		out.close();
+		written.megabytes += megabytes;
+		return discard.bytes;
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TracesWriterBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,161 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Checks that what ParallelGZIPOutputStream writes reads back through
+ * GZIPInputStream, that writing traces to it fills whole blocks, that
+ * traces written from a snapshot load back with the same paths and fills,
+ * and that the binary format loses nothing
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class TracesWriterTest {
+
+	static byte[] gunzip(final byte[] compressed) throws IOException {
+		final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testParallelGZIPReadsBack() throws IOException {
+		final Random random = new Random(41);
+		final byte[] data = new byte[1000003];
+		for (int i = 0; i < data.length; ++i)
+			data[i] = (byte) ('a' + random.nextInt(20));
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(compressed, 30000, 3);
+		out.write(data, 0, 10);
+		out.write(data[10]);
+		out.flush();
+		out.write(data, 11, data.length - 11);
+		out.close();
+		assertArrayEquals(data, gunzip(compressed.toByteArray()));
+
+		final ByteArrayOutputStream empty = new ByteArrayOutputStream();
+		new ParallelGZIPOutputStream(empty).close();
+		assertEquals(0, gunzip(empty.toByteArray()).length);
+	}
+
+	static PathAndFillManager example(final Random random) {
+		final PathAndFillManager manager = new PathAndFillManager(100, 100, 20, 0.5f, 0.5f, 2, "um");
+		for (int i = 0; i < 5; ++i) {
+			final Path path = PathPointIndexTest.randomPath(random);
+			path.setName("path <" + i + "> & \"more\"");
+			manager.addPath(path);
+		}
+		final Path withCircles = manager.getPath(1);
+		withCircles.createCircles();
+		for (int i = 0; i < withCircles.size(); ++i) {
+			withCircles.tangents_x[i] = random.nextGaussian();
+			withCircles.radiuses[i] = random.nextDouble();
+		}
+		final Fill fill = new Fill();
+		for (int i = 0; i < 1000; ++i)
+			fill.add(random.nextInt(100), random.nextInt(100), random.nextInt(20), random.nextDouble(), i - 1,
+					i % 3 == 0);
+		fill.setMetric("reciprocal-intensity-scaled");
+		fill.setThreshold(0.5);
+		fill.setSourcePaths(new Path[] { manager.getPath(0) });
+		manager.addFill(fill);
+		return manager;
+	}
+
+	@Test
+	public void testManyPathsFillWholeBlocks() throws IOException {
+		final Random random = new Random(47);
+		final PathAndFillManager manager = new PathAndFillManager(100, 100, 20, 0.5f, 0.5f, 2, "um");
+		for (int i = 0; i < 2000; ++i)
+			manager.addPath(PathPointIndexTest.randomPath(random));
+		final TracesWriter snapshot = manager.snapshotForWriting();
+		final ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+		snapshot.write(uncompressed);
+
+		// Writing mustn't flush the stream (and so start a new member)
+		// for each path:
+		final int blockSize = 1 << 16;
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(compressed, blockSize, 2);
+		snapshot.write(out);
+		out.close();
+		assertTrue(uncompressed.size() > 10 * blockSize);
+		assertEquals((uncompressed.size() + blockSize - 1) / blockSize, out.members);
+		assertArrayEquals(uncompressed.toByteArray(), gunzip(compressed.toByteArray()));
+	}
+
+	static File temporaryFile(final String suffix) throws IOException {
+		final File file = File.createTempFile("traces", suffix);
+		file.deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void testWriteAndLoad() throws IOException {
+		final PathAndFillManager written = example(new Random(43));
+		final Fill fill = written.allFills.get(0);
+
+		final File file = temporaryFile(".traces");
+		written.writeXML(file.getAbsolutePath(), true);
+
+		final PathAndFillManager loaded = new PathAndFillManager();
+		assertTrue(loaded.loadCompressedXML(file.getAbsolutePath()));
+		assertEquals(written.size(), loaded.size());
+		for (int i = 0; i < written.size(); ++i) {
+			final Path expected = written.getPath(i), found = loaded.getPath(i);
+			assertEquals(expected.getName(), found.getName());
+			assertEquals(expected.size(), found.size());
+			for (int j = 0; j < expected.size(); ++j) {
+				assertEquals(expected.precise_x_positions[j], found.precise_x_positions[j], 0);
+				assertEquals(expected.precise_y_positions[j], found.precise_y_positions[j], 0);
+				assertEquals(expected.precise_z_positions[j], found.precise_z_positions[j], 0);
+			}
+		}
+		assertEquals(1, loaded.allFills.size());
+		final Fill loadedFill = loaded.allFills.get(0);
+		assertEquals(fill.nodeList.size(), loadedFill.nodeList.size());
+		for (int i = 0; i < fill.nodeList.size(); ++i) {
+			final Fill.Node expected = fill.nodeList.get(i), found = loadedFill.nodeList.get(i);
+			assertEquals(expected.x, found.x);
+			assertEquals(expected.previous, found.previous);
+			assertEquals(expected.distance, found.distance, 0);
+			assertEquals(expected.open, found.open);
+		}
+	}
+
+	@Test
+	public void testBinaryMatchesXML() throws IOException {
+		final PathAndFillManager written = example(new Random(53));
+		final File xml = temporaryFile(".traces"), binary = temporaryFile(".traces");
+		written.writeXML(xml.getAbsolutePath(), false);
+		written.writeBinary(binary.getAbsolutePath());
+		assertEquals(PathAndFillManager.TRACES_FILE_TYPE_BINARY,
+				PathAndFillManager.guessTracesFileType(binary.getAbsolutePath()));
+
+		// Loading the binary file and writing it as XML gives the same XML:
+		final PathAndFillManager loaded = new PathAndFillManager();
+		assertTrue(loaded.loadGuessingType(binary.getAbsolutePath()));
+		assertTrue(loaded.getPath(1).hasCircles());
+		final File again = temporaryFile(".traces");
+		loaded.writeXML(again.getAbsolutePath(), false);
+		assertArrayEquals(Files.readAllBytes(xml.toPath()), Files.readAllBytes(again.toPath()));
+	}
+}
@@ -4,6 +4,7 @@
 
 package tracing;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeNotNull;
@@ -132,4 +133,61 @@ public class Tracing3DTest {
 			}
 		}
 	}
+
+	@Test
+	public void testBidirectionalFindsCheapestPath() {
+
+		double pixelWidth = 1;
+		double pixelHeight = 1;
+		double pixelDepth = 1;
+		Calibration calibration = image.getCalibration();
+		if( calibration != null ) {
+			pixelWidth = calibration.pixelWidth;
+			pixelHeight = calibration.pixelHeight;
+			pixelDepth = calibration.pixelDepth;
+		}
+
+		ComputeCurvatures hessian = new ComputeCurvatures(image, 0.721, null, calibration != null);
+		hessian.run();
+
+		TracerThread[] tracers = new TracerThread[2];
+		for( int i = 0; i < 2; ++i ) {
+			tracers[i] = new TracerThread(image,
+						      0,
+						      255,
+						      -1, // timeoutSeconds
+						      100, // reportEveryMilliseconds
+						      (int)( startX / pixelWidth ),
+						      (int)( startY / pixelHeight ),
+						      (int)( startZ / pixelDepth ),
+						      (int)( endX / pixelWidth ),
+						      (int)( endY / pixelHeight ),
+						      (int)( endZ / pixelDepth ),
+						      true, // reciprocal
+						      false, // singleSlice
+						      hessian,
+						      19.69, // multiplier
+						      null,
+						      true);
+		}
+		// The first only searches from the start:
+		tracers[0].bidirectional = false;
+		tracers[0].search_from_goal = null;
+
+		for( TracerThread tracer : tracers ) {
+			tracer.run();
+			assertNotNull("Not path found",tracer.getResult());
+		}
+
+		double cheapest = SearchThreadTest.pathCost(tracers[0], tracers[0].getResult());
+		double found = SearchThreadTest.pathCost(tracers[1], tracers[1].getResult());
+		assertEquals( "The bidirectional search must find the cheapest path",
+			      cheapest, found, cheapest * 1e-5 );
+
+		int pointsFromStart = tracers[0].pointsConsideredInSearch();
+		int pointsFromBoth = tracers[1].pointsConsideredInSearch();
+		assertTrue( "The bidirectional search should explore fewer points; in fact went from " +
+			    pointsFromStart + " to " + pointsFromBoth,
+			    pointsFromBoth < pointsFromStart );
+	}
 }